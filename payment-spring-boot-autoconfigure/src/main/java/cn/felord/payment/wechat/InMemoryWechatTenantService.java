@@ -19,54 +19,99 @@ package cn.felord.payment.wechat;
 
 import cn.felord.payment.wechat.v3.KeyPairFactory;
 import cn.felord.payment.wechat.v3.WechatMetaBean;
-import lombok.AllArgsConstructor;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.ResourceLoader;
-import org.springframework.util.CollectionUtils;
 import org.springframework.util.ResourceUtils;
 
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 /**
  * 从配置文件中加载租户信息,默认实现,可被覆盖
+ * <p>
+ * {@link #tenantIds()}不会加载任何密钥，{@link #loadTenant(String)}只加载单个租户的密钥。
  *
  * @author dax
  * @since 2023/2/3 11:40
  */
-@AllArgsConstructor
 public class InMemoryWechatTenantService implements WechatTenantService {
     private final WechatPayProperties wechatPayProperties;
     private final ResourceLoader resourceLoader;
-    private final Set<WechatMetaBean> cache = new HashSet<>();
+    private final KeyPairFactory keyPairFactory = new KeyPairFactory();
+    /**
+     * key = 租户id  value = 通过{@link #loadTenants()}加载的租户
+     */
+    private final Map<String, WechatMetaBean> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Instantiates a new In memory wechat tenant service.
+     *
+     * @param wechatPayProperties the wechat pay properties
+     * @param resourceLoader      the resource loader
+     */
+    public InMemoryWechatTenantService(WechatPayProperties wechatPayProperties, ResourceLoader resourceLoader) {
+        this.wechatPayProperties = wechatPayProperties;
+        this.resourceLoader = resourceLoader;
+    }
 
     @Override
     public Set<WechatMetaBean> loadTenants() {
-        if (CollectionUtils.isEmpty(cache)) {
-            Map<String, WechatPayProperties.V3> v3Map = wechatPayProperties.getV3();
-            KeyPairFactory keyPairFactory = new KeyPairFactory();
-            Set<WechatMetaBean> beans = v3Map.entrySet()
-                    .stream()
-                    .map(entry -> {
-                        WechatPayProperties.V3 v3 = entry.getValue();
-                        String tenantId = entry.getKey();
-                        String certPath = v3.getCertPath();
-                        String certAbsolutePath = v3.getCertAbsolutePath();
-                        String mchId = v3.getMchId();
-                        Resource resource = certAbsolutePath != null ? new FileSystemResource(certAbsolutePath) :
-                                resourceLoader.getResource(certPath == null ? "classpath:wechat/apiclient_cert.p12" :
-                                        certPath.startsWith(ResourceUtils.CLASSPATH_URL_PREFIX) ? certPath : ResourceUtils.CLASSPATH_URL_PREFIX + certPath);
-                        WechatMetaBean wechatMetaBean = keyPairFactory.initWechatMetaBean(resource, mchId);
-                        wechatMetaBean.setV3(v3);
-                        wechatMetaBean.setTenantId(tenantId);
-                        return wechatMetaBean;
-                    })
-                    .collect(Collectors.toSet());
-            cache.addAll(beans);
+        Map<String, WechatPayProperties.V3> v3Map = wechatPayProperties.getV3();
+        Map<String, KeyPairFactory.KeyStoreSource> sources = new LinkedHashMap<>();
+        v3Map.forEach((tenantId, v3) -> {
+            if (!cache.containsKey(tenantId)) {
+                sources.put(tenantId, KeyPairFactory.KeyStoreSource.of(this.resource(v3), v3.getMchId()));
+            }
+        });
+        // 多租户时并行读取证书，失败的租户在下次调用时重试
+        KeyPairFactory.BatchResult result = keyPairFactory.initWechatMetaBeans(sources, Runtime.getRuntime().availableProcessors());
+        result.getLoaded().forEach((tenantId, wechatMetaBean) -> {
+            wechatMetaBean.setV3(v3Map.get(tenantId));
+            wechatMetaBean.setTenantId(tenantId);
+            cache.putIfAbsent(tenantId, wechatMetaBean);
+        });
+        result.throwIfFailed();
+        return v3Map.keySet()
+                .stream()
+                .map(cache::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toSet());
+    }
+
+    @Override
+    public Set<String> tenantIds() {
+        return Collections.unmodifiableSet(wechatPayProperties.getV3().keySet());
+    }
+
+    @Override
+    public WechatMetaBean loadTenant(String tenantId) {
+        WechatPayProperties.V3 v3 = wechatPayProperties.getV3().get(tenantId);
+        if (Objects.isNull(v3)) {
+            return null;
         }
-        return cache;
+        // 按需加载的租户由 WechatMetaContainer 缓存和淘汰，这里不再持有
+        WechatMetaBean loaded = cache.get(tenantId);
+        return Objects.nonNull(loaded) ? loaded : this.initWechatMetaBean(tenantId, v3);
+    }
+
+    private WechatMetaBean initWechatMetaBean(String tenantId, WechatPayProperties.V3 v3) {
+        WechatMetaBean wechatMetaBean = keyPairFactory.initWechatMetaBean(this.resource(v3), v3.getMchId());
+        wechatMetaBean.setV3(v3);
+        wechatMetaBean.setTenantId(tenantId);
+        return wechatMetaBean;
+    }
+
+    private Resource resource(WechatPayProperties.V3 v3) {
+        String certPath = v3.getCertPath();
+        String certAbsolutePath = v3.getCertAbsolutePath();
+        return certAbsolutePath != null ? new FileSystemResource(certAbsolutePath) :
+                resourceLoader.getResource(certPath == null ? "classpath:wechat/apiclient_cert.p12" :
+                        certPath.startsWith(ResourceUtils.CLASSPATH_URL_PREFIX) ? certPath : ResourceUtils.CLASSPATH_URL_PREFIX + certPath);
     }
 }
@@ -0,0 +1,172 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.datatype.jsr310.ser.LocalDateSerializer;
+import com.fasterxml.jackson.datatype.jsr310.ser.LocalDateTimeSerializer;
+import com.fasterxml.jackson.datatype.jsr310.ser.LocalTimeSerializer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.BeanUtils;
+import org.springframework.util.ClassUtils;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 微信支付JSON、XML序列化配置的唯一来源.
+ * <p>
+ * 请求参数、响应、回调以及V2报文共用同一套已配置好的{@link ObjectMapper}，并按类型缓存{@link ObjectReader}、{@link ObjectWriter}，
+ * 避免各处重复创建Mapper导致序列化器缓存无法复用。配置完成后不应再修改这里的Mapper，需要不同配置时注册自定义的Bean。
+ *
+ * @author felord.cn
+ * @since 1.0.20.RELEASE
+ */
+@Slf4j
+public class WechatMapperRegistry {
+    private static final String BLACKBIRD_MODULE = "com.fasterxml.jackson.module.blackbird.BlackbirdModule";
+    private static final String AFTERBURNER_MODULE = "com.fasterxml.jackson.module.afterburner.AfterburnerModule";
+    private static final WechatMapperRegistry DEFAULT = new WechatMapperRegistry(createObjectMapper(), createXmlMapper());
+    private final ObjectMapper objectMapper;
+    private final XmlMapper xmlMapper;
+    private final Map<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+    private final Map<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+    /**
+     * Instantiates a new Wechat mapper registry.
+     *
+     * @param objectMapper the object mapper
+     * @param xmlMapper    the xml mapper
+     */
+    public WechatMapperRegistry(ObjectMapper objectMapper, XmlMapper xmlMapper) {
+        this.objectMapper = objectMapper;
+        this.xmlMapper = xmlMapper;
+    }
+
+    /**
+     * 默认配置，非Spring管理的对象（例如V2的{@code BaseModel}）使用.
+     *
+     * @return the wechat mapper registry
+     */
+    public static WechatMapperRegistry defaultRegistry() {
+        return DEFAULT;
+    }
+
+    /**
+     * 创建默认配置的JSON Mapper.
+     * <p>
+     * 属性名使用下划线风格，忽略null和未知属性，空字符串视为null，{@code java.time}日期时间使用ISO格式。
+     *
+     * @return the object mapper
+     */
+    public static ObjectMapper createObjectMapper() {
+        JavaTimeModule javaTimeModule = new JavaTimeModule();
+        javaTimeModule.addSerializer(LocalDate.class, new LocalDateSerializer(DateTimeFormatter.ISO_LOCAL_DATE));
+        javaTimeModule.addSerializer(LocalDateTime.class, new LocalDateTimeSerializer(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        javaTimeModule.addSerializer(LocalTime.class, new LocalTimeSerializer(DateTimeFormatter.ISO_LOCAL_TIME));
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE)
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+                // empty string error
+                .configure(DeserializationFeature.ACCEPT_EMPTY_STRING_AS_NULL_OBJECT, true)
+                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                .registerModule(javaTimeModule);
+        return mapper;
+    }
+
+    /**
+     * 创建默认配置的XML Mapper，用于V2报文.
+     *
+     * @return the xml mapper
+     */
+    public static XmlMapper createXmlMapper() {
+        XmlMapper xmlMapper = new XmlMapper();
+        // 忽略null
+        xmlMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                // 属性使用 下划线风格
+                .setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE);
+        return xmlMapper;
+    }
+
+    /**
+     * 注册字节码优化模块，优先使用Blackbird，其次Afterburner，都不在classpath中时忽略.
+     *
+     * @param mapper the mapper
+     * @return the object mapper
+     */
+    public static ObjectMapper registerBytecodeModule(ObjectMapper mapper) {
+        ClassLoader classLoader = WechatMapperRegistry.class.getClassLoader();
+        String moduleClassName = ClassUtils.isPresent(BLACKBIRD_MODULE, classLoader) ? BLACKBIRD_MODULE :
+                ClassUtils.isPresent(AFTERBURNER_MODULE, classLoader) ? AFTERBURNER_MODULE : null;
+        if (moduleClassName == null) {
+            log.warn("neither jackson-module-blackbird nor jackson-module-afterburner is present, bytecode optimization is skipped");
+            return mapper;
+        }
+        Class<?> moduleClass = ClassUtils.resolveClassName(moduleClassName, classLoader);
+        return mapper.registerModule((Module) BeanUtils.instantiateClass(moduleClass));
+    }
+
+    /**
+     * JSON Mapper，不要修改其配置.
+     *
+     * @return the object mapper
+     */
+    public ObjectMapper objectMapper() {
+        return objectMapper;
+    }
+
+    /**
+     * XML Mapper，不要修改其配置.
+     *
+     * @return the xml mapper
+     */
+    public XmlMapper xmlMapper() {
+        return xmlMapper;
+    }
+
+    /**
+     * 指定类型的JSON反序列化器.
+     *
+     * @param type the type
+     * @return the object reader
+     */
+    public ObjectReader reader(Class<?> type) {
+        return readers.computeIfAbsent(type, objectMapper::readerFor);
+    }
+
+    /**
+     * 指定类型的JSON序列化器，应传入对象的实际类型，否则子类属性不会被序列化.
+     *
+     * @param type the type
+     * @return the object writer
+     */
+    public ObjectWriter writer(Class<?> type) {
+        return writers.computeIfAbsent(type, objectMapper::writerFor);
+    }
+}
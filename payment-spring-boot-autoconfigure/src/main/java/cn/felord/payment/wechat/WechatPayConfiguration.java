@@ -17,11 +17,21 @@
 package cn.felord.payment.wechat;
 
 
+import cn.felord.payment.wechat.v3.DefaultWechatCryptoProvider;
 import cn.felord.payment.wechat.v3.SignatureProvider;
 import cn.felord.payment.wechat.v3.WechatApiProvider;
+import cn.felord.payment.wechat.v3.WechatCertificateRefreshScheduler;
+import cn.felord.payment.wechat.v3.WechatCryptoProvider;
+import cn.felord.payment.wechat.v3.WechatEndpointRouter;
 import cn.felord.payment.wechat.v3.WechatMetaContainer;
 import cn.felord.payment.wechat.v3.WechatPayClient;
+import cn.felord.payment.wechat.v3.WechatPayExchange;
+import cn.felord.payment.wechat.v3.WechatReplayGuard;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -32,41 +42,102 @@ import org.springframework.context.annotation.Configuration;
  * @since 1.0.0.RELEASE
  */
 @Configuration(proxyBeanMethods = false)
+@EnableConfigurationProperties(WechatPayProperties.class)
 public class WechatPayConfiguration {
 
     /**
      * 微信支付公私钥 以及序列号等元数据.
      *
      * @param wechatTenantService the wechat tenant service
+     * @param wechatPayProperties the wechat pay properties
      * @return the wechat cert bean
      */
     @Bean
     @ConditionalOnMissingBean
-    WechatMetaContainer wechatMetaContainer(WechatTenantService wechatTenantService) {
-        return new WechatMetaContainer(wechatTenantService);
+    WechatMetaContainer wechatMetaContainer(WechatTenantService wechatTenantService, WechatPayProperties wechatPayProperties) {
+        return new WechatMetaContainer(wechatTenantService, wechatPayProperties.getTenant());
+    }
+
+    /**
+     * JSON、XML序列化配置.
+     *
+     * @param wechatPayProperties the wechat pay properties
+     * @return the wechat mapper registry
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    WechatMapperRegistry wechatMapperRegistry(WechatPayProperties wechatPayProperties) {
+        ObjectMapper objectMapper = WechatMapperRegistry.createObjectMapper();
+        if (wechatPayProperties.getJson().isBytecodeOptimization()) {
+            WechatMapperRegistry.registerBytecodeModule(objectMapper);
+        }
+        return new WechatMapperRegistry(objectMapper, WechatMapperRegistry.createXmlMapper());
+    }
+
+    /**
+     * 加解密、签名算法的JCA Provider.
+     *
+     * @param wechatPayProperties the wechat pay properties
+     * @return the wechat crypto provider
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    WechatCryptoProvider wechatCryptoProvider(WechatPayProperties wechatPayProperties) {
+        return new DefaultWechatCryptoProvider(wechatPayProperties.getCrypto());
     }
 
     /**
      * 微信支付V3签名工具.
      *
-     * @param wechatMetaContainer the wechat meta container
+     * @param wechatMetaContainer  the wechat meta container
+     * @param wechatPayProperties  the wechat pay properties
+     * @param wechatCryptoProvider the wechat crypto provider
      * @return the signature provider
      */
     @Bean
-    SignatureProvider signatureProvider(WechatMetaContainer wechatMetaContainer) {
-        return new SignatureProvider(wechatMetaContainer);
+    SignatureProvider signatureProvider(WechatMetaContainer wechatMetaContainer, WechatPayProperties wechatPayProperties, WechatCryptoProvider wechatCryptoProvider) {
+        SignatureProvider signatureProvider = new SignatureProvider(wechatMetaContainer, wechatPayProperties.getCertificate(), wechatCryptoProvider);
+        WechatPayProperties.Replay replay = wechatPayProperties.getCallback().getReplay();
+        if (replay.isEnabled()) {
+            signatureProvider.setReplayGuard(new WechatReplayGuard(replay));
+        }
+        return signatureProvider;
     }
 
+    /**
+     * 微信平台证书后台定时刷新.
+     *
+     * @param signatureProvider   the signature provider
+     * @param wechatPayProperties the wechat pay properties
+     * @return the wechat certificate refresh scheduler
+     * @since 1.0.20.RELEASE
+     */
+    @Bean
+    @ConditionalOnProperty(prefix = "wechat.pay.certificate.refresh", name = "enabled", havingValue = "true")
+    WechatCertificateRefreshScheduler wechatCertificateRefreshScheduler(SignatureProvider signatureProvider, WechatPayProperties wechatPayProperties) {
+        return new WechatCertificateRefreshScheduler(signatureProvider, wechatPayProperties.getCertificate().getRefresh());
+    }
 
     /**
      * 微信支付V3 客户端.
      *
-     * @param signatureProvider the signature provider
+     * @param signatureProvider    the signature provider
+     * @param wechatMapperRegistry the wechat mapper registry
+     * @param wechatPayProperties  the wechat pay properties
+     * @param wechatPayExchange    异步请求的传输方式，可选
      * @return the wechat pay service
      */
     @Bean
-    public WechatPayClient wechatPayClient(SignatureProvider signatureProvider) {
-        return new WechatPayClient(signatureProvider);
+    public WechatPayClient wechatPayClient(SignatureProvider signatureProvider,
+                                           WechatMapperRegistry wechatMapperRegistry,
+                                           WechatPayProperties wechatPayProperties,
+                                           ObjectProvider<WechatPayExchange> wechatPayExchange) {
+        WechatPayClient wechatPayClient = new WechatPayClient(signatureProvider, wechatMapperRegistry, wechatPayProperties.getHttp(), wechatPayProperties.getAsync());
+        WechatEndpointRouter endpointRouter = new WechatEndpointRouter(wechatPayProperties.getEndpoint());
+        wechatPayClient.setEndpointRouter(endpointRouter);
+        signatureProvider.setEndpointRouter(endpointRouter);
+        wechatPayExchange.ifAvailable(wechatPayClient::setExchange);
+        return wechatPayClient;
     }
 
     /**
@@ -77,6 +148,10 @@ public class WechatPayConfiguration {
      */
     @Bean
     public WechatApiProvider wechatApiProvider(WechatPayClient wechatPayClient) {
-        return new WechatApiProvider(wechatPayClient);
+        WechatApiProvider wechatApiProvider = new WechatApiProvider(wechatPayClient);
+        wechatPayClient.signatureProvider()
+                .wechatMetaContainer()
+                .addListener(wechatApiProvider);
+        return wechatApiProvider;
     }
 }
@@ -19,6 +19,7 @@ package cn.felord.payment.wechat;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -35,6 +36,54 @@ public class WechatPayProperties {
      * wechat pay V3 properties
      */
     private Map<String, V3> v3 = new HashMap<>();
+    /**
+     * wechat pay platform certificate properties
+     *
+     * @since 1.0.20.RELEASE
+     */
+    private Certificate certificate = new Certificate();
+    /**
+     * JCA providers used by wechat pay v3 crypto operations
+     *
+     * @since 1.0.20.RELEASE
+     */
+    private Crypto crypto = new Crypto();
+    /**
+     * json serialization of wechat pay requests and responses
+     *
+     * @since 1.0.20.RELEASE
+     */
+    private Json json = new Json();
+    /**
+     * loading and caching of tenants
+     *
+     * @since 1.0.20.RELEASE
+     */
+    private Tenant tenant = new Tenant();
+    /**
+     * http transport of wechat pay v3 requests, the timeouts also apply to v2 requests
+     *
+     * @since 1.0.20.RELEASE
+     */
+    private Http http = new Http();
+    /**
+     * executor of asynchronous wechat pay v3 requests
+     *
+     * @since 1.0.20.RELEASE
+     */
+    private Async async = new Async();
+    /**
+     * routing and failover between wechat pay domains
+     *
+     * @since 1.0.20.RELEASE
+     */
+    private Endpoint endpoint = new Endpoint();
+    /**
+     * asynchronous processing of wechat pay v3 callbacks
+     *
+     * @since 1.0.20.RELEASE
+     */
+    private Callback callback = new Callback();
 
     /**
      * wechat pay v3 properties.
@@ -73,8 +122,347 @@ public class WechatPayProperties {
          */
         private String certAbsolutePath;
         /**
-         * your pay server domain
+         * your pay server domain, {@code CHINA}, {@code CHINA2}, {@code HK}, {@code US} or the domain url, {@code CHINA} if not set
          */
         private String domain;
     }
+
+    /**
+     * wechat pay platform certificate properties.
+     *
+     * @author felord.cn
+     * @since 1.0.20.RELEASE
+     */
+    @Data
+    public static class Certificate {
+        /**
+         * background refresh of platform certificates
+         */
+        private Refresh refresh = new Refresh();
+        /**
+         * bootstrap of platform certificates at startup
+         */
+        private Bootstrap bootstrap = new Bootstrap();
+        /**
+         * local directory to persist platform certificates for warm restarts, disabled if absent
+         */
+        private String cacheDir;
+        /**
+         * time a certificate serial still unknown after a refresh is remembered before it triggers another refresh
+         */
+        private Duration missTtl = Duration.ofSeconds(30);
+    }
+
+    /**
+     * bootstrap of platform certificates at startup.
+     *
+     * @author felord.cn
+     * @since 1.0.20.RELEASE
+     */
+    @Data
+    public static class Bootstrap {
+        /**
+         * how the certificates of all tenants are fetched at startup, always {@link Mode#LAZY} when {@code wechat.pay.tenant.lazy} is enabled
+         */
+        private Mode mode = Mode.SYNC;
+        /**
+         * max concurrent fetches in {@link Mode#SYNC} and {@link Mode#PARALLEL} mode
+         */
+        private int concurrency = 8;
+
+        /**
+         * bootstrap mode.
+         *
+         * @since 1.0.20.RELEASE
+         */
+        public enum Mode {
+            /**
+             * fetch concurrently, startup blocks until all certificates are ready
+             */
+            SYNC,
+            /**
+             * fetch in background with bounded concurrency, startup does not wait
+             */
+            PARALLEL,
+            /**
+             * fetch on first use of each tenant
+             */
+            LAZY
+        }
+    }
+
+    /**
+     * loading and caching of tenants.
+     *
+     * @author felord.cn
+     * @since 1.0.20.RELEASE
+     */
+    @Data
+    public static class Tenant {
+        /**
+         * load each tenant on first use instead of loading all tenants at once,
+         * platform certificates are then also fetched on first use whatever {@code wechat.pay.certificate.bootstrap.mode} is
+         */
+        private boolean lazy;
+        /**
+         * max lazily loaded tenants kept in memory, least recently used ones are evicted
+         */
+        private int maxSize = 1000;
+        /**
+         * time after which a lazily loaded tenant is reloaded, never if not set
+         */
+        private Duration ttl;
+        /**
+         * time an unknown tenant id is remembered before it triggers another load
+         */
+        private Duration missTtl = Duration.ofSeconds(10);
+    }
+
+    /**
+     * pooled http transport of wechat pay v3 requests.
+     *
+     * @author felord.cn
+     * @since 1.0.20.RELEASE
+     */
+    @Data
+    public static class Http {
+        /**
+         * max connections of the pool
+         */
+        private int maxTotal = 200;
+        /**
+         * max connections per host, all v3 requests go to a few hosts
+         */
+        private int maxPerRoute = 100;
+        /**
+         * connect timeout
+         */
+        private Duration connectTimeout = Duration.ofSeconds(5);
+        /**
+         * read (socket) timeout
+         */
+        private Duration readTimeout = Duration.ofSeconds(10);
+        /**
+         * max time to wait for a pooled connection
+         */
+        private Duration connectionRequestTimeout = Duration.ofSeconds(3);
+        /**
+         * max time a connection is kept alive, the server {@code Keep-Alive} header is honoured when shorter
+         */
+        private Duration keepAlive = Duration.ofSeconds(30);
+        /**
+         * idle connections are closed after this period, never if not set
+         */
+        private Duration maxIdleTime = Duration.ofSeconds(30);
+        /**
+         * close connections whose keep-alive has expired in the background
+         */
+        private boolean evictExpiredConnections = true;
+        /**
+         * max cached TLS sessions, {@code 0} means no limit
+         */
+        private int tlsSessionCacheSize = 1000;
+        /**
+         * cached TLS sessions are resumed within this period
+         */
+        private Duration tlsSessionTimeout = Duration.ofHours(1);
+    }
+
+    /**
+     * routing and failover between wechat pay domains.
+     *
+     * @author felord.cn
+     * @since 1.0.20.RELEASE
+     */
+    @Data
+    public static class Endpoint {
+        /**
+         * retry on the backup domain ({@code api2.mch.weixin.qq.com}) after connection errors or 5xx responses
+         */
+        private boolean failover = true;
+        /**
+         * consecutive failures after which a domain is considered degraded and the backup domain is tried first
+         */
+        private int failureThreshold = 3;
+        /**
+         * how long a degraded domain is avoided before it is tried again
+         */
+        private Duration openDuration = Duration.ofSeconds(30);
+        /**
+         * successful calls slower than this also count as failures, disabled if not set
+         */
+        private Duration slowCallThreshold;
+    }
+
+    /**
+     * asynchronous processing of wechat pay v3 callbacks.
+     *
+     * @author felord.cn
+     * @since 1.0.20.RELEASE
+     */
+    @Data
+    public static class Callback {
+        /**
+         * directory of the callback journal and the dead-letter file
+         */
+        private String journalDir;
+        /**
+         * sync the journal to disk before the callback is acknowledged
+         */
+        private boolean fsync = true;
+        /**
+         * threads dispatching callbacks to the handlers
+         */
+        private int workers = 4;
+        /**
+         * max callbacks accepted but not yet handled, further callbacks are not acknowledged
+         */
+        private int queueCapacity = 10000;
+        /**
+         * max attempts of a handler before the callback goes to the dead-letter file
+         */
+        private int maxAttempts = 5;
+        /**
+         * delay before the first retry, doubled after each failed attempt
+         */
+        private Duration retryBackoff = Duration.ofSeconds(1);
+        /**
+         * deduplication of redelivered callbacks
+         */
+        private Dedup dedup = new Dedup();
+        /**
+         * rejection of stale or replayed callbacks before the signature is verified
+         */
+        private Replay replay = new Replay();
+    }
+
+    /**
+     * rejection of stale or replayed wechat pay v3 callbacks.
+     *
+     * @author felord.cn
+     * @since 1.0.20.RELEASE
+     */
+    @Data
+    public static class Replay {
+        /**
+         * enable the check for callback verification only, disabled by default since it rejects callbacks when the local clock drifts
+         */
+        private boolean enabled;
+        /**
+         * max difference between {@code Wechatpay-Timestamp} and the local clock, disabled if set to 0
+         */
+        private Duration maxSkew = Duration.ofMinutes(5);
+        /**
+         * max {@code Wechatpay-Nonce} values remembered within the window, disabled if set to 0
+         */
+        private int nonceCacheSize = 10000;
+    }
+
+    /**
+     * deduplication of redelivered wechat pay v3 callbacks by notification id.
+     *
+     * @author felord.cn
+     * @since 1.0.20.RELEASE
+     */
+    @Data
+    public static class Dedup {
+        /**
+         * max notification ids kept, the eldest ones are evicted first
+         */
+        private int maxSize = 100000;
+        /**
+         * how long a notification id is kept, should cover the retry period of wechat pay (about 24 hours)
+         */
+        private Duration ttl = Duration.ofHours(25);
+        /**
+         * file persisting notification ids across restarts, kept in memory only if not set
+         */
+        private String file;
+    }
+
+    /**
+     * executor of asynchronous wechat pay v3 requests.
+     *
+     * @author felord.cn
+     * @since 1.0.20.RELEASE
+     */
+    @Data
+    public static class Async {
+        /**
+         * use a virtual-thread-per-task executor when running on JDK 21+
+         */
+        private boolean virtualThreads = true;
+        /**
+         * max threads of the platform thread pool used otherwise
+         */
+        private int poolSize = 64;
+    }
+
+    /**
+     * json serialization of wechat pay requests and responses.
+     *
+     * @author felord.cn
+     * @since 1.0.20.RELEASE
+     */
+    @Data
+    public static class Json {
+        /**
+         * register jackson-module-blackbird (or afterburner) when it is present on the classpath
+         */
+        private boolean bytecodeOptimization;
+    }
+
+    /**
+     * JCA providers used by wechat pay v3 crypto operations, {@code JDK} lets the JDK choose by provider priority.
+     * <p>
+     * all default to {@code BC} as in previous releases, switch to {@code JDK} only after benchmarking it on the target JVM.
+     *
+     * @author felord.cn
+     * @since 1.0.20.RELEASE
+     */
+    @Data
+    public static class Crypto {
+        /**
+         * provider of SHA256withRSA signing and verification
+         */
+        private String signatureProvider = "BC";
+        /**
+         * provider of RSA-OAEP encryption of sensitive fields
+         */
+        private String rsaProvider = "BC";
+        /**
+         * provider of AES-GCM decryption of callbacks and certificates
+         */
+        private String aesProvider = "BC";
+        /**
+         * provider of X.509 parsing of platform certificates
+         */
+        private String certificateProvider = "BC";
+    }
+
+    /**
+     * background refresh of platform certificates.
+     *
+     * @author felord.cn
+     * @since 1.0.20.RELEASE
+     */
+    @Data
+    public static class Refresh {
+        /**
+         * enable the background refresh, disabled by default
+         */
+        private boolean enabled;
+        /**
+         * how often the certificates of every tenant are checked
+         */
+        private Duration checkInterval = Duration.ofHours(1);
+        /**
+         * certificates fetched longer ago than this are fetched again to pick up new serials
+         */
+        private Duration maxAge = Duration.ofHours(12);
+        /**
+         * certificates expiring within this period are fetched again
+         */
+        private Duration expiryMargin = Duration.ofDays(1);
+    }
 }
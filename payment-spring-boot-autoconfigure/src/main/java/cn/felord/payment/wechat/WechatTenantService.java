@@ -20,14 +20,49 @@ package cn.felord.payment.wechat;
 import cn.felord.payment.wechat.v3.WechatMetaBean;
 
 import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * 加载租户信息服务
+ * <p>
+ * 租户较多时应同时覆盖{@link #tenantIds()}和{@link #loadTenant(String)}，
+ * 配合{@code wechat.pay.tenant.lazy=true}按需加载单个租户，避免启动时加载全部租户的密钥。
  *
  * @author felord.cn
  * @since 1.0.16.RELEASE
  */
 @FunctionalInterface
 public interface WechatTenantService {
+    /**
+     * 加载全部租户.
+     *
+     * @return the set
+     */
     Set<WechatMetaBean> loadTenants();
+
+    /**
+     * 全部租户id，不需要加载密钥.
+     *
+     * @return the tenant ids
+     * @since 1.0.20.RELEASE
+     */
+    default Set<String> tenantIds() {
+        return loadTenants().stream()
+                .map(WechatMetaBean::getTenantId)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * 加载单个租户.
+     *
+     * @param tenantId the tenant id
+     * @return the wechat meta bean, null if the tenant does not exist
+     * @since 1.0.20.RELEASE
+     */
+    default WechatMetaBean loadTenant(String tenantId) {
+        return loadTenants().stream()
+                .filter(wechatMetaBean -> tenantId.equals(wechatMetaBean.getTenantId()))
+                .findFirst()
+                .orElse(null);
+    }
 }
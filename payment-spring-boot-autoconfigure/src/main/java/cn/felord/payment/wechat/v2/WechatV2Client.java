@@ -23,31 +23,84 @@ import cn.felord.payment.wechat.v3.WechatMetaBean;
 import com.fasterxml.jackson.databind.JsonNode;
 import org.springframework.http.HttpMethod;
 
+import java.io.Closeable;
+
 /**
  * 微信支付V2 客户端
  * <p>
- * V3接口不完善的临时性解决方案
+ * V3接口不完善的临时性解决方案，首次请求时创建租户的{@link WechatV2HttpClient}并在之后的请求中复用。
  *
  * @author felord.cn
  * @since 1.0.5.RELEASE
  */
-public class WechatV2Client {
+public class WechatV2Client implements Closeable {
     private final WechatMetaBean wechatMetaBean;
+    private final WechatPayProperties.Http http;
+    private volatile WechatV2HttpClient httpClient;
 
     public WechatV2Client(WechatMetaBean wechatMetaBean) {
+        this(wechatMetaBean, new WechatPayProperties.Http());
+    }
+
+    /**
+     * Instantiates a new Wechat v 2 client.
+     *
+     * @param wechatMetaBean the wechat meta bean
+     * @param http           连接、读取以及获取连接的超时配置
+     * @since 1.0.20.RELEASE
+     */
+    public WechatV2Client(WechatMetaBean wechatMetaBean, WechatPayProperties.Http http) {
         this.wechatMetaBean = wechatMetaBean;
+        this.http = http;
     }
 
     public <M extends BaseModel> JsonNode wechatPayRequest(M model, HttpMethod method, String url) {
         WechatPayProperties.V3 v3 = wechatMetaBean.getV3();
-        return model
-                .appSecret(v3.getAppSecret())
+        model.appSecret(v3.getAppSecret())
                 .certPath(v3.getCertPath())
-                .certAbsolutePath(v3.getCertAbsolutePath())
-                .request(v3.getMchId(), method, url);
+                .certAbsolutePath(v3.getCertAbsolutePath());
+        for (; ; ) {
+            WechatV2HttpClient client = this.httpClient();
+            // 取到的连接池恰好被关闭时重新获取
+            if (client.retain()) {
+                try {
+                    return model.request(client.restOperations(), method, url);
+                } finally {
+                    client.release();
+                }
+            }
+        }
     }
 
     public WechatMetaBean getWechatMetaBean() {
         return wechatMetaBean;
     }
+
+    /**
+     * 释放连接池，进行中的请求结束后才真正关闭，之后的请求会重新创建.
+     *
+     * @since 1.0.20.RELEASE
+     */
+    @Override
+    public synchronized void close() {
+        if (httpClient != null) {
+            httpClient.close();
+            httpClient = null;
+        }
+    }
+
+    private WechatV2HttpClient httpClient() {
+        WechatV2HttpClient client = this.httpClient;
+        if (client == null || client.isClosed()) {
+            synchronized (this) {
+                client = this.httpClient;
+                if (client == null || client.isClosed()) {
+                    WechatPayProperties.V3 v3 = wechatMetaBean.getV3();
+                    client = WechatV2HttpClient.of(v3.getCertPath(), v3.getCertAbsolutePath(), v3.getMchId(), http);
+                    this.httpClient = client;
+                }
+            }
+        }
+        return client;
+    }
 }
@@ -0,0 +1,201 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v2;
+
+import cn.felord.payment.PayException;
+import cn.felord.payment.wechat.WechatPayProperties;
+import cn.felord.payment.wechat.v3.WechatHttpClients;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.ssl.SSLContextBuilder;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.web.client.RestOperations;
+import org.springframework.web.client.RestTemplate;
+
+import javax.net.ssl.SSLContext;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 微信支付V2 双向TLS（商户API证书）请求客户端.
+ * <p>
+ * 商户证书只在创建时读取一次，之后所有请求共用同一个{@link SSLContext}和连接池，连接保持长连接，TLS会话也可以复用。
+ * 协议版本使用JVM默认配置（TLSv1.2及以上），不再固定为TLSv1，连接、读取以及获取连接的超时时间与V3共用{@link WechatPayProperties.Http}。
+ * 不再使用时需要调用{@link #close()}释放连接。
+ * <p>
+ * 请求前后分别调用{@link #retain()}和{@link #release()}，{@link #close()}之后连接池等进行中的请求全部结束才真正关闭。
+ *
+ * @author felord.cn
+ * @since 1.0.20.RELEASE
+ */
+@Slf4j
+public class WechatV2HttpClient implements Closeable {
+    private static final String PKCS12 = "PKCS12";
+    private static final int MAX_CONNECTIONS = 200;
+    private static final long IDLE_TIMEOUT_SECONDS = 30;
+    private final CloseableHttpClient httpClient;
+    private final RestTemplate restTemplate;
+    /**
+     * 引用计数，初始的1为持有者自身的引用，{@link #close()}时释放
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Instantiates a new Wechat v 2 http client.
+     *
+     * @param resource 商户API证书
+     * @param mchId    商户号，同时也是证书密码
+     */
+    public WechatV2HttpClient(Resource resource, String mchId) {
+        this(resource, mchId, new WechatPayProperties.Http());
+    }
+
+    /**
+     * Instantiates a new Wechat v 2 http client.
+     *
+     * @param resource 商户API证书
+     * @param mchId    商户号，同时也是证书密码
+     * @param http     超时配置
+     */
+    public WechatV2HttpClient(Resource resource, String mchId, WechatPayProperties.Http http) {
+        char[] pem = mchId.toCharArray();
+        try (InputStream inputStream = resource.getInputStream()) {
+            KeyStore store = KeyStore.getInstance(PKCS12);
+            store.load(inputStream, pem);
+            SSLContext sslContext = SSLContextBuilder.create()
+                    .loadKeyMaterial(store, pem)
+                    .build();
+            PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register("https", new SSLConnectionSocketFactory(sslContext, SSLConnectionSocketFactory.getDefaultHostnameVerifier()))
+                    .build());
+            connectionManager.setMaxTotal(MAX_CONNECTIONS);
+            // V2接口都在同一个域名下
+            connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+            this.httpClient = HttpClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .evictExpiredConnections()
+                    .evictIdleConnections(IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .build();
+        } catch (Exception e) {
+            throw new PayException("Cannot load keys from store: " + resource, e);
+        }
+        this.restTemplate = new RestTemplate(WechatHttpClients.createRequestFactory(httpClient, http));
+    }
+
+    /**
+     * 根据证书配置创建，{@code certAbsolutePath}优先，{@code certPath}为classpath路径，都为空时使用{@code wechat/apiclient_cert.p12}.
+     *
+     * @param certPath         the cert path
+     * @param certAbsolutePath the cert absolute path
+     * @param mchId            the mch id
+     * @return the wechat v 2 http client
+     */
+    public static WechatV2HttpClient of(String certPath, String certAbsolutePath, String mchId) {
+        return of(certPath, certAbsolutePath, mchId, new WechatPayProperties.Http());
+    }
+
+    /**
+     * 根据证书配置和超时配置创建.
+     *
+     * @param certPath         the cert path
+     * @param certAbsolutePath the cert absolute path
+     * @param mchId            the mch id
+     * @param http             the http
+     * @return the wechat v 2 http client
+     * @since 1.0.20.RELEASE
+     */
+    public static WechatV2HttpClient of(String certPath, String certAbsolutePath, String mchId, WechatPayProperties.Http http) {
+        Resource resource = certAbsolutePath != null ? new FileSystemResource(certAbsolutePath) :
+                new ClassPathResource(certPath == null ? "wechat/apiclient_cert.p12" : certPath);
+        return new WechatV2HttpClient(resource, mchId, http);
+    }
+
+    /**
+     * Rest operations.
+     *
+     * @return the rest operations
+     */
+    public RestOperations restOperations() {
+        return restTemplate;
+    }
+
+    /**
+     * 发起请求前占用连接池，返回{@code false}说明已经关闭，需要重新获取客户端.
+     *
+     * @return the boolean
+     * @since 1.0.20.RELEASE
+     */
+    public boolean retain() {
+        for (; ; ) {
+            int count = references.get();
+            if (count == 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 请求结束后释放占用，与{@link #retain()}成对调用.
+     *
+     * @since 1.0.20.RELEASE
+     */
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                log.warn("wechat pay v2 http client cannot be closed", e);
+            }
+        }
+    }
+
+    /**
+     * 是否已经调用过{@link #close()}.
+     *
+     * @return the boolean
+     * @since 1.0.20.RELEASE
+     */
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * 不再接受新的请求，进行中的请求结束后关闭连接池.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            release();
+        }
+    }
+}
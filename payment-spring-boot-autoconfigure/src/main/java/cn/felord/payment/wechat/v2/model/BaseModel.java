@@ -19,51 +19,32 @@ package cn.felord.payment.wechat.v2.model;
 
 
 import cn.felord.payment.PayException;
+import cn.felord.payment.wechat.WechatMapperRegistry;
+import cn.felord.payment.wechat.v2.WechatV2HttpClient;
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.PropertyNamingStrategy;
-import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import lombok.Getter;
 import lombok.SneakyThrows;
-import org.apache.http.conn.ssl.NoopHostnameVerifier;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.ssl.SSLContextBuilder;
-import org.bouncycastle.crypto.Digest;
 import org.bouncycastle.crypto.digests.MD5Digest;
 import org.bouncycastle.util.encoders.Hex;
-import org.springframework.core.io.ClassPathResource;
-import org.springframework.core.io.FileSystemResource;
-import org.springframework.core.io.Resource;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
 import org.springframework.http.RequestEntity;
 import org.springframework.http.ResponseEntity;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.util.AlternativeJdkIdGenerator;
 import org.springframework.util.Assert;
 import org.springframework.util.IdGenerator;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.web.client.RestOperations;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.SSLContext;
-import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
-import java.util.TreeMap;
-import java.util.stream.Collectors;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * The type Base model.
@@ -74,20 +55,40 @@ import java.util.stream.Collectors;
 @Getter
 public abstract class BaseModel {
     public static final String HMAC_SHA256="HMAC-SHA256";
-    private static final XmlMapper XML_MAPPER = new XmlMapper();
-    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
-
-    static {
-        // 忽略null
-        XML_MAPPER.setSerializationInclusion(JsonInclude.Include.NON_NULL)
-                // 属性使用 驼峰首字母小写
-                .setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE);
-        OBJECT_MAPPER
-//                .configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true)
-                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
-                .setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE);
-    }
+    /**
+     * V2报文与V3共用同一套序列化配置
+     */
+    private static final WechatMapperRegistry MAPPER_REGISTRY = WechatMapperRegistry.defaultRegistry();
 
+    private static final int MAX_SHARED_CLIENTS = 16;
+    /**
+     * 未通过{@link cn.felord.payment.wechat.v2.WechatV2Client}调用时按证书共享的客户端，超出上限时关闭最久未使用的
+     */
+    private static final Map<String, WechatV2HttpClient> HTTP_CLIENTS = new LinkedHashMap<String, WechatV2HttpClient>(MAX_SHARED_CLIENTS, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, WechatV2HttpClient> eldest) {
+            if (size() > MAX_SHARED_CLIENTS) {
+                eldest.getValue().close();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private static final String HMAC_SHA256_ALGORITHM = "HmacSHA256";
+    /**
+     * 摘要、HMAC实例非线程安全，每个线程复用一个
+     */
+    private static final ThreadLocal<MD5Digest> MD5_DIGEST = ThreadLocal.withInitial(MD5Digest::new);
+    private static final ThreadLocal<Mac> HMAC_SHA256_MAC = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(HMAC_SHA256_ALGORITHM, "BC");
+        } catch (GeneralSecurityException e) {
+            throw new PayException(e);
+        }
+    });
 
     private static final IdGenerator ID_GENERATOR = new AlternativeJdkIdGenerator();
     private final String nonceStr = ID_GENERATOR.generateId()
@@ -128,17 +129,17 @@ public abstract class BaseModel {
      *
      * @return the string
      */
-    @SneakyThrows
     private String xml() {
-        String link = link(this);
+        Assert.hasText(appSecret, "wechat pay appSecret is required");
+        SigningPlan plan = SigningPlan.of(this.getClass());
+        String[] values = plan.values(this);
+        String link = plan.link(values, appSecret);
         if (HMAC_SHA256.equals(signType)) {
             this.sign = this.hmacSha256(link);
         } else {
             this.sign = this.md5(link);
         }
-        return XML_MAPPER.writer()
-                .withRootName("xml")
-                .writeValueAsString(this);
+        return plan.xml(values, sign);
     }
 
     /**
@@ -148,7 +149,7 @@ public abstract class BaseModel {
      * @return the string
      */
     private String md5(String src) {
-        Digest digest = new MD5Digest();
+        MD5Digest digest = MD5_DIGEST.get();
         byte[] bytes = src.getBytes(StandardCharsets.UTF_8);
         digest.update(bytes, 0, bytes.length);
         byte[] md5Bytes = new byte[digest.getDigestSize()];
@@ -164,82 +165,73 @@ public abstract class BaseModel {
      */
     @SneakyThrows
     private String hmacSha256(String src) {
-        String algorithm = "HmacSHA256";
-        Mac sha256HMAC = Mac.getInstance(algorithm,"BC");
-        SecretKeySpec secretKeySpec = new SecretKeySpec(appSecret.getBytes(), algorithm);
-        sha256HMAC.init(secretKeySpec);
+        Mac sha256HMAC = HMAC_SHA256_MAC.get();
+        sha256HMAC.init(new SecretKeySpec(appSecret.getBytes(StandardCharsets.UTF_8), HMAC_SHA256_ALGORITHM));
         byte[] bytes = sha256HMAC.doFinal(src.getBytes(StandardCharsets.UTF_8));
         return Hex.toHexString(bytes).toUpperCase();
     }
 
     /**
-     * 按照格式拼接参数以生成签名
+     * 使用证书配置和商户号对应的共享客户端发起请求，客户端按证书缓存.
      *
-     * @param <T> the type parameter
-     * @param t   the t
-     * @return the map
+     * @param mchId  the mch id
+     * @param method the method
+     * @param url    the url
+     * @return the json node
      */
-    @SneakyThrows
-    private <T> String link(T t) {
-        Assert.hasText(appSecret, "wechat pay appSecret is required");
-          String json = OBJECT_MAPPER
-                .writeValueAsString(t);
-
-        TreeMap<String, String> map = OBJECT_MAPPER.readValue(json, new TypeReference<TreeMap<String, String>>() {
-        });
-
-        String query = map.entrySet()
-                .stream()
-                .map(entry -> entry.getKey().concat("=").concat(entry.getValue()))
-                .collect(Collectors.joining("&"));
-        return query.concat("&key=").concat(this.appSecret);
+    public JsonNode request(String mchId, HttpMethod method, String url) {
+        String key = String.join("\n", String.valueOf(certAbsolutePath), String.valueOf(certPath), mchId);
+        WechatV2HttpClient httpClient;
+        synchronized (HTTP_CLIENTS) {
+            httpClient = HTTP_CLIENTS.computeIfAbsent(key, k -> WechatV2HttpClient.of(certPath, certAbsolutePath, mchId));
+            // 仍在缓存中的客户端没有被关闭
+            httpClient.retain();
+        }
+        try {
+            return this.request(httpClient.restOperations(), method, url);
+        } finally {
+            httpClient.release();
+        }
     }
 
+    /**
+     * 关闭所有按证书共享的客户端，进行中的请求结束后释放连接.
+     *
+     * @since 1.0.20.RELEASE
+     */
+    public static void closeSharedClients() {
+        List<WechatV2HttpClient> clients;
+        synchronized (HTTP_CLIENTS) {
+            clients = new ArrayList<>(HTTP_CLIENTS.values());
+            HTTP_CLIENTS.clear();
+        }
+        clients.forEach(WechatV2HttpClient::close);
+    }
 
+    /**
+     * 使用指定的双向TLS客户端发起请求.
+     *
+     * @param restOperations the rest operations
+     * @param method         the method
+     * @param url            the url
+     * @return the json node
+     * @since 1.0.20.RELEASE
+     */
     @SneakyThrows
-    public JsonNode request(String mchId, HttpMethod method, String url) {
+    public JsonNode request(RestOperations restOperations, HttpMethod method, String url) {
         String xml = this.xml();
         RequestEntity<String> body = RequestEntity.method(method, UriComponentsBuilder.fromHttpUrl(url)
                 .build()
                 .toUri())
                 .contentType(MediaType.valueOf("application/x-www-form-urlencoded;charset=UTF-8"))
                 .body(xml);
-        ResponseEntity<String> responseEntity = this.getRestTemplateClientAuthentication(mchId)
-                .exchange(url, method, body, String.class);
+        ResponseEntity<String> responseEntity = restOperations.exchange(body, String.class);
 
         if (!responseEntity.getStatusCode().is2xxSuccessful()) {
             throw new PayException("wechat pay v2 error ");
         }
         String result = responseEntity.getBody();
 
-        return XML_MAPPER.readTree(result);
-    }
-
-
-    private RestTemplate getRestTemplateClientAuthentication(String mchId)
-            throws IOException, UnrecoverableKeyException, CertificateException, NoSuchAlgorithmException,
-            KeyStoreException, KeyManagementException {
-
-        Resource resource = certAbsolutePath != null ? new FileSystemResource(certAbsolutePath) :
-                new ClassPathResource(certPath == null ? "wechat/apiclient_cert.p12" : certPath);
-        char[] pem = mchId.toCharArray();
-
-        KeyStore store = KeyStore.getInstance("PKCS12");
-        store.load(resource.getInputStream(), pem);
-
-        // Trust own CA and all self-signed certs
-        SSLContext sslcontext = SSLContextBuilder.create()
-                .loadKeyMaterial(store, pem)
-                .build();
-        // Allow TLSv1 protocol only
-        HostnameVerifier hostnameVerifier = NoopHostnameVerifier.INSTANCE;
-        SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(sslcontext, new String[]{"TLSv1"},
-                null, hostnameVerifier);
-
-        CloseableHttpClient httpclient = HttpClients.custom()
-                .setSSLSocketFactory(sslsf)
-                .build();
-        HttpComponentsClientHttpRequestFactory clientHttpRequestFactory = new HttpComponentsClientHttpRequestFactory(httpclient);
-        return new RestTemplate(clientHttpRequestFactory);
+        return MAPPER_REGISTRY.xmlMapper().readTree(result);
     }
 }
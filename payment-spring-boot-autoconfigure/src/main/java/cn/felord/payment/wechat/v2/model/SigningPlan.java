@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v2.model;
+
+import cn.felord.payment.wechat.WechatMapperRegistry;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.introspect.AnnotatedMember;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * V2报文的签名、序列化计划.
+ * <p>
+ * 每个模型类型只通过Jackson内省一次（与V2的JSON配置一致：下划线命名、忽略{@code @JsonIgnore}），
+ * 按属性名排序并缓存访问器。之后每次请求只读取一遍属性值，同时用于拼接待签名串和写出XML，
+ * 不再经过 对象-JSON-{@code TreeMap} 的转换。属性值按{@link String#valueOf(Object)}转换，值为{@code null}的属性忽略。
+ *
+ * @author felord.cn
+ * @since 1.0.20.RELEASE
+ */
+final class SigningPlan {
+    private static final String SIGN = "sign";
+    private static final Map<Class<?>, SigningPlan> PLANS = new ConcurrentHashMap<>();
+    private final String[] names;
+    private final AnnotatedMember[] accessors;
+
+    private SigningPlan(Class<?> type, ObjectMapper objectMapper) {
+        BeanDescription description = objectMapper.getSerializationConfig()
+                .introspect(objectMapper.constructType(type));
+        List<BeanPropertyDefinition> properties = new ArrayList<>();
+        for (BeanPropertyDefinition property : description.findProperties()) {
+            // sign 不参与签名，签名完成后单独写出
+            if (property.couldSerialize() && !SIGN.equals(property.getName())) {
+                properties.add(property);
+            }
+        }
+        properties.sort(Comparator.comparing(BeanPropertyDefinition::getName));
+        this.names = new String[properties.size()];
+        this.accessors = new AnnotatedMember[properties.size()];
+        for (int i = 0; i < names.length; i++) {
+            AnnotatedMember accessor = properties.get(i).getAccessor();
+            accessor.fixAccess(true);
+            names[i] = properties.get(i).getName();
+            accessors[i] = accessor;
+        }
+    }
+
+    /**
+     * 获取模型类型的计划.
+     *
+     * @param type the type
+     * @return the signing plan
+     */
+    static SigningPlan of(Class<?> type) {
+        return PLANS.computeIfAbsent(type, clazz -> new SigningPlan(clazz, WechatMapperRegistry.defaultRegistry().objectMapper()));
+    }
+
+    /**
+     * 按属性名顺序读取属性值.
+     *
+     * @param model the model
+     * @return the values, {@code null} if absent
+     */
+    String[] values(Object model) {
+        String[] values = new String[accessors.length];
+        for (int i = 0; i < accessors.length; i++) {
+            Object value = accessors[i].getValue(model);
+            values[i] = value == null ? null : String.valueOf(value);
+        }
+        return values;
+    }
+
+    /**
+     * 待签名串  {@code k1=v1&k2=v2&key=appSecret}
+     *
+     * @param values    the values
+     * @param appSecret the app secret
+     * @return the string
+     */
+    String link(String[] values, String appSecret) {
+        StringBuilder builder = new StringBuilder(256);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                builder.append(names[i]).append('=').append(values[i]).append('&');
+            }
+        }
+        return builder.append("key=").append(appSecret).toString();
+    }
+
+    /**
+     * XML报文.
+     *
+     * @param values the values
+     * @param sign   the sign
+     * @return the string
+     */
+    String xml(String[] values, String sign) {
+        StringBuilder builder = new StringBuilder(512).append("<xml>");
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                element(builder, names[i], values[i]);
+            }
+        }
+        if (sign != null) {
+            element(builder, SIGN, sign);
+        }
+        return builder.append("</xml>").toString();
+    }
+
+    private static void element(StringBuilder builder, String name, String value) {
+        builder.append('<').append(name).append('>');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '<':
+                    builder.append("&lt;");
+                    break;
+                case '>':
+                    builder.append("&gt;");
+                    break;
+                case '&':
+                    builder.append("&amp;");
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+        builder.append("</").append(name).append('>');
+    }
+}
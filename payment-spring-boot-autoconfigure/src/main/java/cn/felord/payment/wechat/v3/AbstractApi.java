@@ -17,6 +17,7 @@
 package cn.felord.payment.wechat.v3;
 
 import cn.felord.payment.PayException;
+import cn.felord.payment.wechat.WechatMapperRegistry;
 import cn.felord.payment.wechat.enumeration.FundFlowAccountType;
 import cn.felord.payment.wechat.enumeration.TarType;
 import cn.felord.payment.wechat.enumeration.TradeBillType;
@@ -24,16 +25,9 @@ import cn.felord.payment.wechat.enumeration.WeChatServer;
 import cn.felord.payment.wechat.enumeration.WechatPayV3Type;
 import cn.felord.payment.wechat.v3.model.FundFlowBillParams;
 import cn.felord.payment.wechat.v3.model.TradeBillParams;
-import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.PropertyNamingStrategy;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
-import com.fasterxml.jackson.datatype.jsr310.ser.LocalDateSerializer;
-import com.fasterxml.jackson.datatype.jsr310.ser.LocalDateTimeSerializer;
-import com.fasterxml.jackson.datatype.jsr310.ser.LocalTimeSerializer;
 import org.springframework.core.io.Resource;
 import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
@@ -47,8 +41,6 @@ import org.springframework.web.util.UriComponentsBuilder;
 
 import java.net.URI;
 import java.time.LocalDate;
-import java.time.LocalDateTime;
-import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Objects;
 import java.util.Optional;
@@ -61,9 +53,9 @@ import java.util.Optional;
  */
 public abstract class AbstractApi {
     /**
-     * The Mapper.
+     * The Mapper registry.
      */
-    private final ObjectMapper mapper;
+    private final WechatMapperRegistry mapperRegistry;
     /**
      * The Wechat pay client.
      */
@@ -81,42 +73,34 @@ public abstract class AbstractApi {
      * @param tenantId        the tenant id
      */
     public AbstractApi(WechatPayClient wechatPayClient, String tenantId) {
-        this.mapper = new ObjectMapper();
-        applyObjectMapper(this.mapper);
+        this.mapperRegistry = wechatPayClient.mapperRegistry();
         this.wechatPayClient = wechatPayClient;
         Assert.hasText(tenantId, "tenantId is required");
-        if (!container().getTenantIds().contains(tenantId)) {
+        if (!container().contains(tenantId)) {
             throw new PayException("tenantId is not in wechatMetaContainer");
         }
         this.tenantId = tenantId;
     }
 
     /**
-     * Apply object mapper.
+     * Gets mapper.
      *
-     * @param mapper the mapper
+     * @return the mapper
      */
-    private void applyObjectMapper(ObjectMapper mapper) {
-        JavaTimeModule javaTimeModule = new JavaTimeModule();
-        javaTimeModule.addSerializer(LocalDate.class, new LocalDateSerializer(DateTimeFormatter.ISO_LOCAL_DATE));
-        javaTimeModule.addSerializer(LocalDateTime.class, new LocalDateTimeSerializer(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
-        javaTimeModule.addSerializer(LocalTime.class, new LocalTimeSerializer(DateTimeFormatter.ISO_LOCAL_TIME));
-        mapper.setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE)
-                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
-                // empty string error
-                .configure(DeserializationFeature.ACCEPT_EMPTY_STRING_AS_NULL_OBJECT, true)
-                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
-                .registerModule(javaTimeModule);
+    public ObjectMapper getMapper() {
+        return mapperRegistry.objectMapper();
     }
 
-
     /**
-     * Gets mapper.
+     * 序列化请求参数，按参数的实际类型复用序列化器.
      *
-     * @return the mapper
+     * @param params the params
+     * @return the json
+     * @throws JsonProcessingException the json processing exception
      */
-    public ObjectMapper getMapper() {
-        return mapper;
+    private String json(Object params) throws JsonProcessingException {
+        return Objects.isNull(params) ? this.getMapper().writeValueAsString(null) :
+                mapperRegistry.writer(params.getClass()).writeValueAsString(params);
     }
 
     /**
@@ -166,7 +150,7 @@ public abstract class AbstractApi {
         try {
             return RequestEntity.post(uri)
                     .header("Pay-TenantId", tenantId)
-                    .body(mapper.writeValueAsString(params));
+                    .body(this.json(params));
         } catch (JsonProcessingException e) {
             throw new PayException("wechat app pay json failed");
         }
@@ -185,7 +169,7 @@ public abstract class AbstractApi {
             return RequestEntity.post(uri)
                     .header("Pay-TenantId", tenantId)
                     .headers(httpHeaders)
-                    .body(mapper.writeValueAsString(params));
+                    .body(this.json(params));
         } catch (JsonProcessingException e) {
             throw new PayException("wechat app pay json failed");
         }
@@ -228,7 +212,7 @@ public abstract class AbstractApi {
         try {
             return RequestEntity.patch(uri)
                     .header("Pay-TenantId", tenantId)
-                    .body(mapper.writeValueAsString(params));
+                    .body(this.json(params));
         } catch (JsonProcessingException e) {
             throw new PayException("wechat app pay json failed");
         }
@@ -247,7 +231,7 @@ public abstract class AbstractApi {
             return RequestEntity.patch(uri)
                     .header("Pay-TenantId", tenantId)
                     .headers(httpHeaders)
-                    .body(mapper.writeValueAsString(params));
+                    .body(this.json(params));
         } catch (JsonProcessingException e) {
             throw new PayException("wechat app pay json failed");
         }
@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 有容量上限的对象池，所有线程共享.
+ * <p>
+ * 取出的对象由调用方独占，用完后归还；池中没有空闲对象时由调用方自行创建，归还时超出容量的直接丢弃。
+ * 不绑定线程，虚拟线程等大量短生命周期的线程也只会复用池中的对象，不会各自持有一份。
+ *
+ * @param <T> the type parameter
+ * @author felord.cn
+ * @since 1.0.20.RELEASE
+ */
+final class BoundedPool<T> {
+    /**
+     * 默认容量，加解密、签名都是CPU密集型操作，同时使用的对象数量与CPU核数相当
+     */
+    static final int DEFAULT_CAPACITY = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    private final Queue<T> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int capacity;
+
+    /**
+     * Instantiates a new Bounded pool.
+     */
+    BoundedPool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Instantiates a new Bounded pool.
+     *
+     * @param capacity the capacity
+     */
+    BoundedPool(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * 取出一个空闲对象.
+     *
+     * @return the t, null if none
+     */
+    T poll() {
+        T object = idle.poll();
+        if (object != null) {
+            size.decrementAndGet();
+        }
+        return object;
+    }
+
+    /**
+     * 归还对象，超出容量时丢弃.
+     *
+     * @param object the object
+     */
+    void offer(T object) {
+        if (size.incrementAndGet() <= capacity) {
+            idle.offer(object);
+        } else {
+            size.decrementAndGet();
+        }
+    }
+}
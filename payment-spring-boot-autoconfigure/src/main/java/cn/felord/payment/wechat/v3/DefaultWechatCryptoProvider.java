@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+import cn.felord.payment.wechat.WechatPayProperties;
+
+import javax.crypto.Cipher;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+
+/**
+ * 按照配置为每类算法选择JCA Provider.
+ * <p>
+ * 默认与以前的版本一致使用{@code BC}；配置为{@link #JDK}时由JDK按优先级选择（通常为SunRsaSign、SunJCE，可以利用AES-NI等硬件加速），
+ * 切换前应在目标JVM上做基准测试确认收益。
+ *
+ * @author felord.cn
+ * @since 1.0.20.RELEASE
+ */
+public class DefaultWechatCryptoProvider implements WechatCryptoProvider {
+    /**
+     * 使用JDK默认的Provider.
+     */
+    public static final String JDK = "JDK";
+    private static final String AES = "AES";
+    private static final String X509 = "X.509";
+    private final WechatPayProperties.Crypto crypto;
+
+    /**
+     * Instantiates a new Default wechat crypto provider.
+     *
+     * @param crypto the crypto
+     */
+    public DefaultWechatCryptoProvider(WechatPayProperties.Crypto crypto) {
+        this.crypto = crypto;
+    }
+
+    @Override
+    public Signature signature(String algorithm) throws GeneralSecurityException {
+        String provider = crypto.getSignatureProvider();
+        return isJdk(provider) ? Signature.getInstance(algorithm) : Signature.getInstance(algorithm, provider);
+    }
+
+    @Override
+    public Cipher cipher(String transformation) throws GeneralSecurityException {
+        String provider = transformation.startsWith(AES) ? crypto.getAesProvider() : crypto.getRsaProvider();
+        return isJdk(provider) ? Cipher.getInstance(transformation) : Cipher.getInstance(transformation, provider);
+    }
+
+    @Override
+    public CertificateFactory certificateFactory() throws GeneralSecurityException {
+        String provider = crypto.getCertificateProvider();
+        return isJdk(provider) ? CertificateFactory.getInstance(X509) : CertificateFactory.getInstance(X509, provider);
+    }
+
+    private static boolean isJdk(String provider) {
+        return provider == null || JDK.equalsIgnoreCase(provider);
+    }
+}
@@ -19,31 +19,34 @@ package cn.felord.payment.wechat.v3;
 
 import cn.felord.payment.PayException;
 import org.springframework.core.io.Resource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
+import java.io.InputStream;
 import java.security.KeyPair;
 import java.security.KeyStore;
-import java.security.KeyStoreException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * 证书工具
+ * <p>
+ * 每次加载使用独立的{@link KeyStore}，可以并发调用；{@link #initWechatMetaBeans(Map, int)}用于批量并行加载。
  *
  * @author felord.cn
  * @since 1.0.0.RELEASE
  */
 public class KeyPairFactory {
     private static final String CERT_ALIAS = "Tenpay Certificate";
-    private static final KeyStore PKCS12_KEY_STORE;
-
-    static {
-        try {
-            PKCS12_KEY_STORE = KeyStore.getInstance("PKCS12");
-        } catch (KeyStoreException e) {
-            throw new PayException(" wechat pay keystore initialization failed");
-        }
-    }
+    private static final String PKCS12 = "PKCS12";
 
     public WechatMetaBean initWechatMetaBean(Resource resource, String keyPass) {
         return this.initWechatMetaBean(resource, CERT_ALIAS, keyPass);
@@ -60,13 +63,14 @@ public class KeyPairFactory {
     public WechatMetaBean initWechatMetaBean(Resource resource, String keyAlias, String keyPass) {
 
         char[] pem = keyPass.toCharArray();
-        try {
-            PKCS12_KEY_STORE.load(resource.getInputStream(), pem);
-            X509Certificate certificate = (X509Certificate) PKCS12_KEY_STORE.getCertificate(keyAlias);
+        try (InputStream inputStream = resource.getInputStream()) {
+            KeyStore keyStore = KeyStore.getInstance(PKCS12);
+            keyStore.load(inputStream, pem);
+            X509Certificate certificate = (X509Certificate) keyStore.getCertificate(keyAlias);
             certificate.checkValidity();
             String serialNumber = certificate.getSerialNumber().toString(16).toUpperCase();
             PublicKey publicKey = certificate.getPublicKey();
-            PrivateKey storeKey = (PrivateKey) PKCS12_KEY_STORE.getKey(keyAlias, pem);
+            PrivateKey storeKey = (PrivateKey) keyStore.getKey(keyAlias, pem);
             WechatMetaBean wechatMetaBean = new WechatMetaBean();
             wechatMetaBean.setKeyPair(new KeyPair(publicKey, storeKey));
             wechatMetaBean.setSerialNumber(serialNumber);
@@ -75,4 +79,148 @@ public class KeyPairFactory {
             throw new PayException("Cannot load keys from store: " + resource, e);
         }
     }
+
+    /**
+     * 使用有界线程池并行加载多个证书，单个证书加载失败不影响其它证书.
+     *
+     * @param sources     key = 租户id  value = 证书
+     * @param parallelism 最大并行数
+     * @return the batch result
+     * @since 1.0.20.RELEASE
+     */
+    public BatchResult initWechatMetaBeans(Map<String, KeyStoreSource> sources, int parallelism) {
+        if (sources.isEmpty()) {
+            return new BatchResult(Collections.emptyMap(), Collections.emptyMap());
+        }
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("wechat-keystore-loader-");
+        threadFactory.setDaemon(true);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, sources.size())), threadFactory);
+        try {
+            return this.initWechatMetaBeans(sources, executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * 在指定的线程池中并行加载多个证书，单个证书加载失败不影响其它证书.
+     *
+     * @param sources  key = 租户id  value = 证书
+     * @param executor the executor
+     * @return the batch result
+     * @since 1.0.20.RELEASE
+     */
+    public BatchResult initWechatMetaBeans(Map<String, KeyStoreSource> sources, Executor executor) {
+        Map<String, WechatMetaBean> loaded = new ConcurrentHashMap<>();
+        Map<String, PayException> failures = new ConcurrentHashMap<>();
+        CompletableFuture.allOf(sources.entrySet()
+                        .stream()
+                        .map(entry -> CompletableFuture.runAsync(() -> {
+                            KeyStoreSource source = entry.getValue();
+                            try {
+                                loaded.put(entry.getKey(), this.initWechatMetaBean(source.getResource(), source.getKeyAlias(), source.getKeyPass()));
+                            } catch (PayException e) {
+                                failures.put(entry.getKey(), e);
+                            } catch (RuntimeException e) {
+                                failures.put(entry.getKey(), new PayException("Cannot load keys from store: " + source.getResource(), e));
+                            }
+                        }, executor))
+                        .toArray(CompletableFuture[]::new))
+                .join();
+        return new BatchResult(new LinkedHashMap<>(loaded), new LinkedHashMap<>(failures));
+    }
+
+    /**
+     * 证书来源.
+     *
+     * @since 1.0.20.RELEASE
+     */
+    public static final class KeyStoreSource {
+        private final Resource resource;
+        private final String keyAlias;
+        private final String keyPass;
+
+        /**
+         * Instantiates a new Key store source.
+         *
+         * @param resource the resource
+         * @param keyAlias the key alias
+         * @param keyPass  the key pass
+         */
+        public KeyStoreSource(Resource resource, String keyAlias, String keyPass) {
+            this.resource = resource;
+            this.keyAlias = keyAlias;
+            this.keyPass = keyPass;
+        }
+
+        /**
+         * 微信支付API证书，别名为{@code Tenpay Certificate}，密码为商户号.
+         *
+         * @param resource the resource
+         * @param keyPass  the key pass
+         * @return the key store source
+         */
+        public static KeyStoreSource of(Resource resource, String keyPass) {
+            return new KeyStoreSource(resource, CERT_ALIAS, keyPass);
+        }
+
+        public Resource getResource() {
+            return resource;
+        }
+
+        public String getKeyAlias() {
+            return keyAlias;
+        }
+
+        public String getKeyPass() {
+            return keyPass;
+        }
+    }
+
+    /**
+     * 批量加载结果.
+     *
+     * @since 1.0.20.RELEASE
+     */
+    public static final class BatchResult {
+        private final Map<String, WechatMetaBean> loaded;
+        private final Map<String, PayException> failures;
+
+        private BatchResult(Map<String, WechatMetaBean> loaded, Map<String, PayException> failures) {
+            this.loaded = Collections.unmodifiableMap(loaded);
+            this.failures = Collections.unmodifiableMap(failures);
+        }
+
+        /**
+         * 加载成功的证书  key = 租户id
+         *
+         * @return the loaded
+         */
+        public Map<String, WechatMetaBean> getLoaded() {
+            return loaded;
+        }
+
+        /**
+         * 加载失败的原因  key = 租户id
+         *
+         * @return the failures
+         */
+        public Map<String, PayException> getFailures() {
+            return failures;
+        }
+
+        /**
+         * 存在加载失败时抛出异常，包含所有失败的租户.
+         *
+         * @return this
+         */
+        public BatchResult throwIfFailed() {
+            if (failures.isEmpty()) {
+                return this;
+            }
+            PayException exception = new PayException("Cannot load keys of tenants: " + failures.keySet());
+            failures.values().forEach(exception::addSuppressed);
+            throw exception;
+        }
+    }
 }
@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 池化的加解密、签名对象.
+ * <p>
+ * {@link java.security.Signature}、{@link javax.crypto.Cipher}非线程安全，每次{@code getInstance}都需要检索Provider并创建对象。
+ * 这里按租户id或者证书序列号等标识各维护一个所有线程共享的{@link BoundedPool}，保存已初始化的实例，
+ * 使用时取出独占、用完归还，同一标识的密钥（按引用比较）变化时仅重新初始化。实例不绑定线程，虚拟线程下同样可以复用。
+ * 签名、验签和加解密完成后这些对象会回到初始化后的状态，因此可以安全复用；执行失败的实例直接丢弃。
+ * 租户变更或者移除后通过{@link #evict(Object)}丢弃对应的实例。
+ *
+ * @param <K> 密钥类型
+ * @param <T> 加解密、签名对象类型
+ * @author felord.cn
+ * @since 1.0.20.RELEASE
+ */
+final class PooledCrypto<K, T> {
+    private final Map<Object, BoundedPool<Slot<K, T>>> pools = new ConcurrentHashMap<>();
+    private final Factory<T> factory;
+    private final Initializer<K, T> initializer;
+
+    /**
+     * Instantiates a new Pooled crypto.
+     *
+     * @param factory     the factory
+     * @param initializer the initializer
+     */
+    PooledCrypto(Factory<T> factory, Initializer<K, T> initializer) {
+        this.factory = factory;
+        this.initializer = initializer;
+    }
+
+    /**
+     * 从该标识的池中取出实例执行操作，池中没有空闲实例时创建.
+     *
+     * @param <R>      the type parameter
+     * @param id       实例的标识，例如租户id、证书序列号
+     * @param key      the key
+     * @param function the function
+     * @return the r
+     * @throws GeneralSecurityException the general security exception
+     */
+    <R> R execute(Object id, K key, Function<T, R> function) throws GeneralSecurityException {
+        BoundedPool<Slot<K, T>> pool = pools.computeIfAbsent(id, k -> new BoundedPool<>());
+        Slot<K, T> slot = pool.poll();
+        if (slot == null) {
+            slot = new Slot<>(factory.create());
+        }
+        if (slot.key != key) {
+            initializer.init(slot.instance, key);
+            slot.key = key;
+        }
+        // 执行失败时不归还
+        R result = function.apply(slot.instance);
+        pool.offer(slot);
+        return result;
+    }
+
+    /**
+     * 丢弃该标识的所有空闲实例，正在使用的实例归还到已丢弃的池中随之回收.
+     *
+     * @param id 实例的标识
+     */
+    void evict(Object id) {
+        pools.remove(id);
+    }
+
+    /**
+     * 创建实例.
+     *
+     * @param <T> the type parameter
+     */
+    @FunctionalInterface
+    interface Factory<T> {
+        /**
+         * Create t.
+         *
+         * @return the t
+         * @throws GeneralSecurityException the general security exception
+         */
+        T create() throws GeneralSecurityException;
+    }
+
+    /**
+     * 使用密钥初始化实例.
+     *
+     * @param <K> the type parameter
+     * @param <T> the type parameter
+     */
+    @FunctionalInterface
+    interface Initializer<K, T> {
+        /**
+         * Init.
+         *
+         * @param instance the instance
+         * @param key      the key
+         * @throws GeneralSecurityException the general security exception
+         */
+        void init(T instance, K key) throws GeneralSecurityException;
+    }
+
+    /**
+     * 使用实例执行操作.
+     *
+     * @param <T> the type parameter
+     * @param <R> the type parameter
+     */
+    @FunctionalInterface
+    interface Function<T, R> {
+        /**
+         * Apply r.
+         *
+         * @param instance the instance
+         * @return the r
+         * @throws GeneralSecurityException the general security exception
+         */
+        R apply(T instance) throws GeneralSecurityException;
+    }
+
+    private static final class Slot<K, T> {
+        private final T instance;
+        private K key;
+
+        private Slot(T instance) {
+            this.instance = instance;
+        }
+    }
+}
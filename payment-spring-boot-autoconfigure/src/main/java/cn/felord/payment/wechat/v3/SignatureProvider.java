@@ -18,6 +18,7 @@ package cn.felord.payment.wechat.v3;
 
 
 import cn.felord.payment.PayException;
+import cn.felord.payment.wechat.WechatPayProperties;
 import cn.felord.payment.wechat.enumeration.WeChatServer;
 import cn.felord.payment.wechat.enumeration.WechatPayV3Type;
 import cn.felord.payment.wechat.v3.model.ResponseSignVerifyParams;
@@ -30,20 +31,23 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.springframework.http.*;
 import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.http.converter.xml.MappingJackson2XmlHttpMessageConverter;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.util.AlternativeJdkIdGenerator;
 import org.springframework.util.Assert;
 import org.springframework.util.Base64Utils;
 import org.springframework.util.IdGenerator;
+import org.springframework.util.StringUtils;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestOperations;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponents;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import javax.crypto.Cipher;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.GCMParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.security.cert.Certificate;
@@ -52,7 +56,13 @@ import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * 签名 加签 验签
@@ -73,22 +83,71 @@ public class SignatureProvider {
      * The constant ID_GENERATOR.
      */
     private final IdGenerator nonceStrGenerator = new AlternativeJdkIdGenerator();
-    /**
-     * The constant SCHEMA.
-     */
-    private static final String SCHEMA = "WECHATPAY2-SHA256-RSA2048 ";
     /**
      * The constant TOKEN_PATTERN.
      */
     public static final String TOKEN_PATTERN = "mchid=\"%s\",nonce_str=\"%s\",timestamp=\"%d\",serial_no=\"%s\",signature=\"%s\"";
     /**
-     * 微信平台证书容器  key = 序列号  value = 证书对象
+     * 微信平台证书容器，按序列号和租户索引
+     */
+    private final WechatCertificateContainer certificateContainer = new WechatCertificateContainer();
+    /**
+     * 正在刷新的平台证书  key = 租户id  value = 刷新任务，同一租户的并发刷新共享同一次请求
+     */
+    private final Map<String, CompletableFuture<Void>> refreshingCertificates = new ConcurrentHashMap<>();
+    /**
+     * 刷新后仍然不存在的证书序列号  key = 序列号（指定租户时带租户id前缀）  value = 过期时间（纳秒）
+     */
+    private final Map<String, Long> unknownSerials = new ConcurrentHashMap<>();
+    /**
+     * 记录的不存在证书序列号上限
+     */
+    private static final int MAX_UNKNOWN_SERIALS = 10000;
+    private final long serialMissTtlNanos;
+    /**
+     * 签名算法
+     */
+    private static final String SHA256_WITH_RSA = "SHA256withRSA";
+    /**
+     * 敏感信息加解密算法
+     */
+    private static final String RSA_OAEP = "RSA/ECB/OAEPWithSHA-1AndMGF1Padding";
+    /**
+     * AES-GCM 解密算法
+     */
+    private static final String AES_GCM = "AES/GCM/NoPadding";
+    /**
+     * 验签名串分隔符
      */
-    private static final Set<X509WechatCertificateInfo> CERTIFICATE_SET = Collections.synchronizedSet(new HashSet<>());
+    private static final byte LF = '\n';
     /**
-     * 加密算法提供方 - BouncyCastle
+     * 加解密、签名算法的JCA Provider
      */
-    private static final String BC_PROVIDER = "BC";
+    private final WechatCryptoProvider cryptoProvider;
+    /**
+     * 池化的签名对象，使用商户API私钥
+     */
+    private final PooledCrypto<PrivateKey, Signature> signers;
+    /**
+     * 池化的验签对象，使用微信平台证书
+     */
+    private final PooledCrypto<Certificate, Signature> verifiers;
+    /**
+     * 池化的敏感信息加密对象，使用微信平台证书
+     */
+    private final PooledCrypto<Certificate, Cipher> encryptors;
+    /**
+     * 池化的敏感信息解密对象，使用商户API私钥
+     */
+    private final PooledCrypto<PrivateKey, Cipher> decryptors;
+    /**
+     * 回调、平台证书报文的AES-GCM解密
+     */
+    private final WechatAesGcmDecryptor aesDecryptor;
+    /**
+     * 请求头Authorization构建器
+     */
+    private final WechatAuthorizationBuilder authorizationBuilder;
 
 
     /**
@@ -99,6 +158,22 @@ public class SignatureProvider {
      * The Wechat meta container.
      */
     private final WechatMetaContainer wechatMetaContainer;
+    /**
+     * 平台证书本地缓存，未配置缓存目录时为null
+     */
+    private final WechatCertificateFileCache certificateFileCache;
+    /**
+     * 启动时平台证书的初始化任务
+     */
+    private final CompletableFuture<Void> certificateBootstrap;
+    /**
+     * 回调防重放，为空时不检查
+     */
+    private volatile WechatReplayGuard replayGuard;
+    /**
+     * 平台证书下载的域名路由
+     */
+    private volatile WechatEndpointRouter endpointRouter = new WechatEndpointRouter(new WechatPayProperties.Endpoint());
 
     /**
      * Instantiates a new Signature provider.
@@ -106,6 +181,29 @@ public class SignatureProvider {
      * @param wechatMetaContainer the wechat meta container
      */
     public SignatureProvider(WechatMetaContainer wechatMetaContainer) {
+        this(wechatMetaContainer, new WechatPayProperties.Certificate());
+    }
+
+    /**
+     * Instantiates a new Signature provider.
+     *
+     * @param wechatMetaContainer the wechat meta container
+     * @param certificate         the platform certificate properties
+     * @since 1.0.20.RELEASE
+     */
+    public SignatureProvider(WechatMetaContainer wechatMetaContainer, WechatPayProperties.Certificate certificate) {
+        this(wechatMetaContainer, certificate, new DefaultWechatCryptoProvider(new WechatPayProperties.Crypto()));
+    }
+
+    /**
+     * Instantiates a new Signature provider.
+     *
+     * @param wechatMetaContainer the wechat meta container
+     * @param certificate         the platform certificate properties
+     * @param cryptoProvider      the crypto provider
+     * @since 1.0.20.RELEASE
+     */
+    public SignatureProvider(WechatMetaContainer wechatMetaContainer, WechatPayProperties.Certificate certificate, WechatCryptoProvider cryptoProvider) {
         Provider bouncyCastleProvider = new BouncyCastleProvider();
         Security.addProvider(bouncyCastleProvider);
         RestTemplate restOperations = new RestTemplate();
@@ -114,9 +212,140 @@ public class SignatureProvider {
         restOperations.setMessageConverters(messageConverters);
         this.restOperations = restOperations;
         this.wechatMetaContainer = wechatMetaContainer;
-        wechatMetaContainer.getTenantIds().forEach(this::refreshCertificate);
+        this.cryptoProvider = cryptoProvider;
+        this.serialMissTtlNanos = Objects.isNull(certificate.getMissTtl()) ? 0 : certificate.getMissTtl().toNanos();
+        this.signers = new PooledCrypto<>(() -> cryptoProvider.signature(SHA256_WITH_RSA), Signature::initSign);
+        this.verifiers = new PooledCrypto<>(() -> cryptoProvider.signature(SHA256_WITH_RSA), Signature::initVerify);
+        this.encryptors = new PooledCrypto<>(() -> cryptoProvider.cipher(RSA_OAEP),
+                (cipher, platformCertificate) -> cipher.init(Cipher.ENCRYPT_MODE, platformCertificate.getPublicKey()));
+        this.decryptors = new PooledCrypto<>(() -> cryptoProvider.cipher(RSA_OAEP),
+                (cipher, privateKey) -> cipher.init(Cipher.DECRYPT_MODE, privateKey));
+        this.authorizationBuilder = new WechatAuthorizationBuilder(this.signers);
+        this.aesDecryptor = new WechatAesGcmDecryptor(() -> cryptoProvider.cipher(AES_GCM));
+        wechatMetaContainer.addListener(this::onTenantChange);
+        String cacheDir = certificate.getCacheDir();
+        this.certificateFileCache = StringUtils.hasText(cacheDir) ? new WechatCertificateFileCache(cacheDir, cryptoProvider) : null;
+        this.certificateBootstrap = this.bootstrapCertificates(certificate.getBootstrap());
     }
 
+    /**
+     * 租户配置变化、移除或者被淘汰出缓存后丢弃其平台证书、请求头缓存以及池化的加解密、签名对象，变化的租户在下次使用时重新获取证书.
+     *
+     * @param event the event
+     */
+    private void onTenantChange(WechatTenantChangeEvent event) {
+        Stream.of(event.getUpdated(), event.getRemoved(), event.getEvicted())
+                .flatMap(Set::stream)
+                .forEach(tenantId -> {
+                    certificateContainer.getAllByTenant(tenantId).forEach(info -> {
+                        verifiers.evict(info.getWechatPaySerial());
+                        encryptors.evict(info.getX509Certificate());
+                    });
+                    certificateContainer.remove(tenantId);
+                    authorizationBuilder.evict(tenantId);
+                    signers.evict(tenantId);
+                    decryptors.evict(tenantId);
+                    aesDecryptor.evict(tenantId);
+                });
+    }
+
+    /**
+     * 启动时初始化所有租户的平台证书.
+     * <p>
+     * 配置了本地缓存时优先加载缓存的证书，加载成功的租户随后在后台重新获取以校验是否有更新。
+     *
+     * @param bootstrap the bootstrap
+     * @return the completable future
+     */
+    private CompletableFuture<Void> bootstrapCertificates(WechatPayProperties.Bootstrap bootstrap) {
+        WechatPayProperties.Bootstrap.Mode mode = bootstrap.getMode();
+        if (WechatPayProperties.Bootstrap.Mode.LAZY.equals(mode)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (wechatMetaContainer.isLazy()) {
+            // 按需加载租户时启动阶段不加载租户，平台证书同样在首次使用时获取
+            log.info("wechat pay tenants are loaded lazily, certificate bootstrap mode {} is replaced by LAZY", mode);
+            return CompletableFuture.completedFuture(null);
+        }
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("wechat-certificate-bootstrap-");
+        threadFactory.setDaemon(true);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, bootstrap.getConcurrency()), threadFactory);
+        CompletableFuture<Void> ready;
+        CompletableFuture<Void> revalidated;
+        if (WechatPayProperties.Bootstrap.Mode.SYNC.equals(mode)) {
+            Set<String> tenantIds = wechatMetaContainer.getTenantIds();
+            Set<String> cached = this.loadCachedCertificates(tenantIds);
+            Set<String> missing = tenantIds.stream()
+                    .filter(tenantId -> !cached.contains(tenantId))
+                    .collect(Collectors.toSet());
+            this.refreshCertificates(missing, executor).join();
+            Set<String> failed = missing.stream()
+                    .filter(tenantId -> certificateContainer.getAllByTenant(tenantId).isEmpty())
+                    .collect(Collectors.toSet());
+            if (!failed.isEmpty()) {
+                executor.shutdown();
+                throw new PayException("wechat pay platform certificates bootstrap failed, tenants " + failed);
+            }
+            ready = CompletableFuture.completedFuture(null);
+            revalidated = this.refreshCertificates(cached, executor);
+        } else {
+            CompletableFuture<Set<String>> tenantIds = CompletableFuture.supplyAsync(wechatMetaContainer::getTenantIds, executor);
+            CompletableFuture<Set<String>> cached = tenantIds.thenApply(this::loadCachedCertificates);
+            ready = tenantIds.thenCombine(cached, (all, hit) -> all.stream()
+                            .filter(tenantId -> !hit.contains(tenantId))
+                            .collect(Collectors.toSet()))
+                    .thenCompose(missing -> this.refreshCertificates(missing, executor))
+                    .whenComplete((v, e) -> {
+                        if (Objects.nonNull(e)) {
+                            log.warn("wechat pay platform certificates bootstrap failed", e);
+                        } else {
+                            log.info("wechat pay platform certificates bootstrap completed");
+                        }
+                    });
+            revalidated = cached.thenCompose(hit -> this.refreshCertificates(hit, executor));
+        }
+        CompletableFuture.allOf(ready, revalidated).whenComplete((v, e) -> executor.shutdown());
+        return ready;
+    }
+
+    /**
+     * 从本地缓存加载平台证书.
+     *
+     * @param tenantIds the tenant ids
+     * @return 成功加载的租户
+     */
+    private Set<String> loadCachedCertificates(Set<String> tenantIds) {
+        if (Objects.isNull(certificateFileCache)) {
+            return Collections.emptySet();
+        }
+        Set<String> cached = new HashSet<>();
+        for (String tenantId : tenantIds) {
+            String apiV3Key = wechatMetaContainer.getWechatMeta(tenantId).getV3().getAppV3Secret();
+            List<X509WechatCertificateInfo> certificates = certificateFileCache.load(tenantId, apiV3Key);
+            if (!certificates.isEmpty()) {
+                certificateContainer.replace(tenantId, certificates);
+                cached.add(tenantId);
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * 在线程池中刷新多个租户的平台证书，失败的租户仅记录日志.
+     *
+     * @param tenantIds the tenant ids
+     * @param executor  the executor
+     * @return the completable future
+     */
+    private CompletableFuture<Void> refreshCertificates(Collection<String> tenantIds, ExecutorService executor) {
+        return CompletableFuture.allOf(tenantIds.stream()
+                .map(tenantId -> CompletableFuture.runAsync(() -> this.refreshCertificate(tenantId), executor)
+                        .exceptionally(e -> {
+                            log.warn("wechat pay platform certificates refresh failed, tenant {}", tenantId, e);
+                            return null;
+                        }))
+                .toArray(CompletableFuture[]::new));
+    }
 
     /**
      * 我方请求前用 SHA256withRSA 加签，使用API证书.
@@ -129,21 +358,8 @@ public class SignatureProvider {
      */
     @SneakyThrows
     public String requestSign(String tenantId, String method, String canonicalUrl, String body) {
-
-        long timestamp = Instant.now().getEpochSecond();
-        String nonceStr = nonceStrGenerator.generateId()
-                .toString()
-                .replaceAll("-", "");
         WechatMetaBean wechatMetaBean = wechatMetaContainer.getWechatMeta(tenantId);
-        PrivateKey privateKey = wechatMetaBean.getKeyPair().getPrivate();
-        String encode = this.doRequestSign(privateKey, method, canonicalUrl, String.valueOf(timestamp), nonceStr, body);
-        // 序列号
-        String serialNo = wechatMetaBean.getSerialNumber();
-        // 生成token
-        String token = String.format(TOKEN_PATTERN,
-                wechatMetaBean.getV3().getMchId(),
-                nonceStr, timestamp, serialNo, encode);
-        return SCHEMA.concat(token);
+        return authorizationBuilder.build(wechatMetaBean, method, canonicalUrl, body);
     }
 
 
@@ -157,39 +373,171 @@ public class SignatureProvider {
      */
     @SneakyThrows
     public String doRequestSign(PrivateKey privateKey, String... orderedComponents) {
-        Signature signer = Signature.getInstance("SHA256withRSA", BC_PROVIDER);
-        signer.initSign(privateKey);
         final String signatureStr = createSign(orderedComponents);
-        signer.update(signatureStr.getBytes(StandardCharsets.UTF_8));
-        return Base64Utils.encodeToString(signer.sign());
+        return signers.execute(privateKey, privateKey, signer -> {
+            signer.update(signatureStr.getBytes(StandardCharsets.UTF_8));
+            return Base64Utils.encodeToString(signer.sign());
+        });
     }
 
     /**
      * 我方对响应验签，和应答签名做比较，使用微信平台证书.
+     * <p>
+     * 本地没有对应序列号的证书时会依次刷新各租户的证书，找到后即停止；刷新所有租户后仍然不存在的序列号
+     * 在{@code wechat.pay.certificate.miss-ttl}内直接验签失败，不会再次刷新。
      *
      * @param params the params
      * @return the boolean
+     * @deprecated 不知道租户时只能逐个刷新所有租户的证书，请使用{@link #responseSignVerify(String, ResponseSignVerifyParams)}
      */
+    @Deprecated
     public boolean responseSignVerify(ResponseSignVerifyParams params) {
-
         String wechatpaySerial = params.getWechatpaySerial();
-        X509WechatCertificateInfo certificate = CERTIFICATE_SET.stream()
-                .filter(cert -> Objects.equals(wechatpaySerial, cert.getWechatPaySerial()))
-                .findAny()
-                .orElseGet(() -> {
-                    wechatMetaContainer.getTenantIds().forEach(this::refreshCertificate);
-                    return CERTIFICATE_SET.stream()
-                            .filter(cert -> Objects.equals(wechatpaySerial, cert.getWechatPaySerial()))
-                            .findAny()
-                            .orElseThrow(() -> new PayException("cannot obtain the certificate"));
-                });
+        X509WechatCertificateInfo certificate = certificateContainer.getBySerial(wechatpaySerial);
+        if (Objects.isNull(certificate) && !this.isUnknownSerial(wechatpaySerial)) {
+            for (String tenantId : wechatMetaContainer.getTenantIds()) {
+                this.refreshCertificate(tenantId);
+                certificate = certificateContainer.getBySerial(wechatpaySerial);
+                if (Objects.nonNull(certificate)) {
+                    break;
+                }
+            }
+            if (Objects.isNull(certificate)) {
+                this.markUnknownSerial(wechatpaySerial);
+            }
+        }
+        return this.doResponseSignVerify(certificate, params, String.valueOf(params.getBody()).getBytes(StandardCharsets.UTF_8));
+    }
 
+    /**
+     * 我方对响应验签，和应答签名做比较，使用微信平台证书.
+     * <p>
+     * 本地没有对应序列号的证书时只刷新该租户的证书，刷新后仍然不存在的序列号在{@code wechat.pay.certificate.miss-ttl}内不会再次刷新。
+     *
+     * @param tenantId the tenant id
+     * @param params   the params
+     * @return the boolean
+     * @since 1.0.20.RELEASE
+     */
+    public boolean responseSignVerify(String tenantId, ResponseSignVerifyParams params) {
+        return this.responseSignVerify(tenantId, params, String.valueOf(params.getBody()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 我方对响应验签，使用原始响应体字节，避免反序列化后再序列化造成的差异.
+     * <p>
+     * {@link ResponseSignVerifyParams#getBody()}不参与验签。
+     *
+     * @param tenantId the tenant id
+     * @param params   the params
+     * @param body     the raw response body
+     * @return the boolean
+     * @since 1.0.20.RELEASE
+     */
+    public boolean responseSignVerify(String tenantId, ResponseSignVerifyParams params, byte[] body) {
+        X509WechatCertificateInfo certificate = this.certificate(tenantId, params.getWechatpaySerial());
+        return this.doResponseSignVerify(certificate, params, body);
+    }
+
+    /**
+     * 回调验签，设置了{@link WechatReplayGuard}时先检查时间戳和随机串，API响应的验签不做该检查.
+     *
+     * @param tenantId the tenant id
+     * @param params   the params
+     * @return the boolean
+     * @since 1.0.20.RELEASE
+     */
+    public boolean callbackSignVerify(String tenantId, ResponseSignVerifyParams params) {
+        WechatReplayGuard guard = this.replayGuard;
+        if (guard != null && !guard.check(params)) {
+            return false;
+        }
+        return this.responseSignVerify(tenantId, params)
+                && (guard == null || guard.record(params));
+    }
+
+    /**
+     * 按序列号获取平台证书，本地没有时只刷新该租户的证书，刷新后仍然没有的序列号在一段时间内不再刷新.
+     *
+     * @param tenantId        the tenant id
+     * @param wechatpaySerial the wechatpay serial
+     * @return the x 509 wechat certificate info, maybe null
+     */
+    private X509WechatCertificateInfo certificate(String tenantId, String wechatpaySerial) {
+        X509WechatCertificateInfo certificate = certificateContainer.getBySerial(wechatpaySerial);
+        String unknownKey = tenantId + '\n' + wechatpaySerial;
+        if (Objects.isNull(certificate) && !this.isUnknownSerial(unknownKey)) {
+            this.refreshCertificate(tenantId);
+            certificate = certificateContainer.getBySerial(wechatpaySerial);
+            if (Objects.isNull(certificate)) {
+                this.markUnknownSerial(unknownKey);
+            }
+        }
+        return certificate;
+    }
+
+    /**
+     * 是否是刷新后仍然不存在的证书序列号.
+     *
+     * @param key the key
+     * @return the boolean
+     */
+    private boolean isUnknownSerial(String key) {
+        Long expiresAt = unknownSerials.get(key);
+        if (Objects.isNull(expiresAt)) {
+            return false;
+        }
+        if (expiresAt - System.nanoTime() > 0) {
+            return true;
+        }
+        unknownSerials.remove(key, expiresAt);
+        return false;
+    }
+
+    /**
+     * 记录刷新后仍然不存在的证书序列号.
+     *
+     * @param key the key
+     */
+    private void markUnknownSerial(String key) {
+        if (serialMissTtlNanos <= 0 || Objects.isNull(key)) {
+            return;
+        }
+        if (unknownSerials.size() >= MAX_UNKNOWN_SERIALS) {
+            long now = System.nanoTime();
+            unknownSerials.values().removeIf(expiresAt -> expiresAt - now <= 0);
+            if (unknownSerials.size() >= MAX_UNKNOWN_SERIALS) {
+                unknownSerials.clear();
+            }
+        }
+        unknownSerials.put(key, System.nanoTime() + serialMissTtlNanos);
+    }
+
+    /**
+     * 使用微信平台证书验签，验签名串为 时间戳\n随机串\n响应体\n .
+     *
+     * @param certificate the certificate
+     * @param params      the params
+     * @param body        the body
+     * @return the boolean
+     */
+    private boolean doResponseSignVerify(X509WechatCertificateInfo certificate, ResponseSignVerifyParams params, byte[] body) {
+        if (Objects.isNull(certificate)) {
+            throw new PayException("cannot obtain the certificate");
+        }
         try {
-            final String signatureStr = createSign(params.getWechatpayTimestamp(), params.getWechatpayNonce(), params.getBody());
-            Signature signer = Signature.getInstance("SHA256withRSA", BC_PROVIDER);
-            signer.initVerify(certificate.getX509Certificate());
-            signer.update(signatureStr.getBytes(StandardCharsets.UTF_8));
-            return signer.verify(Base64Utils.decodeFromString(params.getWechatpaySignature()));
+            final byte[] timestamp = String.valueOf(params.getWechatpayTimestamp()).getBytes(StandardCharsets.UTF_8);
+            final byte[] nonce = String.valueOf(params.getWechatpayNonce()).getBytes(StandardCharsets.UTF_8);
+            byte[] signature = Base64Utils.decodeFromString(params.getWechatpaySignature());
+            return verifiers.execute(certificate.getWechatPaySerial(), certificate.getX509Certificate(), verifier -> {
+                verifier.update(timestamp);
+                verifier.update(LF);
+                verifier.update(nonce);
+                verifier.update(LF);
+                verifier.update(body);
+                verifier.update(LF);
+                return verifier.verify(signature);
+            });
         } catch (Exception e) {
             throw new PayException("An exception occurred during the response verification, the cause: " + e.getMessage());
         }
@@ -198,32 +546,42 @@ public class SignatureProvider {
 
     /**
      * 当我方服务器不存在平台证书或者证书同当前响应报文中的证书序列号不一致时应当刷新  调用/v3/certificates
+     * <p>
+     * 同一租户同时只会发起一次请求，并发的调用方等待该次请求的结果；刷新期间读取证书不受影响。
      *
      * @param tenantId tenantId
      */
-    @SneakyThrows
-    private synchronized void refreshCertificate(String tenantId) {
-        String url = WechatPayV3Type.CERT.uri(WeChatServer.CHINA);
-
-        UriComponents uri = UriComponentsBuilder.fromHttpUrl(url).build();
-
-        String canonicalUrl = uri.getPath();
-        String encodedQuery = uri.getQuery();
-
-        if (encodedQuery != null) {
-            canonicalUrl += "?" + encodedQuery;
+    void refreshCertificate(String tenantId) {
+        CompletableFuture<Void> refreshing = new CompletableFuture<>();
+        CompletableFuture<Void> inFlight = refreshingCertificates.putIfAbsent(tenantId, refreshing);
+        if (Objects.nonNull(inFlight)) {
+            try {
+                inFlight.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof PayException ? (PayException) cause : new PayException(cause);
+            }
+            return;
         }
-        // 签名
-        HttpMethod httpMethod = WechatPayV3Type.CERT.method();
-        String authorization = requestSign(tenantId, httpMethod.name(), canonicalUrl, "");
+        try {
+            this.doRefreshCertificate(tenantId);
+            refreshing.complete(null);
+        } catch (Throwable e) {
+            refreshing.completeExceptionally(e);
+            throw e;
+        } finally {
+            refreshingCertificates.remove(tenantId, refreshing);
+        }
+    }
 
-        HttpHeaders headers = new HttpHeaders();
-        headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
-        headers.setContentType(MediaType.APPLICATION_JSON);
-        headers.add("Authorization", authorization);
-        headers.add("User-Agent", "X-Pay-Service");
-        RequestEntity<?> requestEntity = new RequestEntity<>(headers, httpMethod, uri.toUri());
-        ResponseEntity<ObjectNode> responseEntity = restOperations.exchange(requestEntity, ObjectNode.class);
+    /**
+     * 调用/v3/certificates 获取并替换租户的平台证书
+     *
+     * @param tenantId tenantId
+     */
+    @SneakyThrows
+    private void doRefreshCertificate(String tenantId) {
+        ResponseEntity<ObjectNode> responseEntity = this.downloadCertificates(tenantId);
         ObjectNode bodyObjectNode = responseEntity.getBody();
 
         if (Objects.isNull(bodyObjectNode)) {
@@ -231,9 +589,8 @@ public class SignatureProvider {
         }
         ArrayNode certificates = bodyObjectNode.withArray("data");
         if (certificates.isArray() && !certificates.isEmpty()) {
-            CERTIFICATE_SET.removeIf(x509WechatCertificateInfo ->
-                    Objects.equals(tenantId, x509WechatCertificateInfo.getTenantId()));
-            final CertificateFactory certificateFactory = CertificateFactory.getInstance("X509", BC_PROVIDER);
+            List<X509WechatCertificateInfo> x509WechatCertificateInfos = new ArrayList<>(certificates.size());
+            final CertificateFactory certificateFactory = cryptoProvider.certificateFactory();
             certificates.forEach(objectNode -> {
                 JsonNode encryptCertificate = objectNode.get("encrypt_certificate");
                 String associatedData = encryptCertificate.get("associated_data").asText();
@@ -250,12 +607,90 @@ public class SignatureProvider {
                     x509WechatCertificateInfo.setWechatPaySerial(responseSerialNo);
                     x509WechatCertificateInfo.setTenantId(tenantId);
                     x509WechatCertificateInfo.setX509Certificate((X509Certificate) certificate);
-                    CERTIFICATE_SET.add(x509WechatCertificateInfo);
+                    x509WechatCertificateInfos.add(x509WechatCertificateInfo);
                 } catch (CertificateException e) {
                     throw new PayException("An error occurred while generating the wechat v3 certificate, reason : " + e.getMessage());
                 }
             });
+            if (log.isInfoEnabled()) {
+                x509WechatCertificateInfos.stream()
+                        .map(X509WechatCertificateInfo::getWechatPaySerial)
+                        .filter(serial -> Objects.isNull(certificateContainer.getBySerial(serial)))
+                        .forEach(serial -> log.info("wechat pay platform certificate {} is available for tenant {}", serial, tenantId));
+            }
+            certificateContainer.replace(tenantId, x509WechatCertificateInfos);
+            if (Objects.nonNull(certificateFileCache)) {
+                String apiV3Key = wechatMetaContainer.getWechatMeta(tenantId).getV3().getAppV3Secret();
+                certificateFileCache.save(tenantId, apiV3Key, x509WechatCertificateInfos);
+            }
+        }
+    }
+
+    /**
+     * 按租户配置的域名下载平台证书，连接失败或者返回5xx时切换到备用域名.
+     *
+     * @param tenantId tenantId
+     * @return the response entity
+     */
+    private ResponseEntity<ObjectNode> downloadCertificates(String tenantId) {
+        URI uri = URI.create(WechatPayV3Type.CERT.uri(WeChatServer.CHINA));
+        String domain = wechatMetaContainer.getWechatMeta(tenantId).getV3().getDomain();
+        WechatEndpointRouter router = this.endpointRouter;
+        List<WeChatServer> servers = router.route(domain, uri);
+        if (servers.isEmpty()) {
+            return this.exchangeCertificates(tenantId, uri);
+        }
+        for (int i = 0; ; i++) {
+            WeChatServer server = servers.get(i);
+            boolean last = i == servers.size() - 1;
+            long start = System.nanoTime();
+            try {
+                ResponseEntity<ObjectNode> responseEntity = this.exchangeCertificates(tenantId, router.rewrite(uri, server));
+                router.onSuccess(server, System.nanoTime() - start);
+                return responseEntity;
+            } catch (RestClientException e) {
+                boolean retryable = e instanceof HttpStatusCodeException ?
+                        router.isRetryable(((HttpStatusCodeException) e).getStatusCode()) :
+                        router.isRetryable(WechatPayV3Type.CERT.method(), e);
+                if (!retryable) {
+                    throw e;
+                }
+                router.onFailure(server, System.nanoTime() - start);
+                if (last) {
+                    throw e;
+                }
+                log.warn("wechat pay platform certificates download from {} failed, retry on {}, cause: {}", server, servers.get(i + 1), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 签名并调用/v3/certificates.
+     *
+     * @param tenantId tenantId
+     * @param url      the url
+     * @return the response entity
+     */
+    private ResponseEntity<ObjectNode> exchangeCertificates(String tenantId, URI url) {
+        UriComponents uri = UriComponentsBuilder.fromUri(url).build();
+
+        String canonicalUrl = uri.getPath();
+        String encodedQuery = uri.getQuery();
+
+        if (encodedQuery != null) {
+            canonicalUrl += "?" + encodedQuery;
         }
+        // 签名
+        HttpMethod httpMethod = WechatPayV3Type.CERT.method();
+        String authorization = requestSign(tenantId, httpMethod.name(), canonicalUrl, "");
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        headers.add("Authorization", authorization);
+        headers.add("User-Agent", "X-Pay-Service");
+        RequestEntity<?> requestEntity = new RequestEntity<>(headers, httpMethod, uri.toUri());
+        return restOperations.exchange(requestEntity, ObjectNode.class);
     }
 
     /**
@@ -268,6 +703,25 @@ public class SignatureProvider {
      * @return the string
      */
     public String decryptResponseBody(String tenantId, String associatedData, String nonce, String ciphertext) {
+        return this.decryptResponseBody(tenantId, associatedData, nonce, ciphertext,
+                (plaintext, offset, length) -> new String(plaintext, offset, length, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 解密响应体，明文直接交给{@code reader}读取，不构造中间字符串.
+     * <p>
+     * 明文所在的缓冲区会被当前线程复用，只在{@code reader}执行期间有效。
+     *
+     * @param <T>            the type parameter
+     * @param tenantId       the tenant id
+     * @param associatedData the associated data
+     * @param nonce          the nonce
+     * @param ciphertext     the ciphertext
+     * @param reader         明文读取，例如{@code objectReader::readValue}
+     * @return the t
+     * @since 1.0.20.RELEASE
+     */
+    public <T> T decryptResponseBody(String tenantId, String associatedData, String nonce, String ciphertext, PlaintextReader<T> reader) {
 
         try {
             Assert.hasText(associatedData, "associatedData is invalid");
@@ -277,25 +731,13 @@ public class SignatureProvider {
             throw new PayException(e.getMessage());
         }
 
+        String apiV3Key = wechatMetaContainer.getWechatMeta(tenantId).getV3().getAppV3Secret();
         try {
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding", BC_PROVIDER);
-            String apiV3Key = wechatMetaContainer.getWechatMeta(tenantId).getV3().getAppV3Secret();
-            SecretKeySpec key = new SecretKeySpec(apiV3Key.getBytes(StandardCharsets.UTF_8), "AES");
-            GCMParameterSpec spec = new GCMParameterSpec(128, nonce.getBytes(StandardCharsets.UTF_8));
-
-            cipher.init(Cipher.DECRYPT_MODE, key, spec);
-            cipher.updateAAD(associatedData.getBytes(StandardCharsets.UTF_8));
-
-            byte[] bytes;
-            try {
-                bytes = cipher.doFinal(Base64Utils.decodeFromString(ciphertext));
-            } catch (GeneralSecurityException e) {
-                throw new PayException(e);
-            }
-            return new String(bytes, StandardCharsets.UTF_8);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException |
-                 InvalidAlgorithmParameterException | NoSuchProviderException e) {
+            return aesDecryptor.decrypt(tenantId, apiV3Key, associatedData, nonce, ciphertext, reader);
+        } catch (GeneralSecurityException e) {
             throw new PayException(e);
+        } catch (IOException e) {
+            throw new PayException("the decrypted response body cannot be resolved", e);
         }
     }
 
@@ -309,11 +751,8 @@ public class SignatureProvider {
      */
     public String encryptRequestMessage(String message, Certificate certificate) {
         try {
-            Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-1AndMGF1Padding", BC_PROVIDER);
-            cipher.init(Cipher.ENCRYPT_MODE, certificate.getPublicKey());
-
             byte[] data = message.getBytes(StandardCharsets.UTF_8);
-            byte[] cipherData = cipher.doFinal(data);
+            byte[] cipherData = encryptors.execute(certificate, certificate, cipher -> cipher.doFinal(data));
             return Base64Utils.encodeToString(cipherData);
 
         } catch (Exception e) {
@@ -333,10 +772,8 @@ public class SignatureProvider {
         try {
             WechatMetaBean wechatMetaBean = wechatMetaContainer.getWechatMeta(tenantId);
             PrivateKey privateKey = wechatMetaBean.getKeyPair().getPrivate();
-            Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-1AndMGF1Padding", BC_PROVIDER);
-            cipher.init(Cipher.DECRYPT_MODE, privateKey);
             byte[] data = Base64Utils.decodeFromString(message);
-            byte[] cipherData = cipher.doFinal(data);
+            byte[] cipherData = decryptors.execute(tenantId, privateKey, cipher -> cipher.doFinal(data));
             return new String(cipherData, StandardCharsets.UTF_8);
 
         } catch (Exception e) {
@@ -351,19 +788,57 @@ public class SignatureProvider {
      * @return the x 509 wechat certificate info
      */
     public X509WechatCertificateInfo getCertificate(String tenantId) {
+        X509WechatCertificateInfo certificate = certificateContainer.getByTenant(tenantId);
+        if (Objects.isNull(certificate)) {
+            this.refreshCertificate(tenantId);
+            certificate = Optional.ofNullable(certificateContainer.getByTenant(tenantId))
+                    .orElseThrow(() -> new PayException("cannot obtain the certificate"));
+        }
+        return certificate;
+    }
 
-        return CERTIFICATE_SET.stream()
-                .filter(cert -> Objects.equals(tenantId, cert.getTenantId()))
-                .findAny()
-                .orElseGet(() -> {
-                    wechatMetaContainer.getTenantIds().forEach(this::refreshCertificate);
-                    return CERTIFICATE_SET.stream()
-                            .filter(cert -> Objects.equals(tenantId, cert.getTenantId()))
-                            .findAny()
-                            .orElseThrow(() -> new PayException("cannot obtain the certificate"));
-                });
+
+    /**
+     * 启动时平台证书的初始化任务，完成即表示所有租户的平台证书都已尝试获取，可作为就绪信号.
+     * <p>
+     * 初始化失败的租户会在首次使用时重新获取。
+     *
+     * @return the completable future
+     * @since 1.0.20.RELEASE
+     */
+    public CompletableFuture<Void> certificateBootstrap() {
+        return certificateBootstrap;
+    }
+
+    /**
+     * 设置回调防重放，为空时不检查（默认），只对{@link #callbackSignVerify(String, ResponseSignVerifyParams)}生效.
+     *
+     * @param replayGuard the replay guard
+     * @since 1.0.20.RELEASE
+     */
+    public void setReplayGuard(WechatReplayGuard replayGuard) {
+        this.replayGuard = replayGuard;
     }
 
+    /**
+     * 设置平台证书下载的域名路由，与{@link WechatPayClient#setEndpointRouter(WechatEndpointRouter)}共用时域名的降级状态一致.
+     *
+     * @param endpointRouter the endpoint router
+     * @since 1.0.20.RELEASE
+     */
+    public void setEndpointRouter(WechatEndpointRouter endpointRouter) {
+        Assert.notNull(endpointRouter, "endpointRouter is required");
+        this.endpointRouter = endpointRouter;
+    }
+
+    /**
+     * 微信平台证书容器.
+     *
+     * @return the wechat certificate container
+     */
+    WechatCertificateContainer certificateContainer() {
+        return certificateContainer;
+    }
 
     /**
      * Wechat meta container.
@@ -395,4 +870,24 @@ public class SignatureProvider {
                 .collect(Collectors.joining("\n", "", "\n"));
     }
 
+
+    /**
+     * 读取解密后的明文.
+     *
+     * @param <T> the type parameter
+     * @since 1.0.20.RELEASE
+     */
+    @FunctionalInterface
+    public interface PlaintextReader<T> {
+        /**
+         * Read t.
+         *
+         * @param plaintext 明文缓冲区
+         * @param offset    the offset
+         * @param length    the length
+         * @return the t
+         * @throws IOException the io exception
+         */
+        T read(byte[] plaintext, int offset, int length) throws IOException;
+    }
 }
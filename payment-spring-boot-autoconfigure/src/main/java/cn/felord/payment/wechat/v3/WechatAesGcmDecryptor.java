@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 回调、平台证书报文的AES-GCM解密.
+ * <p>
+ * 按租户缓存APIv3密钥的{@link SecretKeySpec}，{@link Cipher}以及密文、明文缓冲区从所有线程共享的池中取用，
+ * 明文直接交给{@link SignatureProvider.PlaintextReader}读取（例如Jackson按字节反序列化），不必先构造字符串。
+ * GCM每次解密都需要使用新的nonce初始化，因此只复用实例，不复用初始化状态。
+ *
+ * @author felord.cn
+ * @since 1.0.20.RELEASE
+ */
+final class WechatAesGcmDecryptor {
+    private static final String AES = "AES";
+    private static final int TAG_LENGTH_BITS = 128;
+    /**
+     * 超过该大小的缓冲区用完即丢弃，避免池中长期持有大数组
+     */
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+    private final Map<String, TenantKey> keys = new ConcurrentHashMap<>();
+    private final PooledCrypto<SecretKeySpec, Cipher> ciphers;
+    private final BoundedPool<Buffers> buffers = new BoundedPool<>();
+
+    /**
+     * Instantiates a new Wechat aes gcm decryptor.
+     *
+     * @param factory the cipher factory
+     */
+    WechatAesGcmDecryptor(PooledCrypto.Factory<Cipher> factory) {
+        this.ciphers = new PooledCrypto<>(factory, (cipher, key) -> {
+            // 在解密时使用nonce初始化
+        });
+    }
+
+    /**
+     * 解密并读取明文.
+     *
+     * @param <T>            the type parameter
+     * @param tenantId       the tenant id
+     * @param apiV3Key       the api v3 key
+     * @param associatedData the associated data
+     * @param nonce          the nonce
+     * @param ciphertext     base64编码的密文
+     * @param reader         明文读取，明文缓冲区只在读取期间有效
+     * @return the t
+     * @throws GeneralSecurityException the general security exception
+     * @throws IOException              the io exception
+     */
+    <T> T decrypt(String tenantId, String apiV3Key, String associatedData, String nonce, String ciphertext,
+                  SignatureProvider.PlaintextReader<T> reader) throws GeneralSecurityException, IOException {
+        SecretKeySpec key = this.key(tenantId, apiV3Key);
+        GCMParameterSpec spec = new GCMParameterSpec(TAG_LENGTH_BITS, nonce.getBytes(StandardCharsets.UTF_8));
+        byte[] aad = associatedData.getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = ciphertext.getBytes(StandardCharsets.ISO_8859_1);
+
+        Buffers pooled = buffers.poll();
+        Buffers local = pooled == null ? new Buffers() : pooled;
+        try {
+            byte[] sealed = local.sealed(decodedLength(encoded));
+            int sealedLength;
+            try {
+                sealedLength = Base64.getDecoder().decode(encoded, sealed);
+            } catch (IllegalArgumentException e) {
+                throw new GeneralSecurityException("ciphertext is not valid base64", e);
+            }
+            int plainLength = ciphers.execute(tenantId, key, cipher -> {
+                cipher.init(Cipher.DECRYPT_MODE, key, spec);
+                cipher.updateAAD(aad);
+                byte[] plain = local.plain(cipher.getOutputSize(sealedLength));
+                return cipher.doFinal(sealed, 0, sealedLength, plain, 0);
+            });
+            return reader.read(local.plain, 0, plainLength);
+        } finally {
+            // 读取明文时再次解密（重入）会取用另一组缓冲区
+            local.trim();
+            buffers.offer(local);
+        }
+    }
+
+    /**
+     * 移除租户缓存的密钥.
+     *
+     * @param tenantId the tenant id
+     */
+    void evict(String tenantId) {
+        keys.remove(tenantId);
+        ciphers.evict(tenantId);
+    }
+
+    private SecretKeySpec key(String tenantId, String apiV3Key) {
+        TenantKey tenantKey = keys.get(tenantId);
+        if (tenantKey == null || !tenantKey.secret.equals(apiV3Key)) {
+            tenantKey = new TenantKey(apiV3Key);
+            keys.put(tenantId, tenantKey);
+        }
+        return tenantKey.key;
+    }
+
+    private static int decodedLength(byte[] encoded) {
+        return encoded.length / 4 * 3 + 3;
+    }
+
+    private static final class TenantKey {
+        private final String secret;
+        private final SecretKeySpec key;
+
+        private TenantKey(String secret) {
+            this.secret = secret;
+            this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), AES);
+        }
+    }
+
+    private static final class Buffers {
+        private byte[] sealed = new byte[0];
+        private byte[] plain = new byte[0];
+
+        private byte[] sealed(int size) {
+            if (sealed.length < size) {
+                sealed = new byte[size];
+            }
+            return sealed;
+        }
+
+        private byte[] plain(int size) {
+            if (plain.length < size) {
+                plain = new byte[size];
+            }
+            return plain;
+        }
+
+        private void trim() {
+            if (sealed.length > MAX_RETAINED_BUFFER) {
+                sealed = new byte[0];
+            }
+            if (plain.length > MAX_RETAINED_BUFFER) {
+                plain = new byte[0];
+            }
+        }
+    }
+}
@@ -19,19 +19,32 @@ package cn.felord.payment.wechat.v3;
 import cn.felord.payment.wechat.v2.WechatPayRedpackApi;
 import cn.felord.payment.wechat.v2.WechatPayTransfersApi;
 import cn.felord.payment.wechat.v2.WechatV2Client;
+import cn.felord.payment.wechat.v2.model.BaseModel;
 import cn.felord.payment.wechat.v3.ecommerce.WechatEcommerceApi;
 
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
 /**
  * 微信支付工具.
+ * <p>
+ * API实例不可变，首次获取后按租户和API类型缓存复用，注册为{@link WechatMetaContainer}的监听器后租户变更时自动丢弃。
+ * 丢弃的V2连接池等进行中的请求结束后关闭，容器关闭时释放所有连接池。
  *
  * @author felord.cn
  * @since 1.0.0.RELEASE
  */
-public class WechatApiProvider {
+public class WechatApiProvider implements WechatTenantChangeListener, Closeable {
     /**
      * 微信支付客户端.
      */
     private final WechatPayClient wechatPayClient;
+    /**
+     * 已创建的API实例  key = 租户id  value = 该租户的API实例（key = API类型）
+     */
+    private final Map<String, Map<Class<?>, Object>> apis = new ConcurrentHashMap<>();
 
     /**
      * Instantiates a new Wechat api provider.
@@ -42,6 +55,61 @@ public class WechatApiProvider {
         this.wechatPayClient = wechatPayClient;
     }
 
+    /**
+     * 租户配置变更或者移除后，丢弃该租户已缓存的API实例.
+     *
+     * @param tenantId the tenant id
+     * @since 1.0.20.RELEASE
+     */
+    public void invalidate(String tenantId) {
+        release(apis.remove(tenantId));
+    }
+
+    /**
+     * 租户配置变化、移除或者被淘汰出缓存后丢弃其API实例.
+     *
+     * @param event the event
+     * @since 1.0.20.RELEASE
+     */
+    @Override
+    public void onTenantChange(WechatTenantChangeEvent event) {
+        event.getUpdated().forEach(this::invalidate);
+        event.getRemoved().forEach(this::invalidate);
+        event.getEvicted().forEach(this::invalidate);
+    }
+
+    /**
+     * 丢弃所有已缓存的API实例.
+     *
+     * @since 1.0.20.RELEASE
+     */
+    public void invalidateAll() {
+        apis.keySet().forEach(this::invalidate);
+    }
+
+    /**
+     * 释放所有V2连接池，包括未通过本类调用时按证书共享的连接池.
+     *
+     * @since 1.0.20.RELEASE
+     */
+    @Override
+    public void close() {
+        this.invalidateAll();
+        BaseModel.closeSharedClients();
+    }
+
+    /**
+     * 异步调用API，例如{@code async(directPayApi(tenantId)).call(api -> api.queryTransactionById(params))}.
+     *
+     * @param <A> the type parameter
+     * @param api the api
+     * @return the wechat async api
+     * @since 1.0.20.RELEASE
+     */
+    public <A> WechatAsyncApi<A> async(A api) {
+        return new WechatAsyncApi<>(api, wechatPayClient.asyncExecutor());
+    }
+
     /**
      * 普通支付-直连模式.
      *
@@ -50,7 +118,7 @@ public class WechatApiProvider {
      * @since 1.0.0.RELEASE
      */
     public WechatDirectPayApi directPayApi(String tenantId) {
-        return new WechatDirectPayApi(wechatPayClient, tenantId);
+        return this.api(tenantId, WechatDirectPayApi.class, id -> new WechatDirectPayApi(wechatPayClient, id));
     }
 
     /**
@@ -61,7 +129,7 @@ public class WechatApiProvider {
      * @since 1.0.9.RELEASE
      */
     public WechatPartnerPayApi partnerPayApi(String tenantId) {
-        return new WechatPartnerPayApi(wechatPayClient, tenantId);
+        return this.api(tenantId, WechatPartnerPayApi.class, id -> new WechatPartnerPayApi(wechatPayClient, id));
     }
 
     /**
@@ -72,7 +140,7 @@ public class WechatApiProvider {
      * @since 1.0.1.RELEASE
      */
     public WechatCombinePayApi combinePayApi(String tenantId) {
-        return new WechatCombinePayApi(wechatPayClient, tenantId);
+        return this.api(tenantId, WechatCombinePayApi.class, id -> new WechatCombinePayApi(wechatPayClient, id));
     }
 
     /**
@@ -83,7 +151,7 @@ public class WechatApiProvider {
      * @since 1.0.2.RELEASE
      */
     public WechatPayScoreApi payScoreApi(String tenantId) {
-        return new WechatPayScoreApi(wechatPayClient, tenantId);
+        return this.api(tenantId, WechatPayScoreApi.class, id -> new WechatPayScoreApi(wechatPayClient, id));
     }
 
     /**
@@ -94,7 +162,7 @@ public class WechatApiProvider {
      * @since 1.0.13.RELEASE
      */
     public WechatPayScoreParkingApi payScoreParkingApi(String tenantId) {
-        return new WechatPayScoreParkingApi(wechatPayClient, tenantId);
+        return this.api(tenantId, WechatPayScoreParkingApi.class, id -> new WechatPayScoreParkingApi(wechatPayClient, id));
     }
 
     /**
@@ -105,7 +173,7 @@ public class WechatApiProvider {
      * @since 1.0.2.RELEASE
      */
     public WechatDiscountCardApi discountCardApi(String tenantId) {
-        return new WechatDiscountCardApi(wechatPayClient, tenantId);
+        return this.api(tenantId, WechatDiscountCardApi.class, id -> new WechatDiscountCardApi(wechatPayClient, id));
     }
 
     /**
@@ -116,7 +184,7 @@ public class WechatApiProvider {
      * @since 1.0.0.RELEASE
      */
     public WechatMarketingFavorApi favorApi(String tenantId) {
-        return new WechatMarketingFavorApi(this.wechatPayClient, tenantId);
+        return this.api(tenantId, WechatMarketingFavorApi.class, id -> new WechatMarketingFavorApi(wechatPayClient, id));
     }
 
     /**
@@ -127,7 +195,7 @@ public class WechatApiProvider {
      * @since 1.0.4.RELEASE
      */
     public WechatMarketingBusiFavorApi busiFavorApi(String tenantId) {
-        return new WechatMarketingBusiFavorApi(wechatPayClient, tenantId);
+        return this.api(tenantId, WechatMarketingBusiFavorApi.class, id -> new WechatMarketingBusiFavorApi(wechatPayClient, id));
     }
 
     /**
@@ -137,7 +205,7 @@ public class WechatApiProvider {
      * @return the wechat marketing partnership api
      */
     public WechatMarketingPartnershipApi marketingshipApi(String tenantId) {
-        return new WechatMarketingPartnershipApi(this.wechatPayClient, tenantId);
+        return this.api(tenantId, WechatMarketingPartnershipApi.class, id -> new WechatMarketingPartnershipApi(wechatPayClient, id));
     }
 
     /**
@@ -148,7 +216,7 @@ public class WechatApiProvider {
      * @since 1.0.19.RELEASE
      */
     public WechatMarketingPayGiftActivityApi marketingPayGiftActivityApi(String tenantId) {
-        return new WechatMarketingPayGiftActivityApi(this.wechatPayClient, tenantId);
+        return this.api(tenantId, WechatMarketingPayGiftActivityApi.class, id -> new WechatMarketingPayGiftActivityApi(wechatPayClient, id));
     }
 
     /**
@@ -161,7 +229,7 @@ public class WechatApiProvider {
      * @since 1.0.6.RELEASE
      */
     public WechatBatchTransferApi batchTransferApi(String tenantId) {
-        return new WechatBatchTransferApi(wechatPayClient, tenantId);
+        return this.api(tenantId, WechatBatchTransferApi.class, id -> new WechatBatchTransferApi(wechatPayClient, id));
     }
 
     /**
@@ -174,7 +242,7 @@ public class WechatApiProvider {
      * @since 1.0.0.RELEASE
      */
     public WechatPayCallback callback(String tenantId) {
-        return new WechatPayCallback(wechatPayClient.signatureProvider(), tenantId);
+        return new WechatPayCallback(wechatPayClient.signatureProvider(), tenantId, wechatPayClient.mapperRegistry());
     }
 
     /**
@@ -185,11 +253,9 @@ public class WechatApiProvider {
      * @since 1.0.5.RELEASE
      */
     public WechatPayRedpackApi redpackApi(String tenantId) {
-        WechatMetaBean wechatMeta = wechatPayClient.signatureProvider()
-                .wechatMetaContainer()
-                .getWechatMeta(tenantId);
-        WechatV2Client wechatV2Client = new WechatV2Client(wechatMeta);
-        return new WechatPayRedpackApi(wechatV2Client);
+        // 先取得V2客户端，不能在创建API实例的过程中嵌套创建
+        WechatV2Client v2Client = this.v2Client(tenantId);
+        return this.api(tenantId, WechatPayRedpackApi.class, id -> new WechatPayRedpackApi(v2Client));
     }
 
     /**
@@ -200,11 +266,9 @@ public class WechatApiProvider {
      * @since 1.0.5.RELEASE
      */
     public WechatPayTransfersApi transfersApi(String tenantId) {
-        WechatMetaBean wechatMeta = wechatPayClient.signatureProvider()
-                .wechatMetaContainer()
-                .getWechatMeta(tenantId);
-        WechatV2Client wechatV2Client = new WechatV2Client(wechatMeta);
-        return new WechatPayTransfersApi(wechatV2Client);
+        // 先取得V2客户端，不能在创建API实例的过程中嵌套创建
+        WechatV2Client v2Client = this.v2Client(tenantId);
+        return this.api(tenantId, WechatPayTransfersApi.class, id -> new WechatPayTransfersApi(v2Client));
     }
 
     /**
@@ -214,7 +278,7 @@ public class WechatApiProvider {
      * @return the wechat profitsharing api
      */
     public WechatProfitsharingApi profitsharingApi(String tenantId) {
-        return new WechatProfitsharingApi(wechatPayClient, tenantId);
+        return this.api(tenantId, WechatProfitsharingApi.class, id -> new WechatProfitsharingApi(wechatPayClient, id));
     }
 
     /**
@@ -224,7 +288,7 @@ public class WechatApiProvider {
      * @return the wechat partner profitsharing api
      */
     public WechatPartnerProfitsharingApi partnerProfitsharingApi(String tenantId) {
-        return new WechatPartnerProfitsharingApi(wechatPayClient, tenantId);
+        return this.api(tenantId, WechatPartnerProfitsharingApi.class, id -> new WechatPartnerProfitsharingApi(wechatPayClient, id));
     }
 
     /**
@@ -234,7 +298,7 @@ public class WechatApiProvider {
      * @return the wechat brand profitsharing api
      */
     public WechatBrandProfitsharingApi brandProfitsharingApi(String tenantId) {
-        return new WechatBrandProfitsharingApi(wechatPayClient, tenantId);
+        return this.api(tenantId, WechatBrandProfitsharingApi.class, id -> new WechatBrandProfitsharingApi(wechatPayClient, id));
     }
 
     /**
@@ -245,7 +309,7 @@ public class WechatApiProvider {
      * @since 1.0.14.RELEASE
      */
     public WechatPartnerSpecialMchApi partnerSpecialMchApi(String tenantId) {
-        return new WechatPartnerSpecialMchApi(wechatPayClient, tenantId);
+        return this.api(tenantId, WechatPartnerSpecialMchApi.class, id -> new WechatPartnerSpecialMchApi(wechatPayClient, id));
     }
 
     /**
@@ -256,7 +320,7 @@ public class WechatApiProvider {
      * @since 1.0.14.RELEASE
      */
     public WechatSmartGuideApi smartGuideApi(String tenantId) {
-        return new WechatSmartGuideApi(wechatPayClient, tenantId);
+        return this.api(tenantId, WechatSmartGuideApi.class, id -> new WechatSmartGuideApi(wechatPayClient, id));
     }
 
     /**
@@ -267,7 +331,7 @@ public class WechatApiProvider {
      * @since 1.0.14.RELEASE
      */
     public WechatGoldPlanApi goldPlanApi(String tenantId) {
-        return new WechatGoldPlanApi(wechatPayClient, tenantId);
+        return this.api(tenantId, WechatGoldPlanApi.class, id -> new WechatGoldPlanApi(wechatPayClient, id));
     }
 
     /**
@@ -278,7 +342,7 @@ public class WechatApiProvider {
      * @since 1.0.14.RELEASE
      */
     public WechatEcommerceApi ecommerceApi(String tenantId) {
-        return new WechatEcommerceApi(wechatPayClient, tenantId);
+        return this.api(tenantId, WechatEcommerceApi.class, id -> new WechatEcommerceApi(wechatPayClient, id));
     }
 
     /**
@@ -289,7 +353,7 @@ public class WechatApiProvider {
      * @since 1.0.14.RELEASE
      */
     public WechatPartnerBusinessCircleApi partnerBusinessCircleApi(String tenantId) {
-        return new WechatPartnerBusinessCircleApi(wechatPayClient, tenantId);
+        return this.api(tenantId, WechatPartnerBusinessCircleApi.class, id -> new WechatPartnerBusinessCircleApi(wechatPayClient, id));
     }
 
     /**
@@ -300,7 +364,7 @@ public class WechatApiProvider {
      * @since 1.0.14.RELEASE
      */
     public WechatBusinessCircleApi businessCircleApi(String tenantId) {
-        return new WechatBusinessCircleApi(wechatPayClient, tenantId);
+        return this.api(tenantId, WechatBusinessCircleApi.class, id -> new WechatBusinessCircleApi(wechatPayClient, id));
     }
 
     /**
@@ -311,7 +375,7 @@ public class WechatApiProvider {
      * @since 1.0.14.RELEASE
      */
     public WechatMediaApi mediaApi(String tenantId) {
-        return new WechatMediaApi(wechatPayClient, tenantId);
+        return this.api(tenantId, WechatMediaApi.class, id -> new WechatMediaApi(wechatPayClient, id));
     }
 
     /**
@@ -322,7 +386,7 @@ public class WechatApiProvider {
      * @since 1.0.14.RELEASE
      */
     public WechatCapitalApi capitalApi(String tenantId) {
-        return new WechatCapitalApi(wechatPayClient, tenantId);
+        return this.api(tenantId, WechatCapitalApi.class, id -> new WechatCapitalApi(wechatPayClient, id));
     }
 
     /**
@@ -332,6 +396,62 @@ public class WechatApiProvider {
      * @return the wechat complaints api
      */
     public WechatComplaintsApi complaintsApi(String tenantId) {
-        return new WechatComplaintsApi(wechatPayClient, tenantId);
+        return this.api(tenantId, WechatComplaintsApi.class, id -> new WechatComplaintsApi(wechatPayClient, id));
+    }
+
+    /**
+     * 获取租户的API实例，API实例不可变，按租户和类型缓存复用.
+     * <p>
+     * 同一租户同一类型最多创建一个实例；创建期间租户被丢弃时释放结果并重新创建，不会缓存基于旧配置的实例。
+     * 租户不存在时不会缓存任何内容。{@code factory}中不能再获取同一租户的其它API实例。
+     *
+     * @param <T>      the type parameter
+     * @param tenantId the tenant id
+     * @param type     the type
+     * @param factory  the factory
+     * @return the api
+     */
+    private <T> T api(String tenantId, Class<T> type, Function<String, T> factory) {
+        for (; ; ) {
+            Map<Class<?>, Object> tenantApis = apis.computeIfAbsent(tenantId, id -> new ConcurrentHashMap<>());
+            Object api;
+            try {
+                api = tenantApis.computeIfAbsent(type, key -> factory.apply(tenantId));
+            } catch (RuntimeException e) {
+                apis.computeIfPresent(tenantId, (id, current) -> current.isEmpty() ? null : current);
+                throw e;
+            }
+            if (apis.get(tenantId) == tenantApis) {
+                return type.cast(api);
+            }
+            // 创建期间被invalidate，丢弃的实例可能没有被释放
+            release(tenantApis);
+        }
+    }
+
+    /**
+     * 释放V2客户端持有的连接池，进行中的请求结束后才真正关闭.
+     *
+     * @param tenantApis the tenant apis
+     */
+    private static void release(Map<Class<?>, Object> tenantApis) {
+        if (tenantApis != null) {
+            Object v2Client = tenantApis.get(WechatV2Client.class);
+            if (v2Client != null) {
+                ((WechatV2Client) v2Client).close();
+            }
+        }
+    }
+
+    /**
+     * V2客户端，同一租户的红包、转账共用一个连接池.
+     *
+     * @param tenantId the tenant id
+     * @return the wechat v 2 client
+     */
+    private WechatV2Client v2Client(String tenantId) {
+        return this.api(tenantId, WechatV2Client.class, id -> new WechatV2Client(wechatPayClient.signatureProvider()
+                .wechatMetaContainer()
+                .getWechatMeta(id), wechatPayClient.http()));
     }
 }
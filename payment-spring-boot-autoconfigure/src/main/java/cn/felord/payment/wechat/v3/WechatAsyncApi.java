@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * API的{@link CompletableFuture}异步调用.
+ * <p>
+ * 在{@link WechatPayClient#asyncExecutor()}中调用API的同步方法，JDK 21及以上默认使用虚拟线程，可以同时发起大量查询而无需调整线程池。
+ * <pre>
+ * CompletableFuture&lt;WechatResponseEntity&lt;ObjectNode&gt;&gt; future = wechatApiProvider.async(wechatApiProvider.directPayApi(tenantId))
+ *         .call(api -&gt; api.queryTransactionById(params));
+ * </pre>
+ *
+ * @param <A> API类型
+ * @author felord.cn
+ * @since 1.0.20.RELEASE
+ */
+public class WechatAsyncApi<A> {
+    private final A api;
+    private final Executor executor;
+
+    /**
+     * Instantiates a new Wechat async api.
+     *
+     * @param api      the api
+     * @param executor the executor
+     */
+    public WechatAsyncApi(A api, Executor executor) {
+        this.api = api;
+        this.executor = executor;
+    }
+
+    /**
+     * 异步调用API.
+     *
+     * @param <R>  the type parameter
+     * @param call the call
+     * @return the completable future
+     */
+    public <R> CompletableFuture<R> call(Function<? super A, ? extends R> call) {
+        return CompletableFuture.supplyAsync(() -> call.apply(api), executor);
+    }
+
+    /**
+     * 同步调用使用的API.
+     *
+     * @return the api
+     */
+    public A api() {
+        return api;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+import cn.felord.payment.wechat.WechatPayProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 异步请求默认使用的线程池.
+ * <p>
+ * JDK 21及以上默认每个任务一个虚拟线程，阻塞等待响应几乎没有成本；否则使用有界的守护线程池。
+ *
+ * @author felord.cn
+ * @since 1.0.20.RELEASE
+ */
+@Slf4j
+final class WechatAsyncExecutors {
+
+    private WechatAsyncExecutors() {
+    }
+
+    /**
+     * 创建线程池，调用方负责关闭.
+     *
+     * @param async the async
+     * @return the executor service
+     */
+    static ExecutorService create(WechatPayProperties.Async async) {
+        if (async.isVirtualThreads()) {
+            ExecutorService virtualThreads = virtualThreadPerTaskExecutor();
+            if (virtualThreads != null) {
+                return virtualThreads;
+            }
+        }
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("wechat-pay-async-");
+        threadFactory.setDaemon(true);
+        int poolSize = Math.max(1, async.getPoolSize());
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * 源码兼容JDK 8，通过反射调用{@code Executors.newVirtualThreadPerTaskExecutor()}.
+     *
+     * @return the executor service, null if virtual threads are not available
+     */
+    private static ExecutorService virtualThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("virtual threads are not available, fall back to platform threads", e);
+            return null;
+        }
+    }
+}
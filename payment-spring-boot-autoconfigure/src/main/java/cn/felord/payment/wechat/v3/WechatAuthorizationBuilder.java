@@ -0,0 +1,223 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 请求头{@code Authorization}构建器.
+ * <p>
+ * 每个租户的{@code mchid}、{@code serial_no}部分预先渲染并缓存，待签名串直接以UTF-8写入池化的字节缓冲区后交给{@link Signature}，
+ * 随机串由{@link ThreadLocalRandom}直接生成十六进制字符，不再经过UUID和正则替换。
+ *
+ * @author felord.cn
+ * @since 1.0.20.RELEASE
+ */
+final class WechatAuthorizationBuilder {
+    private static final String SCHEMA = "WECHATPAY2-SHA256-RSA2048 ";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    /**
+     * 随机串长度，与去掉横线的UUID一致
+     */
+    private static final int NONCE_LENGTH = 32;
+    /**
+     * 超过该大小的缓冲区用完后不再保留，避免大请求体长期占用内存
+     */
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+    private static final int INITIAL_BUFFER = 1024;
+    private final BoundedPool<byte[]> buffers = new BoundedPool<>();
+    /**
+     * key = 租户id  value = 预渲染的固定部分
+     */
+    private final Map<String, Rendered> rendered = new ConcurrentHashMap<>();
+    private final PooledCrypto<PrivateKey, Signature> signers;
+
+    /**
+     * Instantiates a new Wechat authorization builder.
+     *
+     * @param signers the signers
+     */
+    WechatAuthorizationBuilder(PooledCrypto<PrivateKey, Signature> signers) {
+        this.signers = signers;
+    }
+
+    /**
+     * 构建请求头{@code Authorization}的值.
+     *
+     * @param wechatMetaBean the wechat meta bean
+     * @param method         the method
+     * @param canonicalUrl   the canonical url
+     * @param body           the body
+     * @return the authorization
+     * @throws GeneralSecurityException the general security exception
+     */
+    String build(WechatMetaBean wechatMetaBean, String method, String canonicalUrl, String body) throws GeneralSecurityException {
+        Rendered parts = this.rendered(wechatMetaBean);
+        String timestamp = Long.toString(System.currentTimeMillis() / 1000);
+        char[] nonce = nonce();
+
+        byte[] buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = new byte[INITIAL_BUFFER];
+        }
+        int length = 0;
+        buffer = ensure(buffer, length, method.length() * 3 + 1);
+        length = writeUtf8(buffer, length, method);
+        buffer[length++] = '\n';
+        buffer = ensure(buffer, length, canonicalUrl.length() * 3 + 1);
+        length = writeUtf8(buffer, length, canonicalUrl);
+        buffer[length++] = '\n';
+        buffer = ensure(buffer, length, timestamp.length() + NONCE_LENGTH + 2);
+        length = writeUtf8(buffer, length, timestamp);
+        buffer[length++] = '\n';
+        for (char c : nonce) {
+            buffer[length++] = (byte) c;
+        }
+        buffer[length++] = '\n';
+        buffer = ensure(buffer, length, body.length() * 3 + 1);
+        length = writeUtf8(buffer, length, body);
+        buffer[length++] = '\n';
+
+        final byte[] message = buffer;
+        final int messageLength = length;
+        byte[] signature = signers.execute(wechatMetaBean.getTenantId(), wechatMetaBean.getKeyPair().getPrivate(), signer -> {
+            signer.update(message, 0, messageLength);
+            return signer.sign();
+        });
+        if (message.length <= MAX_RETAINED_BUFFER) {
+            buffers.offer(message);
+        }
+
+        String encoded = Base64.getEncoder().encodeToString(signature);
+        return new StringBuilder(parts.prefix.length() + NONCE_LENGTH + parts.serialNo.length() + encoded.length() + 64)
+                .append(parts.prefix)
+                .append(nonce)
+                .append("\",timestamp=\"").append(timestamp)
+                .append(parts.serialNo)
+                .append(encoded)
+                .append('"')
+                .toString();
+    }
+
+    /**
+     * 移除租户预渲染的固定部分.
+     *
+     * @param tenantId the tenant id
+     */
+    void evict(String tenantId) {
+        rendered.remove(tenantId);
+    }
+
+    private Rendered rendered(WechatMetaBean wechatMetaBean) {
+        String mchId = wechatMetaBean.getV3().getMchId();
+        String serialNumber = wechatMetaBean.getSerialNumber();
+        Rendered parts = rendered.get(wechatMetaBean.getTenantId());
+        // 租户的商户号或者证书序列号变更后重新渲染
+        if (parts == null || !parts.matches(mchId, serialNumber)) {
+            parts = new Rendered(mchId, serialNumber);
+            rendered.put(wechatMetaBean.getTenantId(), parts);
+        }
+        return parts;
+    }
+
+    private static char[] nonce() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        char[] nonce = new char[NONCE_LENGTH];
+        for (int i = 0; i < NONCE_LENGTH; i += 16) {
+            long bits = random.nextLong();
+            for (int j = 0; j < 16; j++) {
+                nonce[i + j] = HEX[(int) (bits >>> (j << 2)) & 0xF];
+            }
+        }
+        return nonce;
+    }
+
+    private static byte[] ensure(byte[] buffer, int length, int required) {
+        if (buffer.length - length >= required) {
+            return buffer;
+        }
+        byte[] grown = new byte[Math.max(buffer.length << 1, length + required)];
+        System.arraycopy(buffer, 0, grown, 0, length);
+        return grown;
+    }
+
+    /**
+     * 以UTF-8写入字符串，调用方需保证剩余空间不少于{@code value.length() * 3}.
+     *
+     * @param buffer the buffer
+     * @param offset the offset
+     * @param value  the value
+     * @return the new offset
+     */
+    private static int writeUtf8(byte[] buffer, int offset, String value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[offset++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[offset++] = (byte) (0xC0 | (c >> 6));
+                buffer[offset++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[offset++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // 与String#getBytes一致，孤立的代理字符替换为'?'
+                buffer[offset++] = '?';
+            } else {
+                buffer[offset++] = (byte) (0xE0 | (c >> 12));
+                buffer[offset++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[offset++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return offset;
+    }
+
+    private static final class Rendered {
+        private final String mchId;
+        private final String serialNumber;
+        /**
+         * {@code WECHATPAY2-SHA256-RSA2048 mchid="...",nonce_str="}
+         */
+        private final String prefix;
+        /**
+         * {@code ",serial_no="...",signature="}
+         */
+        private final String serialNo;
+
+        private Rendered(String mchId, String serialNumber) {
+            this.mchId = mchId;
+            this.serialNumber = serialNumber;
+            this.prefix = SCHEMA + "mchid=\"" + mchId + "\",nonce_str=\"";
+            this.serialNo = "\",serial_no=\"" + serialNumber + "\",signature=\"";
+        }
+
+        private boolean matches(String mchId, String serialNumber) {
+            return Objects.equals(this.mchId, mchId) && Objects.equals(this.serialNumber, serialNumber);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+import cn.felord.payment.PayException;
+import cn.felord.payment.wechat.WechatPayProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.util.StringUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 回调去重.
+ * <p>
+ * 记录已处理的回调通知ID（{@link cn.felord.payment.wechat.v3.model.CallbackParams#getId()}），微信支付重复通知时验签后直接应答，
+ * 不再解密和分发。按写入顺序淘汰，超过数量上限或者存活时间的记录被移除，存活时间应覆盖微信支付的重试周期（约24小时）。
+ * 可选持久化到本地文件，重启后继续生效；文件不做{@code fsync}，进程崩溃时丢失的记录只会导致重复处理。
+ * <p>
+ * 处理回调前先通过{@link #tryClaim(String, String)}原子地占用通知ID，处理成功（异步处理时为写入日志成功）后记录为已处理，
+ * 处理失败时释放占用，微信支付重新通知时可以再次处理。占用期间并发到达的重复通知不会被处理。
+ * 记录只保存在单个进程内（或本地文件），多实例部署时处理逻辑仍需保证幂等。
+ *
+ * @author felord.cn
+ * @see WechatCallbackRouter#deduplicator(WechatCallbackDeduplicator)
+ * @since 1.0.20.RELEASE
+ */
+@Slf4j
+public class WechatCallbackDeduplicator implements Closeable {
+    private static final String SEPARATOR = "\t";
+    private final int maxSize;
+    private final long ttlMillis;
+    private final Path file;
+    private final Map<String, Long> processed = new LinkedHashMap<>();
+    private final Set<String> claimed = new HashSet<>();
+    private BufferedWriter writer;
+    private int fileLines;
+
+    /**
+     * Instantiates a new Wechat callback deduplicator.
+     *
+     * @param dedup the dedup
+     */
+    public WechatCallbackDeduplicator(WechatPayProperties.Dedup dedup) {
+        this.maxSize = Math.max(1, dedup.getMaxSize());
+        this.ttlMillis = dedup.getTtl().toMillis();
+        this.file = StringUtils.hasText(dedup.getFile()) ? Paths.get(dedup.getFile()) : null;
+        if (file != null) {
+            try {
+                this.load();
+            } catch (IOException e) {
+                throw new PayException("wechat pay callback dedup file cannot be loaded", e);
+            }
+        }
+    }
+
+    /**
+     * 回调是否已处理.
+     *
+     * @param tenantId the tenant id
+     * @param id       回调通知ID
+     * @return the boolean
+     */
+    public synchronized boolean isProcessed(String tenantId, String id) {
+        if (id == null) {
+            return false;
+        }
+        this.evict(System.currentTimeMillis());
+        return processed.containsKey(key(tenantId, id));
+    }
+
+    /**
+     * 占用回调通知ID，已处理或者正在处理时返回{@code false}.
+     *
+     * @param tenantId the tenant id
+     * @param id       回调通知ID
+     * @return 占用成功时为{@code true}
+     */
+    public synchronized boolean tryClaim(String tenantId, String id) {
+        if (id == null) {
+            return true;
+        }
+        this.evict(System.currentTimeMillis());
+        String key = key(tenantId, id);
+        return !processed.containsKey(key) && claimed.add(key);
+    }
+
+    /**
+     * 处理失败时释放占用.
+     *
+     * @param tenantId the tenant id
+     * @param id       回调通知ID
+     */
+    public synchronized void release(String tenantId, String id) {
+        if (id != null) {
+            claimed.remove(key(tenantId, id));
+        }
+    }
+
+    /**
+     * 记录回调已处理，同时释放占用.
+     *
+     * @param tenantId the tenant id
+     * @param id       回调通知ID
+     */
+    public synchronized void processed(String tenantId, String id) {
+        if (id == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        String key = key(tenantId, id);
+        claimed.remove(key);
+        long expiresAt = now + ttlMillis;
+        // 重新放到末尾，保持按过期时间排序
+        processed.remove(key);
+        processed.put(key, expiresAt);
+        this.evict(now);
+        if (writer != null) {
+            try {
+                writer.write(expiresAt + SEPARATOR + key);
+                writer.newLine();
+                writer.flush();
+                if (++fileLines > 2 * maxSize) {
+                    this.rewrite();
+                }
+            } catch (IOException e) {
+                log.warn("wechat pay callback dedup file {} cannot be written", file, e);
+            }
+        }
+    }
+
+    /**
+     * 已记录的数量.
+     *
+     * @return the int
+     */
+    public synchronized int size() {
+        return processed.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    private void evict(long now) {
+        Iterator<Map.Entry<String, Long>> iterator = processed.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            if (processed.size() <= maxSize && eldest.getValue() > now) {
+                return;
+            }
+            iterator.remove();
+        }
+    }
+
+    private void load() throws IOException {
+        if (Files.exists(file)) {
+            long now = System.currentTimeMillis();
+            try (BufferedReader lines = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    int separator = line.indexOf(SEPARATOR);
+                    if (separator <= 0) {
+                        continue;
+                    }
+                    long expiresAt;
+                    try {
+                        expiresAt = Long.parseLong(line.substring(0, separator));
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    if (expiresAt > now) {
+                        String key = line.substring(separator + 1);
+                        processed.remove(key);
+                        processed.put(key, expiresAt);
+                    }
+                }
+            }
+            this.evict(now);
+        } else if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        this.rewrite();
+    }
+
+    /**
+     * 只保留当前的记录重写文件.
+     *
+     * @throws IOException the io exception
+     */
+    private void rewrite() throws IOException {
+        this.close();
+        Path rewritten = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(rewritten, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Long> entry : processed.entrySet()) {
+                out.write(entry.getValue() + SEPARATOR + entry.getKey());
+                out.newLine();
+            }
+        }
+        Files.move(rewritten, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.fileLines = processed.size();
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    private static String key(String tenantId, String id) {
+        return tenantId + SEPARATOR + id;
+    }
+}
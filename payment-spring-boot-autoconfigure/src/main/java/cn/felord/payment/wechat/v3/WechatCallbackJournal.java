@@ -0,0 +1,290 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+import cn.felord.payment.wechat.v3.model.CallbackParams;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 回调的本地追加写日志.
+ * <p>
+ * 每行一条JSON记录：{@code ADD}为已应答但未处理的回调，{@code DONE}为处理完成（或已进入死信）的回调。
+ * 启动时只保留未完成的{@code ADD}记录重写日志并重新投递；运行中日志超过阈值且半数以上的记录已经失效时，
+ * 同样只保留未完成的{@code ADD}记录重写日志，积压的回调不会阻止压缩。
+ * 处理失败的回调追加到死信文件。
+ *
+ * @author felord.cn
+ * @since 1.0.20.RELEASE
+ */
+@Slf4j
+final class WechatCallbackJournal implements Closeable {
+    /**
+     * 日志文件名
+     */
+    static final String JOURNAL = "wechat-callback.journal";
+    /**
+     * 死信文件名
+     */
+    static final String DEAD_LETTER = "wechat-callback.dead-letter";
+    private static final String ADD = "ADD";
+    private static final String DONE = "DONE";
+    private static final long COMPACT_THRESHOLD = 16L * 1024 * 1024;
+    /**
+     * 失效记录（处理完成的{@code ADD}以及{@code DONE}）占比达到该值时压缩
+     */
+    private static final double COMPACT_RATIO = 0.5;
+    private final Path journal;
+    private final Path deadLetter;
+    private final boolean fsync;
+    private final ObjectReader reader;
+    private final ObjectWriter writer;
+    private final List<Entry> recovered;
+    /**
+     * 未完成的回调  key = seq
+     */
+    private final Map<Long, Entry> live = new LinkedHashMap<>();
+    private FileChannel channel;
+    private long sequence;
+    /**
+     * 日志中的记录数
+     */
+    private long records;
+
+    /**
+     * Instantiates a new Wechat callback journal.
+     *
+     * @param dir          the dir
+     * @param fsync        the fsync
+     * @param objectMapper the object mapper
+     * @throws IOException the io exception
+     */
+    WechatCallbackJournal(Path dir, boolean fsync, ObjectMapper objectMapper) throws IOException {
+        Files.createDirectories(dir);
+        this.journal = dir.resolve(JOURNAL);
+        this.deadLetter = dir.resolve(DEAD_LETTER);
+        this.fsync = fsync;
+        this.reader = objectMapper.readerFor(Entry.class);
+        this.writer = objectMapper.writerFor(Entry.class);
+        this.recovered = Collections.unmodifiableList(this.recover());
+        this.channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * 启动时未处理完成的回调.
+     *
+     * @return the list
+     */
+    List<Entry> recovered() {
+        return recovered;
+    }
+
+    /**
+     * 未处理完成的回调数量.
+     *
+     * @return the int
+     */
+    synchronized int pending() {
+        return live.size();
+    }
+
+    /**
+     * 写入回调，返回时已落盘（开启{@code fsync}时）.
+     *
+     * @param entry the entry
+     * @throws IOException the io exception
+     */
+    synchronized void append(Entry entry) throws IOException {
+        entry.setOp(ADD);
+        entry.setSeq(++sequence);
+        this.write(channel, entry);
+        if (fsync) {
+            channel.force(false);
+        }
+        records++;
+        live.put(entry.getSeq(), entry);
+    }
+
+    /**
+     * 标记回调处理完成.
+     *
+     * @param seq the seq
+     * @throws IOException the io exception
+     */
+    synchronized void done(long seq) throws IOException {
+        Entry entry = new Entry();
+        entry.setOp(DONE);
+        entry.setSeq(seq);
+        this.write(channel, entry);
+        records++;
+        live.remove(seq);
+        if (records - live.size() >= records * COMPACT_RATIO && channel.size() > COMPACT_THRESHOLD) {
+            this.compact();
+        }
+    }
+
+    /**
+     * 只保留未完成的回调重写日志，失败时继续追加写原日志.
+     */
+    private void compact() {
+        try {
+            this.rewrite(live.values());
+            FileChannel compacted = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            // 原日志已被替换，旧的文件句柄只用于关闭
+            FileChannel previous = this.channel;
+            this.channel = compacted;
+            this.records = live.size();
+            previous.close();
+        } catch (IOException e) {
+            log.warn("wechat pay callback journal {} cannot be compacted", journal, e);
+        }
+    }
+
+    /**
+     * 写入死信文件并标记回调处理完成.
+     *
+     * @param entry    the entry
+     * @param attempts the attempts
+     * @param error    the error
+     * @throws IOException the io exception
+     */
+    synchronized void deadLetter(Entry entry, int attempts, Throwable error) throws IOException {
+        Entry dead = new Entry();
+        dead.setOp(ADD);
+        dead.setSeq(entry.getSeq());
+        dead.setTenantId(entry.getTenantId());
+        dead.setId(entry.getId());
+        dead.setEventType(entry.getEventType());
+        dead.setResource(entry.getResource());
+        dead.setTime(entry.getTime());
+        dead.setAttempts(attempts);
+        dead.setError(String.valueOf(error));
+        try (FileChannel deadLetterChannel = FileChannel.open(deadLetter,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            this.write(deadLetterChannel, dead);
+            deadLetterChannel.force(false);
+        }
+        this.done(entry.getSeq());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void write(FileChannel target, Entry entry) throws IOException {
+        byte[] json = writer.writeValueAsBytes(entry);
+        ByteBuffer buffer = ByteBuffer.allocate(json.length + 1);
+        buffer.put(json).put((byte) '\n').flip();
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    /**
+     * 读取未完成的回调，并只保留这些回调重写日志.
+     *
+     * @return the list
+     * @throws IOException the io exception
+     */
+    private List<Entry> recover() throws IOException {
+        if (!Files.exists(journal)) {
+            return new ArrayList<>();
+        }
+        Map<Long, Entry> entries = new LinkedHashMap<>();
+        try (BufferedReader lines = Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = lines.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                Entry entry;
+                try {
+                    entry = reader.readValue(line);
+                } catch (IOException e) {
+                    // 进程中断时最后一行可能不完整，该回调未应答，微信支付会重新通知
+                    log.warn("skip a broken line of wechat pay callback journal {}", journal);
+                    continue;
+                }
+                sequence = Math.max(sequence, entry.getSeq());
+                if (ADD.equals(entry.getOp())) {
+                    entries.put(entry.getSeq(), entry);
+                } else {
+                    entries.remove(entry.getSeq());
+                }
+            }
+        }
+        live.putAll(entries);
+        records = entries.size();
+        this.rewrite(entries.values());
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * 写入临时文件后原子替换日志.
+     *
+     * @param entries the entries
+     * @throws IOException the io exception
+     */
+    private void rewrite(Collection<Entry> entries) throws IOException {
+        Path compacted = journal.resolveSibling(JOURNAL + ".tmp");
+        try (FileChannel compactedChannel = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Entry entry : entries) {
+                this.write(compactedChannel, entry);
+            }
+            compactedChannel.force(false);
+        }
+        Files.move(compacted, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 日志记录.
+     */
+    @Data
+    static class Entry {
+        private String op;
+        private long seq;
+        private String tenantId;
+        private String id;
+        private String eventType;
+        private CallbackParams.Resource resource;
+        private Long time;
+        private Integer attempts;
+        private String error;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+import cn.felord.payment.PayException;
+import cn.felord.payment.wechat.WechatMapperRegistry;
+import cn.felord.payment.wechat.WechatPayProperties;
+import cn.felord.payment.wechat.v3.model.CallbackParams;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 回调异步处理.
+ * <p>
+ * 回调验签后先将加密的回调数据（{@code resource}）原样写入本地日志再立即应答微信支付，日志中不保存明文；
+ * 由后台线程解密并按{@link WechatCallbackRouter}分发到处理逻辑，
+ * 处理失败按指数退避重试，达到最大次数后写入死信文件。进程重启时重新投递日志中未处理完成的回调，
+ * 因此同一回调可能被处理多次，处理逻辑需要保证幂等。积压的回调达到上限时不再应答，由微信支付稍后重新通知。
+ *
+ * @author felord.cn
+ * @see WechatPayCallback#callback(cn.felord.payment.wechat.v3.model.ResponseSignVerifyParams, WechatCallbackPipeline)
+ * @since 1.0.20.RELEASE
+ */
+@Slf4j
+public class WechatCallbackPipeline implements Closeable {
+    private static final int MAX_BACKOFF_SHIFT = 10;
+    private final SignatureProvider signatureProvider;
+    private final WechatCallbackRouter router;
+    private final WechatPayProperties.Callback callback;
+    private final WechatCallbackJournal journal;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Semaphore capacity;
+
+    /**
+     * Instantiates a new Wechat callback pipeline.
+     *
+     * @param signatureProvider the signature provider
+     * @param router            the router
+     * @param callback          the callback
+     */
+    public WechatCallbackPipeline(SignatureProvider signatureProvider, WechatCallbackRouter router, WechatPayProperties.Callback callback) {
+        this(signatureProvider, router, callback, WechatMapperRegistry.defaultRegistry());
+    }
+
+    /**
+     * Instantiates a new Wechat callback pipeline.
+     *
+     * @param signatureProvider 用于后台解密回调数据
+     * @param router            the router
+     * @param callback          the callback
+     * @param mapperRegistry    the mapper registry
+     */
+    public WechatCallbackPipeline(SignatureProvider signatureProvider, WechatCallbackRouter router, WechatPayProperties.Callback callback, WechatMapperRegistry mapperRegistry) {
+        Assert.notNull(signatureProvider, "signatureProvider is required");
+        Assert.notNull(router, "router is required");
+        Assert.hasText(callback.getJournalDir(), "wechat.pay.callback.journal-dir is required");
+        this.signatureProvider = signatureProvider;
+        this.router = router;
+        this.callback = callback;
+        try {
+            this.journal = new WechatCallbackJournal(Paths.get(callback.getJournalDir()), callback.isFsync(), mapperRegistry.objectMapper());
+        } catch (IOException e) {
+            throw new PayException("wechat pay callback journal cannot be opened", e);
+        }
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("wechat-callback-");
+        threadFactory.setDaemon(true);
+        this.executor = new ScheduledThreadPoolExecutor(Math.max(1, callback.getWorkers()), threadFactory);
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        List<WechatCallbackJournal.Entry> recovered = journal.recovered();
+        this.capacity = new Semaphore(callback.getQueueCapacity() - recovered.size());
+        if (!recovered.isEmpty()) {
+            log.info("redeliver {} pending wechat pay callbacks", recovered.size());
+            recovered.forEach(entry -> this.schedule(entry, 1, 0));
+        }
+    }
+
+    /**
+     * 是否注册了事件.
+     *
+     * @param eventType the event type
+     * @return the boolean
+     */
+    public boolean supports(String eventType) {
+        return router.supports(eventType);
+    }
+
+    /**
+     * 路由表.
+     *
+     * @return the wechat callback router
+     */
+    WechatCallbackRouter router() {
+        return router;
+    }
+
+    /**
+     * 未处理完成的回调数量，包括重试中的回调.
+     *
+     * @return the int
+     */
+    public int pending() {
+        return journal.pending();
+    }
+
+    /**
+     * 写入日志并投递，返回后即可应答微信支付.
+     *
+     * @param tenantId  the tenant id
+     * @param id        回调通知ID
+     * @param eventType the event type
+     * @param resource  已验签的加密回调数据
+     */
+    void submit(String tenantId, String id, String eventType, CallbackParams.Resource resource) {
+        if (!capacity.tryAcquire()) {
+            throw new PayException("wechat pay callback queue is full");
+        }
+        WechatCallbackJournal.Entry entry = new WechatCallbackJournal.Entry();
+        entry.setTenantId(tenantId);
+        entry.setId(id);
+        entry.setEventType(eventType);
+        entry.setResource(resource);
+        entry.setTime(System.currentTimeMillis());
+        try {
+            journal.append(entry);
+        } catch (IOException e) {
+            capacity.release();
+            throw new PayException("wechat pay callback cannot be journaled", e);
+        }
+        this.schedule(entry, 1, 0);
+    }
+
+    private void schedule(WechatCallbackJournal.Entry entry, int attempt, long delayMillis) {
+        try {
+            executor.schedule(() -> this.handle(entry, attempt), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // 已关闭，回调仍在日志中，重启后重新投递
+            log.debug("wechat pay callback pipeline is closed, callback {} is kept in the journal", entry.getId());
+        }
+    }
+
+    private void handle(WechatCallbackJournal.Entry entry, int attempt) {
+        try {
+            router.dispatch(signatureProvider, entry.getTenantId(), entry.getEventType(), entry.getResource());
+        } catch (RuntimeException e) {
+            if (attempt < callback.getMaxAttempts()) {
+                long delay = callback.getRetryBackoff().toMillis() << Math.min(attempt - 1, MAX_BACKOFF_SHIFT);
+                log.warn("wechat pay callback {} failed, attempt {}, retry in {} ms", entry.getId(), attempt, delay, e);
+                this.schedule(entry, attempt + 1, delay);
+                return;
+            }
+            log.error("wechat pay callback {} failed after {} attempts, moved to the dead-letter file", entry.getId(), attempt, e);
+            try {
+                journal.deadLetter(entry, attempt, e);
+            } catch (IOException ex) {
+                log.error("wechat pay callback {} cannot be written to the dead-letter file", entry.getId(), ex);
+            } finally {
+                capacity.release();
+            }
+            return;
+        }
+        try {
+            journal.done(entry.getSeq());
+        } catch (IOException e) {
+            log.warn("wechat pay callback {} cannot be marked as done", entry.getId(), e);
+        } finally {
+            capacity.release();
+        }
+    }
+
+    /**
+     * 停止投递，等待处理中的回调结束，未处理的回调保留在日志中.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            log.warn("wechat pay callback journal cannot be closed", e);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+import cn.felord.payment.PayException;
+import cn.felord.payment.wechat.WechatMapperRegistry;
+import cn.felord.payment.wechat.v3.model.CallbackParams;
+import cn.felord.payment.wechat.v3.model.RefundConsumeData;
+import cn.felord.payment.wechat.v3.model.TransactionConsumeData;
+import cn.felord.payment.wechat.v3.model.payscore.PayScoreUserPermissionConsumeData;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * 微信支付回调事件路由表.
+ * <p>
+ * 按事件类型（{@code event_type}）注册回调数据的类型和处理逻辑，同一个回调地址接收多种事件时，
+ * 通过{@link WechatPayCallback#callback(cn.felord.payment.wechat.v3.model.ResponseSignVerifyParams, WechatCallbackRouter)}
+ * 只验签、解密、反序列化一次并直接分发到对应的处理逻辑。同一事件类型在不同业务中的数据结构可能不同（例如{@code TRANSACTION.SUCCESS}），
+ * 不同的回调地址应使用不同的路由表。路由表应在启动时创建并复用。
+ * <pre>
+ * WechatCallbackRouter router = new WechatCallbackRouter()
+ *         .transaction(data -&gt; ...)
+ *         .refund(data -&gt; ...)
+ *         .on("COUPON.USE", CouponConsumeData.class, data -&gt; ...);
+ * </pre>
+ *
+ * @author felord.cn
+ * @since 1.0.20.RELEASE
+ */
+public class WechatCallbackRouter {
+    private final WechatMapperRegistry mapperRegistry;
+    private final Map<String, Route<?>> routes = new ConcurrentHashMap<>();
+    private volatile WechatCallbackDeduplicator deduplicator;
+
+    /**
+     * Instantiates a new Wechat callback router.
+     */
+    public WechatCallbackRouter() {
+        this(WechatMapperRegistry.defaultRegistry());
+    }
+
+    /**
+     * Instantiates a new Wechat callback router.
+     *
+     * @param mapperRegistry the mapper registry
+     */
+    public WechatCallbackRouter(WechatMapperRegistry mapperRegistry) {
+        this.mapperRegistry = mapperRegistry;
+    }
+
+    /**
+     * 注册事件，回调数据反序列化为指定类型.
+     *
+     * @param <T>       the type parameter
+     * @param eventType 事件类型，例如{@code TRANSACTION.SUCCESS}
+     * @param type      回调数据类型
+     * @param handler   处理逻辑
+     * @return the wechat callback router
+     */
+    public <T> WechatCallbackRouter on(String eventType, Class<T> type, Consumer<? super T> handler) {
+        ObjectReader reader = mapperRegistry.reader(type);
+        return this.register(eventType, new Route<>(reader::<T>readValue, reader, handler));
+    }
+
+    /**
+     * 注册事件，使用自定义的解码器.
+     *
+     * @param <T>       the type parameter
+     * @param eventType 事件类型
+     * @param decoder   解码器，参数为解密后的回调数据
+     * @param handler   处理逻辑
+     * @return the wechat callback router
+     */
+    public <T> WechatCallbackRouter on(String eventType, Decoder<T> decoder, Consumer<? super T> handler) {
+        Assert.notNull(decoder, "decoder is required");
+        return this.register(eventType, new Route<>(decoder, null, handler));
+    }
+
+    private WechatCallbackRouter register(String eventType, Route<?> route) {
+        Assert.hasText(eventType, "eventType is required");
+        Assert.notNull(route.handler, "handler is required");
+        routes.put(eventType, route);
+        return this;
+    }
+
+    /**
+     * 支付成功通知 {@code TRANSACTION.SUCCESS}.
+     *
+     * @param handler the handler
+     * @return the wechat callback router
+     */
+    public WechatCallbackRouter transaction(Consumer<? super TransactionConsumeData> handler) {
+        return this.on(WechatPayCallback.EventType.TRANSACTION_SUCCESS.event(), TransactionConsumeData.class, handler);
+    }
+
+    /**
+     * 退款通知 {@code REFUND.SUCCESS}、{@code REFUND.ABNORMAL}、{@code REFUND.CLOSED}.
+     *
+     * @param handler the handler
+     * @return the wechat callback router
+     */
+    public WechatCallbackRouter refund(Consumer<? super RefundConsumeData> handler) {
+        return this.on(WechatPayCallback.EventType.REFUND_SUCCESS.event(), RefundConsumeData.class, handler)
+                .on(WechatPayCallback.EventType.REFUND_ABNORMAL.event(), RefundConsumeData.class, handler)
+                .on(WechatPayCallback.EventType.REFUND_CLOSED.event(), RefundConsumeData.class, handler);
+    }
+
+    /**
+     * 微信支付分用户授权、解除授权通知 {@code PAYSCORE.USER_OPEN_SERVICE}、{@code PAYSCORE.USER_CLOSE_SERVICE}.
+     *
+     * @param handler the handler
+     * @return the wechat callback router
+     */
+    public WechatCallbackRouter payscorePermission(Consumer<? super PayScoreUserPermissionConsumeData> handler) {
+        ObjectReader reader = mapperRegistry.reader(PayScoreUserPermissionConsumeData.class);
+        return this.on(WechatPayCallback.EventType.PAYSCORE_USER_OPEN.event(), data -> {
+                    PayScoreUserPermissionConsumeData consumeData = reader.readValue(data);
+                    consumeData.setClosed(false);
+                    return consumeData;
+                }, handler)
+                .on(WechatPayCallback.EventType.PAYSCORE_USER_CLOSE.event(), data -> {
+                    PayScoreUserPermissionConsumeData consumeData = reader.readValue(data);
+                    consumeData.setClosed(true);
+                    return consumeData;
+                }, handler);
+    }
+
+    /**
+     * 启用回调去重，已处理过的通知验签后直接应答.
+     *
+     * @param deduplicator the deduplicator
+     * @return the wechat callback router
+     */
+    public WechatCallbackRouter deduplicator(WechatCallbackDeduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+        return this;
+    }
+
+    /**
+     * 回调是否已处理过，未启用去重时总是{@code false}.
+     *
+     * @param tenantId the tenant id
+     * @param id       回调通知ID
+     * @return the boolean
+     */
+    boolean isProcessed(String tenantId, String id) {
+        WechatCallbackDeduplicator current = deduplicator;
+        return current != null && current.isProcessed(tenantId, id);
+    }
+
+    /**
+     * 占用回调通知ID，未启用去重时总是{@code true}.
+     *
+     * @param tenantId the tenant id
+     * @param id       回调通知ID
+     * @return 占用成功时为{@code true}
+     */
+    boolean tryClaim(String tenantId, String id) {
+        WechatCallbackDeduplicator current = deduplicator;
+        return current == null || current.tryClaim(tenantId, id);
+    }
+
+    /**
+     * 释放回调通知ID的占用.
+     *
+     * @param tenantId the tenant id
+     * @param id       回调通知ID
+     */
+    void release(String tenantId, String id) {
+        WechatCallbackDeduplicator current = deduplicator;
+        if (current != null) {
+            current.release(tenantId, id);
+        }
+    }
+
+    /**
+     * 记录回调已处理.
+     *
+     * @param tenantId the tenant id
+     * @param id       回调通知ID
+     */
+    void processed(String tenantId, String id) {
+        WechatCallbackDeduplicator current = deduplicator;
+        if (current != null) {
+            current.processed(tenantId, id);
+        }
+    }
+
+    /**
+     * 是否注册了事件.
+     *
+     * @param eventType the event type
+     * @return the boolean
+     */
+    public boolean supports(String eventType) {
+        return eventType != null && routes.containsKey(eventType);
+    }
+
+    /**
+     * 已注册的事件类型.
+     *
+     * @return the set
+     */
+    public Set<String> eventTypes() {
+        return routes.keySet();
+    }
+
+    /**
+     * 事件对应的路由.
+     *
+     * @param eventType the event type
+     * @return the route
+     */
+    Route<?> route(String eventType) {
+        Route<?> route = routes.get(eventType);
+        if (route == null) {
+            throw new PayException(" wechat pay event type is not matched");
+        }
+        return route;
+    }
+
+    /**
+     * 解密并直接从明文字节解码回调数据，然后交给处理逻辑.
+     *
+     * @param signatureProvider the signature provider
+     * @param tenantId          the tenant id
+     * @param eventType         the event type
+     * @param resource          加密的回调数据
+     */
+    void dispatch(SignatureProvider signatureProvider, String tenantId, String eventType, CallbackParams.Resource resource) {
+        dispatch(this.route(eventType), signatureProvider, tenantId, resource);
+    }
+
+    private static <T> void dispatch(Route<T> route, SignatureProvider signatureProvider, String tenantId, CallbackParams.Resource resource) {
+        T consumeData = signatureProvider.decryptResponseBody(tenantId, resource.getAssociatedData(),
+                resource.getNonce(), resource.getCiphertext(), route::decode);
+        route.accept(consumeData);
+    }
+
+    /**
+     * 回调数据解码器.
+     *
+     * @param <T> the type parameter
+     */
+    @FunctionalInterface
+    public interface Decoder<T> {
+        /**
+         * Decode t.
+         *
+         * @param data 解密后的回调数据
+         * @return the t
+         * @throws IOException the io exception
+         */
+        T decode(String data) throws IOException;
+    }
+
+    /**
+     * 事件的解码器和处理逻辑.
+     *
+     * @param <T> the type parameter
+     */
+    static final class Route<T> {
+        private final Decoder<T> decoder;
+        private final ObjectReader reader;
+        private final Consumer<? super T> handler;
+
+        private Route(Decoder<T> decoder, ObjectReader reader, Consumer<? super T> handler) {
+            this.decoder = decoder;
+            this.reader = reader;
+            this.handler = handler;
+        }
+
+        /**
+         * 从明文缓冲区解码，注册了回调数据类型时直接按字节反序列化.
+         *
+         * @param plaintext the plaintext
+         * @param offset    the offset
+         * @param length    the length
+         * @return the t
+         * @throws IOException the io exception
+         */
+        T decode(byte[] plaintext, int offset, int length) throws IOException {
+            return reader != null ? reader.readValue(plaintext, offset, length)
+                    : decoder.decode(new String(plaintext, offset, length, StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Accept.
+         *
+         * @param consumeData the consume data
+         */
+        void accept(T consumeData) {
+            handler.accept(consumeData);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 微信平台证书容器.
+ * <p>
+ * 同时按照证书序列号和租户建立索引，读取不加锁；某个租户的证书整体替换，替换过程对读取方原子可见。
+ *
+ * @author felord.cn
+ * @since 1.0.20.RELEASE
+ */
+final class WechatCertificateContainer {
+    /**
+     * key = 证书序列号  value = 证书
+     */
+    private final Map<String, X509WechatCertificateInfo> serialIndex = new ConcurrentHashMap<>();
+    /**
+     * key = 租户id  value = 该租户的证书（key = 证书序列号），只读快照
+     */
+    private final Map<String, Map<String, X509WechatCertificateInfo>> tenantIndex = new ConcurrentHashMap<>();
+    /**
+     * key = 租户id  value = 最近一次替换证书的时间
+     */
+    private final Map<String, Instant> refreshedAt = new ConcurrentHashMap<>();
+
+    /**
+     * 根据证书序列号获取证书.
+     *
+     * @param wechatPaySerial the wechat pay serial
+     * @return the x 509 wechat certificate info, maybe null
+     */
+    X509WechatCertificateInfo getBySerial(String wechatPaySerial) {
+        return wechatPaySerial == null ? null : serialIndex.get(wechatPaySerial);
+    }
+
+    /**
+     * 获取租户当前应使用的证书，多张证书并存时取过期时间最晚的一张.
+     *
+     * @param tenantId the tenant id
+     * @return the x 509 wechat certificate info, maybe null
+     */
+    X509WechatCertificateInfo getByTenant(String tenantId) {
+        Map<String, X509WechatCertificateInfo> certificates = tenantIndex.get(tenantId);
+        if (certificates == null || certificates.isEmpty()) {
+            return null;
+        }
+        return certificates.values()
+                .stream()
+                .max(Comparator.comparing(info -> info.getX509Certificate().getNotAfter()))
+                .orElse(null);
+    }
+
+    /**
+     * 获取租户的全部证书.
+     *
+     * @param tenantId the tenant id
+     * @return the certificates
+     */
+    Collection<X509WechatCertificateInfo> getAllByTenant(String tenantId) {
+        Map<String, X509WechatCertificateInfo> certificates = tenantIndex.get(tenantId);
+        return certificates == null ? Collections.emptyList() : certificates.values();
+    }
+
+    /**
+     * 已经获取过证书的租户.
+     *
+     * @return the tenant ids
+     */
+    Set<String> getTenantIds() {
+        return Collections.unmodifiableSet(tenantIndex.keySet());
+    }
+
+    /**
+     * 租户证书最近一次替换的时间.
+     *
+     * @param tenantId the tenant id
+     * @return the instant, maybe null
+     */
+    Instant getRefreshedAt(String tenantId) {
+        return refreshedAt.get(tenantId);
+    }
+
+    /**
+     * 整体替换某个租户的证书.
+     *
+     * @param tenantId     the tenant id
+     * @param certificates the certificates
+     */
+    void replace(String tenantId, Collection<X509WechatCertificateInfo> certificates) {
+        Map<String, X509WechatCertificateInfo> snapshot = new LinkedHashMap<>();
+        certificates.forEach(info -> snapshot.put(info.getWechatPaySerial(), info));
+        // 先建立新证书的序列号索引，保证替换过程中任何时刻都能检索到
+        snapshot.forEach(serialIndex::put);
+        Map<String, X509WechatCertificateInfo> previous = tenantIndex.put(tenantId, Collections.unmodifiableMap(snapshot));
+        refreshedAt.put(tenantId, Instant.now());
+        if (previous != null) {
+            previous.keySet()
+                    .stream()
+                    .filter(serial -> !snapshot.containsKey(serial))
+                    .forEach(this::reindex);
+        }
+    }
+
+    /**
+     * 移除某个租户的证书.
+     *
+     * @param tenantId the tenant id
+     */
+    void remove(String tenantId) {
+        Map<String, X509WechatCertificateInfo> previous = tenantIndex.remove(tenantId);
+        refreshedAt.remove(tenantId);
+        if (previous != null) {
+            previous.keySet().forEach(this::reindex);
+        }
+    }
+
+    /**
+     * 同一商户号下的多个租户共享平台证书，序列号失效时需要从其它租户中找回.
+     *
+     * @param wechatPaySerial the wechat pay serial
+     */
+    private void reindex(String wechatPaySerial) {
+        serialIndex.compute(wechatPaySerial, (serial, current) -> tenantIndex.values()
+                .stream()
+                .map(certificates -> certificates.get(serial))
+                .filter(Objects::nonNull)
+                .findAny()
+                .orElse(null));
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+import cn.felord.payment.PayException;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * 微信平台证书本地文件缓存.
+ * <p>
+ * 每个租户一个目录，每张证书一个文件，文件名为证书序列号。文件首行为使用该租户APIv3密钥计算的HMAC-SHA256，
+ * 读取时校验不通过或者证书已过期的文件会被忽略，保证缓存文件无法被篡改。
+ *
+ * @author felord.cn
+ * @since 1.0.20.RELEASE
+ */
+@Slf4j
+final class WechatCertificateFileCache {
+    private static final String HMAC_SHA256 = "HmacSHA256";
+    private static final String HMAC_PREFIX = "# hmac-sha256 ";
+    private static final String FILE_SUFFIX = ".pem";
+    private static final Pattern SAFE_NAME = Pattern.compile("[A-Za-z0-9_.-]+");
+    private final Path directory;
+    private final WechatCryptoProvider cryptoProvider;
+
+    /**
+     * Instantiates a new Wechat certificate file cache.
+     *
+     * @param directory      the directory
+     * @param cryptoProvider the crypto provider
+     */
+    WechatCertificateFileCache(String directory, WechatCryptoProvider cryptoProvider) {
+        this.directory = Paths.get(directory);
+        this.cryptoProvider = cryptoProvider;
+    }
+
+    /**
+     * 读取租户缓存的证书.
+     *
+     * @param tenantId the tenant id
+     * @param apiV3Key the api v3 key
+     * @return the certificates, maybe empty
+     */
+    List<X509WechatCertificateInfo> load(String tenantId, String apiV3Key) {
+        Path tenantDirectory = directory.resolve(fileName(tenantId));
+        List<X509WechatCertificateInfo> certificates = new ArrayList<>();
+        if (!Files.isDirectory(tenantDirectory)) {
+            return certificates;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(tenantDirectory, "*" + FILE_SUFFIX)) {
+            CertificateFactory certificateFactory = cryptoProvider.certificateFactory();
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                String serial = fileName.substring(0, fileName.length() - FILE_SUFFIX.length());
+                X509Certificate certificate = this.read(file, tenantId, serial, apiV3Key, certificateFactory);
+                if (certificate != null) {
+                    X509WechatCertificateInfo info = new X509WechatCertificateInfo();
+                    info.setWechatPaySerial(serial);
+                    info.setTenantId(tenantId);
+                    info.setX509Certificate(certificate);
+                    certificates.add(info);
+                }
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            log.warn("wechat pay platform certificates cache cannot be read, tenant {}", tenantId, e);
+        }
+        return certificates;
+    }
+
+    /**
+     * 写入租户的证书，并移除已不存在的证书文件.
+     *
+     * @param tenantId     the tenant id
+     * @param apiV3Key     the api v3 key
+     * @param certificates the certificates
+     */
+    void save(String tenantId, String apiV3Key, Collection<X509WechatCertificateInfo> certificates) {
+        Path tenantDirectory = directory.resolve(fileName(tenantId));
+        try {
+            Files.createDirectories(tenantDirectory);
+            for (X509WechatCertificateInfo certificate : certificates) {
+                String serial = certificate.getWechatPaySerial();
+                String pem = pem(certificate.getX509Certificate());
+                String content = HMAC_PREFIX + hmac(apiV3Key, tenantId, serial, pem) + "\n" + pem;
+                Path target = tenantDirectory.resolve(fileName(serial) + FILE_SUFFIX);
+                Path temp = Files.createTempFile(tenantDirectory, serial, ".tmp");
+                Files.write(temp, content.getBytes(StandardCharsets.UTF_8));
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Set<String> current = certificates.stream()
+                    .map(certificate -> fileName(certificate.getWechatPaySerial()) + FILE_SUFFIX)
+                    .collect(Collectors.toSet());
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(tenantDirectory, "*" + FILE_SUFFIX)) {
+                for (Path file : files) {
+                    if (!current.contains(file.getFileName().toString())) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            log.warn("wechat pay platform certificates cache cannot be written, tenant {}", tenantId, e);
+        }
+    }
+
+    private X509Certificate read(Path file, String tenantId, String serial, String apiV3Key, CertificateFactory certificateFactory) {
+        try {
+            String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            int lineEnd = content.indexOf('\n');
+            if (!content.startsWith(HMAC_PREFIX) || lineEnd < 0) {
+                log.warn("wechat pay platform certificate cache {} is malformed, ignored", file);
+                return null;
+            }
+            String expected = content.substring(HMAC_PREFIX.length(), lineEnd);
+            String pem = content.substring(lineEnd + 1);
+            String actual = hmac(apiV3Key, tenantId, serial, pem);
+            if (!MessageDigest.isEqual(expected.getBytes(StandardCharsets.US_ASCII), actual.getBytes(StandardCharsets.US_ASCII))) {
+                log.warn("wechat pay platform certificate cache {} failed the integrity check, ignored", file);
+                return null;
+            }
+            X509Certificate certificate = (X509Certificate) certificateFactory
+                    .generateCertificate(new ByteArrayInputStream(pem.getBytes(StandardCharsets.US_ASCII)));
+            certificate.checkValidity();
+            return certificate;
+        } catch (IOException | GeneralSecurityException e) {
+            log.warn("wechat pay platform certificate cache {} is unusable, ignored", file, e);
+            return null;
+        }
+    }
+
+    private static String hmac(String apiV3Key, String tenantId, String serial, String pem) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(HMAC_SHA256);
+        mac.init(new SecretKeySpec(apiV3Key.getBytes(StandardCharsets.UTF_8), HMAC_SHA256));
+        String message = tenantId + "\n" + serial + "\n" + pem;
+        return Base64.getEncoder().encodeToString(mac.doFinal(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String pem(X509Certificate certificate) {
+        try {
+            Base64.Encoder encoder = Base64.getMimeEncoder(64, "\n".getBytes(StandardCharsets.US_ASCII));
+            return "-----BEGIN CERTIFICATE-----\n" +
+                    encoder.encodeToString(certificate.getEncoded()) +
+                    "\n-----END CERTIFICATE-----\n";
+        } catch (CertificateException e) {
+            throw new PayException(e);
+        }
+    }
+
+    /**
+     * 租户id和序列号作为文件名，包含特殊字符时进行编码.
+     *
+     * @param name the name
+     * @return the file name
+     */
+    private static String fileName(String name) {
+        if (SAFE_NAME.matcher(name).matches() && !name.startsWith(".")) {
+            return name;
+        }
+        return "_" + Base64.getUrlEncoder()
+                .withoutPadding()
+                .encodeToString(name.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+import cn.felord.payment.wechat.WechatPayProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 微信平台证书后台定时刷新.
+ * <p>
+ * 在证书临近过期或者距上次获取超过一定时长时主动调用/v3/certificates，使新证书在支付请求到来之前就已经就绪，
+ * 避免证书轮换后第一个请求同步承担获取和解密证书的开销。只刷新已经获取过证书的租户，
+ * 尚未使用过的租户（例如按需加载的租户）仍在首次使用时获取，不会因为定时刷新被提前加载。
+ *
+ * @author felord.cn
+ * @since 1.0.20.RELEASE
+ */
+@Slf4j
+public class WechatCertificateRefreshScheduler implements InitializingBean, DisposableBean {
+    /**
+     * The Signature provider.
+     */
+    private final SignatureProvider signatureProvider;
+    /**
+     * The Refresh properties.
+     */
+    private final WechatPayProperties.Refresh refresh;
+    /**
+     * The Scheduler.
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Instantiates a new Wechat certificate refresh scheduler.
+     *
+     * @param signatureProvider the signature provider
+     * @param refresh           the refresh
+     */
+    public WechatCertificateRefreshScheduler(SignatureProvider signatureProvider, WechatPayProperties.Refresh refresh) {
+        this.signatureProvider = signatureProvider;
+        this.refresh = refresh;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("wechat-certificate-refresh-");
+        threadFactory.setDaemon(true);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        long interval = refresh.getCheckInterval().toMillis();
+        this.scheduler.scheduleWithFixedDelay(this::refreshCertificates, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        if (Objects.nonNull(this.scheduler)) {
+            this.scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * 检查已获取过证书的租户，必要时刷新.
+     */
+    void refreshCertificates() {
+        for (String tenantId : signatureProvider.certificateContainer().getTenantIds()) {
+            if (this.requiresRefresh(tenantId)) {
+                try {
+                    signatureProvider.refreshCertificate(tenantId);
+                } catch (Exception e) {
+                    log.warn("wechat pay platform certificates refresh failed, tenant {}", tenantId, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 证书即将过期或者距上次获取已超过最大时长时需要刷新，证书已被移除的租户不再刷新.
+     *
+     * @param tenantId the tenant id
+     * @return the boolean
+     */
+    private boolean requiresRefresh(String tenantId) {
+        WechatCertificateContainer certificateContainer = signatureProvider.certificateContainer();
+        Instant refreshedAt = certificateContainer.getRefreshedAt(tenantId);
+        if (Objects.isNull(refreshedAt)) {
+            return false;
+        }
+        if (refreshedAt.plus(refresh.getMaxAge()).isBefore(Instant.now())) {
+            return true;
+        }
+        Collection<X509WechatCertificateInfo> certificates = certificateContainer.getAllByTenant(tenantId);
+        return certificates.isEmpty() ||
+                certificates.stream().allMatch(certificate -> certificate.expiresWithin(refresh.getExpiryMargin()));
+    }
+}
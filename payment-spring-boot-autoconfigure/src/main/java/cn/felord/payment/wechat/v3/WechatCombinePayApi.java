@@ -27,6 +27,7 @@ import org.springframework.http.RequestEntity;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import java.net.URI;
+import java.util.concurrent.CompletionStage;
 
 /**
  * 微信合单支付.
@@ -65,6 +66,22 @@ public class WechatCombinePayApi extends AbstractApi {
         return wechatResponseEntity;
     }
 
+    /**
+     * 合单下单-APP支付API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param combinePayParams the combine pay params
+     * @return the wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> appPayAsync(CombinePayParams combinePayParams) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.COMBINE_APP, combinePayParams)
+                .function(this::combinePayFunction)
+                .consumer(wechatResponseEntity::convert)
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
 
     /**
      * 合单下单-JSAPI支付/小程序支付API
@@ -86,6 +103,22 @@ public class WechatCombinePayApi extends AbstractApi {
         return wechatResponseEntity;
     }
 
+    /**
+     * 合单下单-JSAPI支付/小程序支付API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param combinePayParams the combine pay params
+     * @return wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> jsPayAsync(CombinePayParams combinePayParams) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.COMBINE_JSAPI, combinePayParams)
+                .function(this::combinePayFunction)
+                .consumer(wechatResponseEntity::convert)
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
     /**
      * Combine pay function request entity.
      *
@@ -126,6 +159,22 @@ public class WechatCombinePayApi extends AbstractApi {
         return wechatResponseEntity;
     }
 
+    /**
+     * 合单下单-H5支付API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param combineH5PayParams the combine h 5 pay params
+     * @return the wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> h5PayAsync(CombineH5PayParams combineH5PayParams) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.COMBINE_MWEB, combineH5PayParams)
+                .function(this::combinePayFunction)
+                .consumer(wechatResponseEntity::convert)
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
     /**
      * Combine pay function request entity.
      *
@@ -166,6 +215,22 @@ public class WechatCombinePayApi extends AbstractApi {
         return wechatResponseEntity;
     }
 
+    /**
+     * 合单下单-Native支付API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param combinePayParams the combine pay params
+     * @return the wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> nativePayAsync(CombinePayParams combinePayParams) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.COMBINE_NATIVE, combinePayParams)
+                .function(this::combinePayFunction)
+                .consumer(wechatResponseEntity::convert)
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
     /**
      * 合单查询订单API.
      *
@@ -175,18 +240,36 @@ public class WechatCombinePayApi extends AbstractApi {
     public WechatResponseEntity<ObjectNode> queryTransactionByOutTradeNo(String combineOutTradeNo) {
         WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
         this.client().withType(WechatPayV3Type.COMBINE_TRANSACTION_OUT_TRADE_NO, combineOutTradeNo)
-                .function((wechatPayV3Type, outTradeNo) -> {
-                    URI uri = UriComponentsBuilder.fromHttpUrl(wechatPayV3Type.uri(WeChatServer.CHINA))
-                            .build()
-                            .expand(outTradeNo)
-                            .toUri();
-                    return Get(uri);
-                })
+                .function(this::queryTransactionFunction)
                 .consumer(wechatResponseEntity::convert)
                 .request();
         return wechatResponseEntity;
     }
 
+    /**
+     * 合单查询订单API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param combineOutTradeNo the combine out trade no
+     * @return the wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> queryTransactionByOutTradeNoAsync(String combineOutTradeNo) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.COMBINE_TRANSACTION_OUT_TRADE_NO, combineOutTradeNo)
+                .function(this::queryTransactionFunction)
+                .consumer(wechatResponseEntity::convert)
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
+    private RequestEntity<?> queryTransactionFunction(WechatPayV3Type wechatPayV3Type, String outTradeNo) {
+        URI uri = UriComponentsBuilder.fromHttpUrl(wechatPayV3Type.uri(WeChatServer.CHINA))
+                .build()
+                .expand(outTradeNo)
+                .toUri();
+        return Get(uri);
+    }
+
     /**
      * 合单关闭订单API.
      * <p>
@@ -200,16 +283,34 @@ public class WechatCombinePayApi extends AbstractApi {
     public WechatResponseEntity<ObjectNode> close(CombineCloseParams combineCloseParams) {
         WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
         this.client().withType(WechatPayV3Type.COMBINE_CLOSE, combineCloseParams)
-                .function((wechatPayV3Type, params) -> {
-                    URI uri = UriComponentsBuilder.fromHttpUrl(wechatPayV3Type.uri(WeChatServer.CHINA))
-                            .build().toUri();
-                    return Post(uri, params);
-                })
+                .function(this::closeFunction)
                 .consumer(wechatResponseEntity::convert)
                 .request();
         return wechatResponseEntity;
     }
 
+    /**
+     * 合单关闭订单API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param combineCloseParams the combine close params
+     * @return the wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> closeAsync(CombineCloseParams combineCloseParams) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.COMBINE_CLOSE, combineCloseParams)
+                .function(this::closeFunction)
+                .consumer(wechatResponseEntity::convert)
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
+    private RequestEntity<?> closeFunction(WechatPayV3Type wechatPayV3Type, CombineCloseParams params) {
+        URI uri = UriComponentsBuilder.fromHttpUrl(wechatPayV3Type.uri(WeChatServer.CHINA))
+                .build().toUri();
+        return Post(uri, params);
+    }
+
     /**
      * 查询单笔退款API
      *
@@ -220,15 +321,33 @@ public class WechatCombinePayApi extends AbstractApi {
     public WechatResponseEntity<ObjectNode> queryRefundInfo(String outRefundNo) {
         WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
         this.client().withType(WechatPayV3Type.QUERY_REFUND, outRefundNo)
-                .function(((type, param) -> {
-                    URI uri = UriComponentsBuilder.fromHttpUrl(type.uri(WeChatServer.CHINA))
-                            .build()
-                            .expand(param)
-                            .toUri();
-                    return Get(uri);
-                }))
+                .function(this::queryRefundFunction)
                 .consumer(wechatResponseEntity::convert)
                 .request();
         return wechatResponseEntity;
     }
+
+    /**
+     * 查询单笔退款API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param outRefundNo the out refund no
+     * @return the wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> queryRefundInfoAsync(String outRefundNo) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.QUERY_REFUND, outRefundNo)
+                .function(this::queryRefundFunction)
+                .consumer(wechatResponseEntity::convert)
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
+    private RequestEntity<?> queryRefundFunction(WechatPayV3Type type, String param) {
+        URI uri = UriComponentsBuilder.fromHttpUrl(type.uri(WeChatServer.CHINA))
+                .build()
+                .expand(param)
+                .toUri();
+        return Get(uri);
+    }
 }
@@ -0,0 +1,58 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+import javax.crypto.Cipher;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+
+/**
+ * 加解密、签名算法实例的提供方，可被覆盖以选择不同的JCA Provider.
+ *
+ * @author felord.cn
+ * @see DefaultWechatCryptoProvider
+ * @since 1.0.20.RELEASE
+ */
+public interface WechatCryptoProvider {
+
+    /**
+     * 签名、验签，目前为 SHA256withRSA.
+     *
+     * @param algorithm the algorithm
+     * @return the signature
+     * @throws GeneralSecurityException the general security exception
+     */
+    Signature signature(String algorithm) throws GeneralSecurityException;
+
+    /**
+     * 加解密，目前为 AES/GCM/NoPadding 和 RSA/ECB/OAEPWithSHA-1AndMGF1Padding.
+     *
+     * @param transformation the transformation
+     * @return the cipher
+     * @throws GeneralSecurityException the general security exception
+     */
+    Cipher cipher(String transformation) throws GeneralSecurityException;
+
+    /**
+     * 解析微信平台证书.
+     *
+     * @return the certificate factory
+     * @throws GeneralSecurityException the general security exception
+     */
+    CertificateFactory certificateFactory() throws GeneralSecurityException;
+}
@@ -25,6 +25,7 @@ import cn.felord.payment.wechat.v3.model.RefundParams;
 import cn.felord.payment.wechat.v3.model.TransactionQueryParams;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.springframework.http.RequestEntity;
+import org.springframework.http.ResponseEntity;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.util.StringUtils;
@@ -37,6 +38,7 @@ import java.time.ZoneOffset;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletionStage;
 
 /**
  * 普通支付-直连模式.
@@ -66,45 +68,63 @@ public class WechatDirectPayApi extends AbstractApi {
         WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
         this.client().withType(WechatPayV3Type.APP, payParams)
                 .function(this::payFunction)
-                .consumer(responseEntity -> {
-                    ObjectNode body = responseEntity.getBody();
-                    if (Objects.isNull(body)) {
-                        throw new PayException("response body cannot be resolved");
-                    }
-
-                    SignatureProvider signatureProvider = this.client().signatureProvider();
-                    WechatMetaContainer wechatMetaContainer = signatureProvider.wechatMetaContainer();
-                    WechatMetaBean wechatMetaBean = wechatMetaContainer.getWechatMeta(tenantId());
-                    PrivateKey privateKey = wechatMetaBean.getKeyPair().getPrivate();
-
-                    String appId = wechatMetaBean.getV3().getAppId();
-                    long epochSecond = LocalDateTime.now()
-                            .toEpochSecond(ZoneOffset.of("+8"));
-                    String timestamp = String.valueOf(epochSecond);
-                    String nonceStr = signatureProvider.nonceStrGenerator()
-                            .generateId()
-                            .toString()
-                            .replaceAll("-", "");
-                    String prepayId = body.get("prepay_id").asText();
-                    String paySign = signatureProvider.doRequestSign(privateKey, appId, timestamp, nonceStr, prepayId);
-                    String mchId = wechatMetaBean.getV3().getMchId();
-
-                    body.put("appid", appId);
-                    body.put("partnerid", mchId);
-                    body.put("prepayid", prepayId);
-                    body.put("package", "Sign=WXPay");
-                    body.put("nonceStr", nonceStr);
-                    body.put("timeStamp", timestamp);
-                    body.put("signType", "RSA");
-                    body.put("paySign", paySign);
-
-                    wechatResponseEntity.setHttpStatus(responseEntity.getStatusCodeValue());
-                    wechatResponseEntity.setBody(body);
-                })
+                .consumer(responseEntity -> this.appPayResponse(responseEntity, wechatResponseEntity))
                 .request();
         return wechatResponseEntity;
     }
 
+    /**
+     * APP下单API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param payParams the pay params
+     * @return the wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> appPayAsync(PayParams payParams) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.APP, payParams)
+                .function(this::payFunction)
+                .consumer(responseEntity -> this.appPayResponse(responseEntity, wechatResponseEntity))
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
+    private void appPayResponse(ResponseEntity<ObjectNode> responseEntity, WechatResponseEntity<ObjectNode> wechatResponseEntity) {
+        ObjectNode body = responseEntity.getBody();
+        if (Objects.isNull(body)) {
+            throw new PayException("response body cannot be resolved");
+        }
+
+        SignatureProvider signatureProvider = this.client().signatureProvider();
+        WechatMetaContainer wechatMetaContainer = signatureProvider.wechatMetaContainer();
+        WechatMetaBean wechatMetaBean = wechatMetaContainer.getWechatMeta(tenantId());
+        PrivateKey privateKey = wechatMetaBean.getKeyPair().getPrivate();
+
+        String appId = wechatMetaBean.getV3().getAppId();
+        long epochSecond = LocalDateTime.now()
+                .toEpochSecond(ZoneOffset.of("+8"));
+        String timestamp = String.valueOf(epochSecond);
+        String nonceStr = signatureProvider.nonceStrGenerator()
+                .generateId()
+                .toString()
+                .replaceAll("-", "");
+        String prepayId = body.get("prepay_id").asText();
+        String paySign = signatureProvider.doRequestSign(privateKey, appId, timestamp, nonceStr, prepayId);
+        String mchId = wechatMetaBean.getV3().getMchId();
+
+        body.put("appid", appId);
+        body.put("partnerid", mchId);
+        body.put("prepayid", prepayId);
+        body.put("package", "Sign=WXPay");
+        body.put("nonceStr", nonceStr);
+        body.put("timeStamp", timestamp);
+        body.put("signType", "RSA");
+        body.put("paySign", paySign);
+
+        wechatResponseEntity.setHttpStatus(responseEntity.getStatusCodeValue());
+        wechatResponseEntity.setBody(body);
+    }
+
     /**
      * JSAPI/小程序下单API
      *
@@ -115,42 +135,60 @@ public class WechatDirectPayApi extends AbstractApi {
         WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
         this.client().withType(WechatPayV3Type.JSAPI, payParams)
                 .function(this::payFunction)
-                .consumer(responseEntity -> {
-                    ObjectNode body = responseEntity.getBody();
-                    if (Objects.isNull(body)) {
-                        throw new PayException("response body cannot be resolved");
-                    }
-
-                    SignatureProvider signatureProvider = this.client().signatureProvider();
-                    WechatMetaContainer wechatMetaContainer = signatureProvider.wechatMetaContainer();
-                    WechatMetaBean wechatMetaBean = wechatMetaContainer.getWechatMeta(tenantId());
-                    PrivateKey privateKey = wechatMetaBean.getKeyPair().getPrivate();
-
-                    String appId = wechatMetaBean.getV3().getAppId();
-                    long epochSecond = LocalDateTime.now()
-                            .toEpochSecond(ZoneOffset.of("+8"));
-                    String timestamp = String.valueOf(epochSecond);
-                    String nonceStr = signatureProvider.nonceStrGenerator()
-                            .generateId()
-                            .toString()
-                            .replaceAll("-", "");
-                    String packageStr = "prepay_id=" + body.get("prepay_id").asText();
-                    String paySign = signatureProvider.doRequestSign(privateKey, appId, timestamp, nonceStr, packageStr);
-
-                    body.put("appId", appId);
-                    body.put("timeStamp", timestamp);
-                    body.put("nonceStr", nonceStr);
-                    body.put("package", packageStr);
-                    body.put("signType", "RSA");
-                    body.put("paySign", paySign);
-
-                    wechatResponseEntity.setHttpStatus(responseEntity.getStatusCodeValue());
-                    wechatResponseEntity.setBody(body);
-                })
+                .consumer(responseEntity -> this.jsPayResponse(responseEntity, wechatResponseEntity))
                 .request();
         return wechatResponseEntity;
     }
 
+    /**
+     * JSAPI/小程序下单API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param payParams the pay params
+     * @return wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> jsPayAsync(PayParams payParams) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.JSAPI, payParams)
+                .function(this::payFunction)
+                .consumer(responseEntity -> this.jsPayResponse(responseEntity, wechatResponseEntity))
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
+    private void jsPayResponse(ResponseEntity<ObjectNode> responseEntity, WechatResponseEntity<ObjectNode> wechatResponseEntity) {
+        ObjectNode body = responseEntity.getBody();
+        if (Objects.isNull(body)) {
+            throw new PayException("response body cannot be resolved");
+        }
+
+        SignatureProvider signatureProvider = this.client().signatureProvider();
+        WechatMetaContainer wechatMetaContainer = signatureProvider.wechatMetaContainer();
+        WechatMetaBean wechatMetaBean = wechatMetaContainer.getWechatMeta(tenantId());
+        PrivateKey privateKey = wechatMetaBean.getKeyPair().getPrivate();
+
+        String appId = wechatMetaBean.getV3().getAppId();
+        long epochSecond = LocalDateTime.now()
+                .toEpochSecond(ZoneOffset.of("+8"));
+        String timestamp = String.valueOf(epochSecond);
+        String nonceStr = signatureProvider.nonceStrGenerator()
+                .generateId()
+                .toString()
+                .replaceAll("-", "");
+        String packageStr = "prepay_id=" + body.get("prepay_id").asText();
+        String paySign = signatureProvider.doRequestSign(privateKey, appId, timestamp, nonceStr, packageStr);
+
+        body.put("appId", appId);
+        body.put("timeStamp", timestamp);
+        body.put("nonceStr", nonceStr);
+        body.put("package", packageStr);
+        body.put("signType", "RSA");
+        body.put("paySign", paySign);
+
+        wechatResponseEntity.setHttpStatus(responseEntity.getStatusCodeValue());
+        wechatResponseEntity.setBody(body);
+    }
+
     /**
      * Native下单API
      *
@@ -166,6 +204,22 @@ public class WechatDirectPayApi extends AbstractApi {
         return wechatResponseEntity;
     }
 
+    /**
+     * Native下单API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param payParams the pay params
+     * @return wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> nativePayAsync(PayParams payParams) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.NATIVE, payParams)
+                .function(this::payFunction)
+                .consumer(wechatResponseEntity::convert)
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
     /**
      * H5下单API
      *
@@ -181,6 +235,22 @@ public class WechatDirectPayApi extends AbstractApi {
         return wechatResponseEntity;
     }
 
+    /**
+     * H5下单API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param payParams the pay params
+     * @return wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> h5PayAsync(PayParams payParams) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.MWEB, payParams)
+                .function(this::payFunction)
+                .consumer(wechatResponseEntity::convert)
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
     private RequestEntity<?> payFunction(WechatPayV3Type type, PayParams payParams) {
         WechatPayProperties.V3 v3 = this.wechatMetaBean().getV3();
         payParams.setAppid(v3.getAppId());
@@ -208,6 +278,22 @@ public class WechatDirectPayApi extends AbstractApi {
         return wechatResponseEntity;
     }
 
+    /**
+     * 微信支付订单号查询API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param params the params
+     * @return the wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> queryTransactionByIdAsync(TransactionQueryParams params) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.TRANSACTION_TRANSACTION_ID, params)
+                .function(this::queryTransactionFunction)
+                .consumer(wechatResponseEntity::convert)
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
     /**
      * 商户订单号查询API
      *
@@ -223,6 +309,22 @@ public class WechatDirectPayApi extends AbstractApi {
         return wechatResponseEntity;
     }
 
+    /**
+     * 商户订单号查询API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param params the params
+     * @return the wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> queryTransactionByOutTradeNoAsync(TransactionQueryParams params) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.TRANSACTION_OUT_TRADE_NO, params)
+                .function(this::queryTransactionFunction)
+                .consumer(wechatResponseEntity::convert)
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
     private RequestEntity<?> queryTransactionFunction(WechatPayV3Type type, TransactionQueryParams params) {
         WechatPayProperties.V3 v3 = this.wechatMetaBean().getV3();
 
@@ -252,6 +354,22 @@ public class WechatDirectPayApi extends AbstractApi {
         return wechatResponseEntity;
     }
 
+    /**
+     * 关单API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param outTradeNo the out trade no
+     * @return the wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> closeAsync(String outTradeNo) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.CLOSE, outTradeNo)
+                .function(this::closeByOutTradeNoFunction)
+                .consumer(wechatResponseEntity::convert)
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
     private RequestEntity<?> closeByOutTradeNoFunction(WechatPayV3Type type, String outTradeNo) {
         WechatPayProperties.V3 v3 = this.wechatMetaBean().getV3();
 
@@ -275,22 +393,40 @@ public class WechatDirectPayApi extends AbstractApi {
     public WechatResponseEntity<ObjectNode> refund(RefundParams refundParams) {
         WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
         this.client().withType(WechatPayV3Type.REFUND, refundParams)
-                .function(((type, params) -> {
-                    URI uri = UriComponentsBuilder.fromHttpUrl(type.uri(WeChatServer.CHINA))
-                            .build()
-                            .toUri();
-                    WechatPayProperties.V3 v3 = this.wechatMetaBean().getV3();
-                    String notifyUrl = params.getNotifyUrl();
-                    if (StringUtils.hasText(notifyUrl)) {
-                        params.setNotifyUrl(v3.getDomain().concat(notifyUrl));
-                    }
-                    return Post(uri, params);
-                }))
+                .function(this::refundFunction)
                 .consumer(wechatResponseEntity::convert)
                 .request();
         return wechatResponseEntity;
     }
 
+    /**
+     * 申请退款API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param refundParams the refund params
+     * @return the wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> refundAsync(RefundParams refundParams) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.REFUND, refundParams)
+                .function(this::refundFunction)
+                .consumer(wechatResponseEntity::convert)
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
+    private RequestEntity<?> refundFunction(WechatPayV3Type type, RefundParams params) {
+        URI uri = UriComponentsBuilder.fromHttpUrl(type.uri(WeChatServer.CHINA))
+                .build()
+                .toUri();
+        WechatPayProperties.V3 v3 = this.wechatMetaBean().getV3();
+        String notifyUrl = params.getNotifyUrl();
+        if (StringUtils.hasText(notifyUrl)) {
+            params.setNotifyUrl(v3.getDomain().concat(notifyUrl));
+        }
+        return Post(uri, params);
+    }
+
     /**
      * 查询单笔退款API
      *
@@ -301,16 +437,34 @@ public class WechatDirectPayApi extends AbstractApi {
     public WechatResponseEntity<ObjectNode> queryRefundInfo(String outRefundNo) {
         WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
         this.client().withType(WechatPayV3Type.QUERY_REFUND, outRefundNo)
-                .function(((type, param) -> {
-                    URI uri = UriComponentsBuilder.fromHttpUrl(type.uri(WeChatServer.CHINA))
-                            .build()
-                            .expand(param)
-                            .toUri();
-                    return Get(uri);
-                }))
+                .function(this::queryRefundFunction)
                 .consumer(wechatResponseEntity::convert)
                 .request();
         return wechatResponseEntity;
     }
 
+    /**
+     * 查询单笔退款API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param outRefundNo the out refund no
+     * @return the wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> queryRefundInfoAsync(String outRefundNo) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.QUERY_REFUND, outRefundNo)
+                .function(this::queryRefundFunction)
+                .consumer(wechatResponseEntity::convert)
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
+    private RequestEntity<?> queryRefundFunction(WechatPayV3Type type, String param) {
+        URI uri = UriComponentsBuilder.fromHttpUrl(type.uri(WeChatServer.CHINA))
+                .build()
+                .expand(param)
+                .toUri();
+        return Get(uri);
+    }
+
 }
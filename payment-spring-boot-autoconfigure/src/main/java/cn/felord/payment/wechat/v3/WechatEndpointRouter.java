@@ -0,0 +1,306 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+import cn.felord.payment.wechat.WechatPayProperties;
+import cn.felord.payment.wechat.enumeration.WeChatServer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.StringUtils;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 微信支付域名路由.
+ * <p>
+ * API按照{@link WeChatServer#CHINA}构造请求地址，这里按租户配置的{@code domain}替换为实际的域名，并统计每个域名的耗时和失败次数。
+ * 按照微信支付的建议，主域名连接失败或者返回5xx时切换到备用域名重试一次（{@code CHINA}与{@code CHINA2}互为备用），
+ * 读取响应超时的请求可能已被处理，只有{@code GET}请求才会重试。
+ * 连续失败达到阈值的域名在一段时间内优先使用备用域名，之后再尝试恢复。{@code HK}、{@code US}没有备用域名。
+ *
+ * @author felord.cn
+ * @since 1.0.20.RELEASE
+ */
+@Slf4j
+public class WechatEndpointRouter {
+    private static final String DEFAULT_HOST = URI.create(WeChatServer.CHINA.domain()).getHost();
+    private static final double EWMA_WEIGHT = 0.2;
+    /**
+     * 请求尚未发出的异常，HTTP客户端是可选依赖，按类名匹配
+     */
+    private static final Set<String> NOT_SENT_EXCEPTIONS = new HashSet<>(Arrays.asList(
+            "org.apache.http.conn.ConnectTimeoutException",
+            "org.apache.http.conn.ConnectionPoolTimeoutException",
+            "org.apache.hc.client5.http.ConnectTimeoutException",
+            "reactor.netty.internal.shaded.reactor.pool.PoolAcquireTimeoutException"));
+    private final WechatPayProperties.Endpoint endpoint;
+    private final Map<WeChatServer, DomainStats> stats = new EnumMap<>(WeChatServer.class);
+
+    /**
+     * Instantiates a new Wechat endpoint router.
+     *
+     * @param endpoint the endpoint
+     */
+    public WechatEndpointRouter(WechatPayProperties.Endpoint endpoint) {
+        this.endpoint = endpoint;
+        for (WeChatServer server : WeChatServer.values()) {
+            stats.put(server, new DomainStats());
+        }
+    }
+
+    /**
+     * 请求依次尝试的域名.
+     *
+     * @param domain 租户配置的域名
+     * @param uri    the uri
+     * @return 依次尝试的域名，不需要路由（例如非支付API域名）时为空
+     */
+    public List<WeChatServer> route(String domain, URI uri) {
+        if (!DEFAULT_HOST.equals(uri.getHost())) {
+            return Collections.emptyList();
+        }
+        WeChatServer primary = server(domain);
+        WeChatServer backup = endpoint.isFailover() ? backup(primary) : null;
+        if (backup == null) {
+            return primary == WeChatServer.CHINA ? Collections.emptyList() : Collections.singletonList(primary);
+        }
+        List<WeChatServer> servers = new ArrayList<>(2);
+        // 主域名降级期间优先使用备用域名
+        if (!stats.get(primary).isAvailable() && stats.get(backup).isAvailable()) {
+            servers.add(backup);
+            servers.add(primary);
+        } else {
+            servers.add(primary);
+            servers.add(backup);
+        }
+        return servers;
+    }
+
+    /**
+     * 替换请求地址的域名.
+     *
+     * @param uri    the uri
+     * @param server the server
+     * @return the uri
+     */
+    public URI rewrite(URI uri, WeChatServer server) {
+        URI target = URI.create(server.domain());
+        return UriComponentsBuilder.fromUri(uri)
+                .scheme(target.getScheme())
+                .host(target.getHost())
+                .build(true)
+                .toUri();
+    }
+
+    /**
+     * 是否需要切换域名重试.
+     *
+     * @param status the status
+     * @return the boolean
+     */
+    public boolean isRetryable(HttpStatus status) {
+        return status.is5xxServerError();
+    }
+
+    /**
+     * 是否需要切换域名重试.
+     * <p>
+     * 只重试请求尚未发出的异常：连接失败、连接超时、域名解析失败以及获取连接池连接超时；
+     * 读取响应超时时请求可能已经被处理，只重试{@code GET}请求。
+     *
+     * @param method    the method
+     * @param throwable the throwable
+     * @return the boolean
+     */
+    public boolean isRetryable(HttpMethod method, Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (isNotSent(cause)) {
+                return true;
+            }
+            if (cause instanceof SocketTimeoutException) {
+                return HttpMethod.GET.equals(method);
+            }
+        }
+        return false;
+    }
+
+    private static boolean isNotSent(Throwable throwable) {
+        if (throwable instanceof ConnectException
+                || throwable instanceof NoRouteToHostException
+                || throwable instanceof UnknownHostException) {
+            return true;
+        }
+        for (Class<?> type = throwable.getClass(); type != null; type = type.getSuperclass()) {
+            if (NOT_SENT_EXCEPTIONS.contains(type.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 记录成功的请求.
+     *
+     * @param server       the server
+     * @param elapsedNanos the elapsed nanos
+     */
+    public void onSuccess(WeChatServer server, long elapsedNanos) {
+        Duration slowCallThreshold = endpoint.getSlowCallThreshold();
+        if (slowCallThreshold != null && elapsedNanos > slowCallThreshold.toNanos()) {
+            this.onFailure(server, elapsedNanos);
+            return;
+        }
+        DomainStats domainStats = stats.get(server);
+        domainStats.record(elapsedNanos, false);
+        domainStats.consecutiveFailures.set(0);
+        domainStats.openUntil = 0;
+    }
+
+    /**
+     * 记录失败的请求.
+     *
+     * @param server       the server
+     * @param elapsedNanos the elapsed nanos
+     */
+    public void onFailure(WeChatServer server, long elapsedNanos) {
+        DomainStats domainStats = stats.get(server);
+        domainStats.record(elapsedNanos, true);
+        if (domainStats.consecutiveFailures.incrementAndGet() >= endpoint.getFailureThreshold()) {
+            domainStats.openUntil = System.nanoTime() + endpoint.getOpenDuration().toNanos();
+            domainStats.consecutiveFailures.set(0);
+            log.warn("wechat pay domain {} is degraded, the backup domain is preferred for {}", server, endpoint.getOpenDuration());
+        }
+    }
+
+    /**
+     * 域名的统计信息.
+     *
+     * @param server the server
+     * @return the domain stats
+     */
+    public DomainStats stats(WeChatServer server) {
+        return stats.get(server);
+    }
+
+    /**
+     * 解析租户配置的域名，支持枚举名称或者域名地址.
+     *
+     * @param domain the domain
+     * @return the we chat server
+     */
+    private static WeChatServer server(String domain) {
+        if (!StringUtils.hasText(domain)) {
+            return WeChatServer.CHINA;
+        }
+        String value = domain.trim();
+        for (WeChatServer server : WeChatServer.values()) {
+            if (server.name().equalsIgnoreCase(value) || server.domain().equalsIgnoreCase(value)
+                    || server.domain().equalsIgnoreCase("https://" + value)) {
+                return server;
+            }
+        }
+        log.warn("unknown wechat pay domain {}, {} is used", domain, WeChatServer.CHINA);
+        return WeChatServer.CHINA;
+    }
+
+    private static WeChatServer backup(WeChatServer server) {
+        switch (server) {
+            case CHINA:
+                return WeChatServer.CHINA2;
+            case CHINA2:
+                return WeChatServer.CHINA;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 域名统计信息.
+     */
+    public static final class DomainStats {
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile double latencyMillis;
+        private volatile long openUntil;
+
+        private void record(long elapsedNanos, boolean failed) {
+            requests.increment();
+            if (failed) {
+                failures.increment();
+            }
+            double millis = elapsedNanos / 1_000_000d;
+            double current = latencyMillis;
+            // 并发更新时允许丢失个别样本
+            latencyMillis = current == 0 ? millis : current + EWMA_WEIGHT * (millis - current);
+        }
+
+        /**
+         * 请求总数.
+         *
+         * @return the requests
+         */
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        /**
+         * 失败总数.
+         *
+         * @return the failures
+         */
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        /**
+         * 耗时的指数加权平均值，毫秒.
+         *
+         * @return the latency millis
+         */
+        public double getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        /**
+         * 是否可用，降级期间不可用.
+         *
+         * @return the boolean
+         */
+        public boolean isAvailable() {
+            long until = openUntil;
+            return until == 0 || System.nanoTime() - until >= 0;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+import cn.felord.payment.wechat.WechatPayProperties;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.ssl.SSLContexts;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按照{@link WechatPayProperties.Http}创建V3请求使用的连接池.
+ * <p>
+ * 使用独立的{@link SSLContext}，TLS会话缓存的大小和有效期不影响JVM默认的{@code SSLContext}。
+ *
+ * @author felord.cn
+ * @since 1.0.20.RELEASE
+ */
+public final class WechatHttpClients {
+
+    private WechatHttpClients() {
+    }
+
+    /**
+     * 创建连接池化的{@link CloseableHttpClient}，不再使用时需要关闭.
+     *
+     * @param http the http
+     * @return the closeable http client
+     */
+    public static CloseableHttpClient createHttpClient(WechatPayProperties.Http http) {
+        SSLContext sslContext = SSLContexts.createDefault();
+        SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        sessionContext.setSessionCacheSize(http.getTlsSessionCacheSize());
+        sessionContext.setSessionTimeout(seconds(http.getTlsSessionTimeout()));
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(sslContext, SSLConnectionSocketFactory.getDefaultHostnameVerifier()))
+                .build());
+        connectionManager.setMaxTotal(http.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(http.getMaxPerRoute());
+
+        HttpClientBuilder builder = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(keepAliveStrategy(http.getKeepAlive()));
+        if (http.isEvictExpiredConnections()) {
+            builder.evictExpiredConnections();
+        }
+        Duration maxIdleTime = http.getMaxIdleTime();
+        if (maxIdleTime != null) {
+            builder.evictIdleConnections(maxIdleTime.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        return builder.build();
+    }
+
+    /**
+     * 创建使用指定连接池的{@link HttpComponentsClientHttpRequestFactory}，并设置超时时间.
+     *
+     * @param httpClient the http client
+     * @param http       the http
+     * @return the http components client http request factory
+     */
+    public static HttpComponentsClientHttpRequestFactory createRequestFactory(CloseableHttpClient httpClient, WechatPayProperties.Http http) {
+        HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
+        requestFactory.setConnectTimeout(millis(http.getConnectTimeout()));
+        requestFactory.setReadTimeout(millis(http.getReadTimeout()));
+        requestFactory.setConnectionRequestTimeout(millis(http.getConnectionRequestTimeout()));
+        return requestFactory;
+    }
+
+    /**
+     * 服务端{@code Keep-Alive}响应头指定的时间更短时以服务端为准，否则最长保持{@code keepAlive}.
+     *
+     * @param keepAlive the keep alive
+     * @return the connection keep alive strategy
+     */
+    private static ConnectionKeepAliveStrategy keepAliveStrategy(Duration keepAlive) {
+        if (keepAlive == null) {
+            return DefaultConnectionKeepAliveStrategy.INSTANCE;
+        }
+        long max = keepAlive.toMillis();
+        return (response, context) -> {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? Math.min(duration, max) : max;
+        };
+    }
+
+    // 未设置时不超时
+    private static int millis(Duration duration) {
+        return duration == null ? 0 : (int) Math.min(Integer.MAX_VALUE, duration.toMillis());
+    }
+
+    private static int seconds(Duration duration) {
+        return duration == null ? 0 : (int) Math.min(Integer.MAX_VALUE, duration.getSeconds());
+    }
+}
@@ -17,26 +17,106 @@
 package cn.felord.payment.wechat.v3;
 
 
+import cn.felord.payment.wechat.WechatPayProperties;
 import cn.felord.payment.wechat.WechatTenantService;
-import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * 配置容器
+ * <p>
+ * 租户以不可变快照的形式按租户id建立索引，查询不会访问{@link WechatTenantService}。
+ * 首次使用、显式调用{@link #refresh()}或者查询不存在的租户时才会重新加载，
+ * 加载结果与当前快照比较后整体替换并递增版本号，同时通知{@link WechatTenantChangeListener}。
+ * <p>
+ * 按需加载模式下快照只包含租户id，租户在首次使用时通过{@link WechatTenantService#loadTenant(String)}加载，
+ * 放入有容量上限的缓存，按最近使用淘汰、到期后重新加载，同一租户同时只会加载一次。
+ * 淘汰的租户通过{@link WechatTenantChangeEvent#getEvicted()}通知监听器释放该租户的缓存。
+ * 查询不存在的租户时只加载该租户，不会重新加载全部租户。
+ * <p>
+ * 全量加载模式下并发查询不存在的租户共享同一次重新加载；不存在的租户id在一段时间内直接判定为不存在，不会再次触发加载。
+ * 多次加载重叠时，先开始的加载结果不会覆盖后开始的加载结果。
  *
  * @author felord.cn
  * @since 1.0.0.RELEASE
  */
-@AllArgsConstructor
+@Slf4j
 public class WechatMetaContainer {
-    private final Map<String, WechatMetaBean> wechatMetaBeanMap = new ConcurrentHashMap<>();
+    /**
+     * 记录的不存在租户id上限
+     */
+    private static final int MAX_MISSING_TENANTS = 10000;
     private final WechatTenantService wechatTenantService;
+    private final List<WechatTenantChangeListener> listeners = new CopyOnWriteArrayList<>();
+    /**
+     * 按需加载的租户缓存，全量加载时为null
+     */
+    private final WechatTenantCache tenantCache;
+    /**
+     * 正在加载的租户  key = 租户id  value = 加载任务
+     */
+    private final Map<String, CompletableFuture<WechatMetaBean>> loadingTenants = new ConcurrentHashMap<>();
+    /**
+     * 通过{@link #addWechatMetas(Collection)}手动添加的租户，不会被淘汰
+     */
+    private final Map<String, WechatMetaBean> pinnedTenants = new ConcurrentHashMap<>();
+    /**
+     * 当前的租户快照，未加载时为null
+     */
+    private volatile Snapshot snapshot;
+    /**
+     * 不存在的租户  key = 租户id  value = 过期时间（纳秒）
+     */
+    private final Map<String, Long> missingTenants = new ConcurrentHashMap<>();
+    private final long missTtlNanos;
+    /**
+     * 查询不存在的租户触发的、正在进行的全量加载
+     */
+    private final AtomicReference<CompletableFuture<Long>> refreshing = new AtomicReference<>();
+    /**
+     * 加载的开始顺序
+     */
+    private final AtomicLong loadSequence = new AtomicLong();
+    /**
+     * 已应用的加载顺序，需持有锁
+     */
+    private long appliedSequence;
+
+    /**
+     * Instantiates a new Wechat meta container.
+     *
+     * @param wechatTenantService the wechat tenant service
+     */
+    public WechatMetaContainer(WechatTenantService wechatTenantService) {
+        this(wechatTenantService, new WechatPayProperties.Tenant());
+    }
+
+    /**
+     * Instantiates a new Wechat meta container.
+     *
+     * @param wechatTenantService the wechat tenant service
+     * @param tenant              the tenant properties
+     * @since 1.0.20.RELEASE
+     */
+    public WechatMetaContainer(WechatTenantService wechatTenantService, WechatPayProperties.Tenant tenant) {
+        this.wechatTenantService = wechatTenantService;
+        this.tenantCache = tenant.isLazy() ? new WechatTenantCache(tenant.getMaxSize(), tenant.getTtl()) : null;
+        this.missTtlNanos = Objects.isNull(tenant.getMissTtl()) ? 0 : tenant.getMissTtl().toNanos();
+    }
 
     /**
      * Add wechat metas.
@@ -44,12 +124,131 @@ public class WechatMetaContainer {
      * @param wechatMetaBeans the wechat meta beans
      */
     public void addWechatMetas(Collection<WechatMetaBean> wechatMetaBeans) {
-        wechatMetaBeans.forEach(this::addMeta);
+        synchronized (this) {
+            Snapshot current = this.snapshot();
+            if (Objects.isNull(tenantCache)) {
+                Map<String, WechatMetaBean> tenants = new LinkedHashMap<>(current.tenants);
+                wechatMetaBeans.forEach(wechatMetaBean -> tenants.put(wechatMetaBean.getTenantId(), wechatMetaBean));
+                this.apply(tenants);
+            } else {
+                Set<String> tenantIds = new HashSet<>(current.tenantIds);
+                wechatMetaBeans.forEach(wechatMetaBean -> {
+                    pinnedTenants.put(wechatMetaBean.getTenantId(), wechatMetaBean);
+                    tenantIds.add(wechatMetaBean.getTenantId());
+                });
+                this.applyLazy(tenantIds, Collections.emptyMap());
+            }
+        }
+    }
+
+    /**
+     * 从{@link WechatTenantService}重新加载全部租户.
+     * <p>
+     * 配置未变化的租户保留原有实例，新增、变化或者移除租户时递增版本号并通知监听器。
+     * 按需加载模式下只重新加载租户id和已缓存的租户。
+     *
+     * @return 加载后的版本号
+     * @since 1.0.20.RELEASE
+     */
+    public long refresh() {
+        // 在锁外加载，加载期间不阻塞租户查询
+        long sequence = loadSequence.incrementAndGet();
+        if (Objects.nonNull(tenantCache)) {
+            Set<String> tenantIds = new HashSet<>(wechatTenantService.tenantIds());
+            tenantIds.addAll(pinnedTenants.keySet());
+            Map<String, WechatMetaBean> reloaded = this.reloadCached(tenantIds);
+            synchronized (this) {
+                return this.isStale(sequence) ? this.snapshot.version : this.applyLazy(tenantIds, reloaded);
+            }
+        }
+        Map<String, WechatMetaBean> tenants = new LinkedHashMap<>();
+        wechatTenantService.loadTenants()
+                .forEach(wechatMetaBean -> tenants.put(wechatMetaBean.getTenantId(), wechatMetaBean));
+        synchronized (this) {
+            return this.isStale(sequence) ? this.snapshot.version : this.apply(tenants);
+        }
     }
 
-    private void addMeta(WechatMetaBean wechatMetaBean) {
-        String tenantId = wechatMetaBean.getTenantId();
-        wechatMetaBeanMap.put(tenantId, wechatMetaBean);
+    /**
+     * 后开始的加载已经应用时丢弃本次加载结果，调用方需持有锁.
+     *
+     * @param sequence 本次加载的顺序
+     * @return the boolean
+     */
+    private boolean isStale(long sequence) {
+        if (sequence < appliedSequence) {
+            log.debug("wechat pay tenants load {} is superseded by load {}", sequence, appliedSequence);
+            return true;
+        }
+        appliedSequence = sequence;
+        return false;
+    }
+
+    /**
+     * 查询不存在的租户时重新加载，并发的调用方共享同一次加载.
+     */
+    private void refreshOnMiss() {
+        CompletableFuture<Long> loading = new CompletableFuture<>();
+        if (!refreshing.compareAndSet(null, loading)) {
+            CompletableFuture<Long> inFlight = refreshing.get();
+            if (Objects.nonNull(inFlight)) {
+                try {
+                    inFlight.join();
+                } catch (CompletionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+                }
+                return;
+            }
+            // 刚刚结束，由本线程重新加载
+            this.refreshOnMiss();
+            return;
+        }
+        try {
+            loading.complete(this.refresh());
+        } catch (RuntimeException | Error e) {
+            loading.completeExceptionally(e);
+            throw e;
+        } finally {
+            refreshing.compareAndSet(loading, null);
+        }
+    }
+
+    /**
+     * 租户id是否在不久前确认过不存在.
+     *
+     * @param tenantId the tenant id
+     * @return the boolean
+     */
+    private boolean isKnownMissing(String tenantId) {
+        Long expiresAt = missingTenants.get(tenantId);
+        if (Objects.isNull(expiresAt)) {
+            return false;
+        }
+        if (expiresAt - System.nanoTime() > 0) {
+            return true;
+        }
+        missingTenants.remove(tenantId, expiresAt);
+        return false;
+    }
+
+    /**
+     * 记录不存在的租户id.
+     *
+     * @param tenantId the tenant id
+     */
+    private void markMissing(String tenantId) {
+        if (missTtlNanos <= 0 || Objects.isNull(tenantId)) {
+            return;
+        }
+        if (missingTenants.size() >= MAX_MISSING_TENANTS) {
+            long now = System.nanoTime();
+            missingTenants.values().removeIf(expiresAt -> expiresAt - now <= 0);
+            if (missingTenants.size() >= MAX_MISSING_TENANTS) {
+                missingTenants.clear();
+            }
+        }
+        missingTenants.put(tenantId, System.nanoTime() + missTtlNanos);
     }
 
     /**
@@ -59,14 +258,55 @@ public class WechatMetaContainer {
      * @return the wechat meta
      */
     public WechatMetaBean getWechatMeta(String tenantId) {
-        WechatMetaBean wechatMetaBean = this.wechatMetaBeanMap.get(tenantId);
+        WechatMetaBean wechatMetaBean = this.find(tenantId);
         if (Objects.nonNull(wechatMetaBean)) {
             return wechatMetaBean;
+        }
+        return Objects.requireNonNull(this.findMissing(tenantId),
+                "cant obtain the config with tenant: "+tenantId);
+    }
+    /**
+     * 租户是否存在，不存在时会重新加载一次.
+     *
+     * @param tenantId the tenant id
+     * @return the boolean
+     * @since 1.0.20.RELEASE
+     */
+    public boolean contains(String tenantId) {
+        return this.snapshot().tenantIds.contains(tenantId) || Objects.nonNull(this.findMissing(tenantId));
+    }
+
+    /**
+     * 查询快照中不存在的租户，按需加载模式下只加载该租户，否则共享一次全量加载.
+     *
+     * @param tenantId the tenant id
+     * @return the wechat meta bean, maybe null
+     */
+    private WechatMetaBean findMissing(String tenantId) {
+        if (Objects.isNull(tenantId) || this.isKnownMissing(tenantId)) {
+            return null;
+        }
+        WechatMetaBean wechatMetaBean;
+        if (Objects.nonNull(tenantCache)) {
+            wechatMetaBean = this.discover(tenantId);
         } else {
-            this.addWechatMetas(wechatTenantService.loadTenants());
-            return Objects.requireNonNull(this.wechatMetaBeanMap.get(tenantId),
-                    "cant obtain the config with tenant: "+tenantId);
+            this.refreshOnMiss();
+            wechatMetaBean = this.find(tenantId);
         }
+        if (Objects.isNull(wechatMetaBean)) {
+            this.markMissing(tenantId);
+        }
+        return wechatMetaBean;
+    }
+
+    /**
+     * 是否按需加载租户.
+     *
+     * @return the boolean
+     * @since 1.0.20.RELEASE
+     */
+    public boolean isLazy() {
+        return Objects.nonNull(tenantCache);
     }
 
     /**
@@ -75,9 +315,305 @@ public class WechatMetaContainer {
      * @return the properties keys
      */
     public Set<String> getTenantIds() {
-        return wechatTenantService.loadTenants()
-                .stream()
-                .map(WechatMetaBean::getTenantId)
-                .collect(Collectors.toSet());
+        return this.snapshot().tenantIds;
+    }
+
+    /**
+     * 当前租户快照的版本号，每次租户变更递增.
+     *
+     * @return the version
+     * @since 1.0.20.RELEASE
+     */
+    public long getVersion() {
+        return this.snapshot().version;
+    }
+
+    /**
+     * 添加租户变更监听.
+     *
+     * @param listener the listener
+     * @since 1.0.20.RELEASE
+     */
+    public void addListener(WechatTenantChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * 移除租户变更监听.
+     *
+     * @param listener the listener
+     * @since 1.0.20.RELEASE
+     */
+    public void removeListener(WechatTenantChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    private Snapshot snapshot() {
+        Snapshot current = this.snapshot;
+        if (Objects.isNull(current)) {
+            synchronized (this) {
+                if (Objects.isNull(this.snapshot)) {
+                    this.refresh();
+                }
+                current = this.snapshot;
+            }
+        }
+        return current;
+    }
+
+    private WechatMetaBean find(String tenantId) {
+        Snapshot current = this.snapshot();
+        if (Objects.isNull(tenantCache)) {
+            return current.tenants.get(tenantId);
+        }
+        if (!current.tenantIds.contains(tenantId)) {
+            return null;
+        }
+        WechatMetaBean pinned = pinnedTenants.get(tenantId);
+        return Objects.nonNull(pinned) ? pinned : this.load(tenantId);
+    }
+
+    /**
+     * 按需加载模式下查询快照中不存在的租户，只加载该租户，存在时加入快照.
+     *
+     * @param tenantId the tenant id
+     * @return the wechat meta bean, maybe null
+     */
+    private WechatMetaBean discover(String tenantId) {
+        WechatMetaBean loaded = this.load(tenantId);
+        if (Objects.nonNull(loaded)) {
+            synchronized (this) {
+                Snapshot current = this.snapshot();
+                if (!current.tenantIds.contains(tenantId)) {
+                    Set<String> tenantIds = new HashSet<>(current.tenantIds);
+                    tenantIds.add(tenantId);
+                    long version = current.version + 1;
+                    this.snapshot = new Snapshot(version, Collections.unmodifiableSet(tenantIds), Collections.emptyMap());
+                    this.notifyListeners(new WechatTenantChangeEvent(version,
+                            Collections.singleton(tenantId), Collections.emptySet(), Collections.emptySet()));
+                }
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * 按需加载单个租户，同一租户的并发加载共享同一次加载.
+     *
+     * @param tenantId the tenant id
+     * @return the wechat meta bean, maybe null
+     */
+    private WechatMetaBean load(String tenantId) {
+        WechatTenantCache.CachedTenant entry = tenantCache.get(tenantId);
+        if (Objects.nonNull(entry) && !entry.isExpired()) {
+            return entry.wechatMetaBean();
+        }
+        CompletableFuture<WechatMetaBean> loading = new CompletableFuture<>();
+        CompletableFuture<WechatMetaBean> inFlight = loadingTenants.putIfAbsent(tenantId, loading);
+        if (Objects.nonNull(inFlight)) {
+            try {
+                return inFlight.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+            }
+        }
+        try {
+            WechatMetaBean loaded = this.reload(tenantId, entry);
+            loading.complete(loaded);
+            return loaded;
+        } catch (RuntimeException | Error e) {
+            loading.completeExceptionally(e);
+            throw e;
+        } finally {
+            loadingTenants.remove(tenantId, loading);
+        }
+    }
+
+    /**
+     * 加载租户并放入缓存，已过期的租户配置未变化时保留原有实例，否则作为变更通知监听器.
+     *
+     * @param tenantId the tenant id
+     * @param expired  the expired entry, maybe null
+     * @return the wechat meta bean, maybe null
+     */
+    private WechatMetaBean reload(String tenantId, WechatTenantCache.CachedTenant expired) {
+        WechatMetaBean loaded = wechatTenantService.loadTenant(tenantId);
+        if (Objects.isNull(loaded)) {
+            tenantCache.remove(tenantId);
+            return null;
+        }
+        WechatMetaBean previous = Objects.isNull(expired) ? null : expired.wechatMetaBean();
+        if (Objects.nonNull(previous) && sameConfig(previous, loaded)) {
+            this.evicted(tenantCache.put(tenantId, previous));
+            return previous;
+        }
+        this.evicted(tenantCache.put(tenantId, loaded));
+        if (Objects.nonNull(previous)) {
+            synchronized (this) {
+                Snapshot current = this.snapshot;
+                this.snapshot = new Snapshot(current.version + 1, current.tenantIds, current.tenants);
+                this.notifyListeners(new WechatTenantChangeEvent(current.version + 1,
+                        Collections.emptySet(), Collections.singleton(tenantId), Collections.emptySet()));
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * 通知监听器释放被淘汰出缓存的租户，版本号不变.
+     *
+     * @param tenantIds the tenant ids
+     */
+    private void evicted(List<String> tenantIds) {
+        if (!tenantIds.isEmpty()) {
+            synchronized (this) {
+                this.notifyListeners(new WechatTenantChangeEvent(this.snapshot().version,
+                        Collections.emptySet(), Collections.emptySet(), Collections.emptySet(), new HashSet<>(tenantIds)));
+            }
+        }
+    }
+
+    /**
+     * 重新加载仍然存在的已缓存租户以发现配置变化，不持有锁.
+     *
+     * @param tenantIds the tenant ids
+     * @return 重新加载的结果，value为null表示租户已不存在
+     */
+    private Map<String, WechatMetaBean> reloadCached(Set<String> tenantIds) {
+        Map<String, WechatMetaBean> reloaded = new LinkedHashMap<>();
+        if (Objects.isNull(this.snapshot)) {
+            return reloaded;
+        }
+        for (String tenantId : tenantCache.tenantIds()) {
+            if (tenantIds.contains(tenantId) && !pinnedTenants.containsKey(tenantId)) {
+                reloaded.put(tenantId, wechatTenantService.loadTenant(tenantId));
+            }
+        }
+        return reloaded;
+    }
+
+    /**
+     * 按需加载模式下与当前快照比较并替换，调用方需持有锁.
+     * <p>
+     * 快照只包含租户id，已缓存的租户使用锁外重新加载的结果发现配置变化。
+     *
+     * @param tenantIds the tenant ids
+     * @param reloaded  重新加载的已缓存租户
+     * @return the version
+     */
+    private long applyLazy(Set<String> tenantIds, Map<String, WechatMetaBean> reloaded) {
+        Snapshot previous = this.snapshot;
+        Set<String> current = previous == null ? Collections.emptySet() : previous.tenantIds;
+        Set<String> added = new HashSet<>(tenantIds);
+        added.removeAll(current);
+        Set<String> removed = new HashSet<>(current);
+        removed.removeAll(tenantIds);
+        removed.forEach(tenantCache::remove);
+        Set<String> updated = new HashSet<>();
+        Set<String> evicted = new HashSet<>();
+        reloaded.forEach((tenantId, loaded) -> {
+            WechatTenantCache.CachedTenant entry = tenantCache.get(tenantId);
+            if (Objects.isNull(entry)) {
+                return;
+            }
+            if (Objects.isNull(loaded)) {
+                tenantCache.remove(tenantId);
+            } else if (!sameConfig(entry.wechatMetaBean(), loaded)) {
+                evicted.addAll(tenantCache.put(tenantId, loaded));
+                updated.add(tenantId);
+            }
+        });
+        // 被淘汰的租户不再是变化的租户
+        updated.removeAll(evicted);
+        if (previous != null && added.isEmpty() && updated.isEmpty() && removed.isEmpty()) {
+            if (!evicted.isEmpty()) {
+                this.notifyListeners(new WechatTenantChangeEvent(previous.version,
+                        Collections.emptySet(), Collections.emptySet(), Collections.emptySet(), evicted));
+            }
+            return previous.version;
+        }
+        long version = previous == null ? 1 : previous.version + 1;
+        missingTenants.keySet().removeAll(added);
+        this.snapshot = new Snapshot(version, Collections.unmodifiableSet(tenantIds), Collections.emptyMap());
+        if (previous != null) {
+            this.notifyListeners(new WechatTenantChangeEvent(version, added, updated, removed, evicted));
+        }
+        return version;
+    }
+
+    private void notifyListeners(WechatTenantChangeEvent event) {
+        for (WechatTenantChangeListener listener : listeners) {
+            try {
+                listener.onTenantChange(event);
+            } catch (RuntimeException e) {
+                log.warn("wechat pay tenant change listener failed, {}", event, e);
+            }
+        }
+    }
+
+    /**
+     * 与当前快照比较并替换，调用方需持有锁.
+     *
+     * @param tenants the tenants
+     * @return the version
+     */
+    private long apply(Map<String, WechatMetaBean> tenants) {
+        Snapshot previous = this.snapshot;
+        Map<String, WechatMetaBean> current = previous == null ? Collections.emptyMap() : previous.tenants;
+        Set<String> added = new HashSet<>();
+        Set<String> updated = new HashSet<>();
+        Set<String> removed = new HashSet<>(current.keySet());
+        removed.removeAll(tenants.keySet());
+        tenants.replaceAll((tenantId, wechatMetaBean) -> {
+            WechatMetaBean existing = current.get(tenantId);
+            if (Objects.isNull(existing)) {
+                added.add(tenantId);
+                return wechatMetaBean;
+            }
+            if (existing == wechatMetaBean || sameConfig(existing, wechatMetaBean)) {
+                // 保留原有实例，依赖实例的缓存（例如池化的签名对象）不会失效
+                return existing;
+            }
+            updated.add(tenantId);
+            return wechatMetaBean;
+        });
+        if (previous != null && added.isEmpty() && updated.isEmpty() && removed.isEmpty()) {
+            return previous.version;
+        }
+        long version = previous == null ? 1 : previous.version + 1;
+        missingTenants.keySet().removeAll(added);
+        this.snapshot = new Snapshot(version, Collections.unmodifiableSet(tenants.keySet()), Collections.unmodifiableMap(tenants));
+        if (previous != null) {
+            this.notifyListeners(new WechatTenantChangeEvent(version, added, updated, removed));
+        }
+        return version;
+    }
+
+    /**
+     * 证书序列号和V3配置都相同时视为同一配置.
+     *
+     * @param existing       the existing
+     * @param wechatMetaBean the wechat meta bean
+     * @return the boolean
+     */
+    private static boolean sameConfig(WechatMetaBean existing, WechatMetaBean wechatMetaBean) {
+        return Objects.equals(existing.getSerialNumber(), wechatMetaBean.getSerialNumber())
+                && Objects.equals(existing.getV3(), wechatMetaBean.getV3());
+    }
+
+    private static final class Snapshot {
+        private final long version;
+        private final Set<String> tenantIds;
+        /**
+         * 全量加载的租户，按需加载模式下为空
+         */
+        private final Map<String, WechatMetaBean> tenants;
+
+        private Snapshot(long version, Set<String> tenantIds, Map<String, WechatMetaBean> tenants) {
+            this.version = version;
+            this.tenantIds = tenantIds;
+            this.tenants = tenants;
+        }
     }
 }
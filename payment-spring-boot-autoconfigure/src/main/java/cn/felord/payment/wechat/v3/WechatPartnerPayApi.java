@@ -28,6 +28,7 @@ import cn.felord.payment.wechat.v3.model.partner.CloseTransParams;
 import cn.felord.payment.wechat.v3.model.partner.PartnerPayParams;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.springframework.http.RequestEntity;
+import org.springframework.http.ResponseEntity;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.util.UriComponentsBuilder;
@@ -39,6 +40,7 @@ import java.time.ZoneOffset;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletionStage;
 
 /**
  * 普通支付-服务商模式
@@ -69,43 +71,61 @@ public class WechatPartnerPayApi extends AbstractApi {
         WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
         this.client().withType(WechatPayV3Type.APP_PARTNER, partnerPayParams)
                 .function(this::payFunction)
-                .consumer(responseEntity -> {
-                    ObjectNode body = responseEntity.getBody();
-                    if (Objects.isNull(body)) {
-                        throw new PayException("response body cannot be resolved");
-                    }
-
-                    SignatureProvider signatureProvider = this.client().signatureProvider();
-                    WechatMetaContainer wechatMetaContainer = signatureProvider.wechatMetaContainer();
-                    WechatMetaBean wechatMetaBean = wechatMetaContainer.getWechatMeta(tenantId());
-                    PrivateKey privateKey = wechatMetaBean.getKeyPair().getPrivate();
-
-                    String spAppid = partnerPayParams.getSpAppid();
-                    long epochSecond = LocalDateTime.now()
-                            .toEpochSecond(ZoneOffset.of("+8"));
-                    String timestamp = String.valueOf(epochSecond);
-                    String nonceStr = signatureProvider.nonceStrGenerator()
-                            .generateId()
-                            .toString()
-                            .replaceAll("-", "");
-                    String prepayId = body.get("prepay_id").asText();
-                    String paySign = signatureProvider.doRequestSign(privateKey, spAppid, timestamp, nonceStr, prepayId);
-                    body.put("appid", spAppid);
-                    body.put("partnerid", partnerPayParams.getSubMchid());
-                    body.put("prepayid", prepayId);
-                    body.put("package", "Sign=WXPay");
-                    body.put("nonceStr", nonceStr);
-                    body.put("timeStamp", timestamp);
-                    body.put("signType", "RSA");
-                    body.put("paySign", paySign);
-
-                    wechatResponseEntity.setHttpStatus(responseEntity.getStatusCodeValue());
-                    wechatResponseEntity.setBody(body);
-                })
+                .consumer(responseEntity -> this.appPayResponse(partnerPayParams, responseEntity, wechatResponseEntity))
                 .request();
         return wechatResponseEntity;
     }
 
+    /**
+     * APP下单API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param partnerPayParams the partner pay params
+     * @return the wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> appPayAsync(PartnerPayParams partnerPayParams) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.APP_PARTNER, partnerPayParams)
+                .function(this::payFunction)
+                .consumer(responseEntity -> this.appPayResponse(partnerPayParams, responseEntity, wechatResponseEntity))
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
+    private void appPayResponse(PartnerPayParams partnerPayParams, ResponseEntity<ObjectNode> responseEntity, WechatResponseEntity<ObjectNode> wechatResponseEntity) {
+        ObjectNode body = responseEntity.getBody();
+        if (Objects.isNull(body)) {
+            throw new PayException("response body cannot be resolved");
+        }
+
+        SignatureProvider signatureProvider = this.client().signatureProvider();
+        WechatMetaContainer wechatMetaContainer = signatureProvider.wechatMetaContainer();
+        WechatMetaBean wechatMetaBean = wechatMetaContainer.getWechatMeta(tenantId());
+        PrivateKey privateKey = wechatMetaBean.getKeyPair().getPrivate();
+
+        String spAppid = partnerPayParams.getSpAppid();
+        long epochSecond = LocalDateTime.now()
+                .toEpochSecond(ZoneOffset.of("+8"));
+        String timestamp = String.valueOf(epochSecond);
+        String nonceStr = signatureProvider.nonceStrGenerator()
+                .generateId()
+                .toString()
+                .replaceAll("-", "");
+        String prepayId = body.get("prepay_id").asText();
+        String paySign = signatureProvider.doRequestSign(privateKey, spAppid, timestamp, nonceStr, prepayId);
+        body.put("appid", spAppid);
+        body.put("partnerid", partnerPayParams.getSubMchid());
+        body.put("prepayid", prepayId);
+        body.put("package", "Sign=WXPay");
+        body.put("nonceStr", nonceStr);
+        body.put("timeStamp", timestamp);
+        body.put("signType", "RSA");
+        body.put("paySign", paySign);
+
+        wechatResponseEntity.setHttpStatus(responseEntity.getStatusCodeValue());
+        wechatResponseEntity.setBody(body);
+    }
+
     /**
      * JSAPI/小程序下单API
      *
@@ -117,41 +137,59 @@ public class WechatPartnerPayApi extends AbstractApi {
         WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
         this.client().withType(WechatPayV3Type.JSAPI_PARTNER, partnerPayParams)
                 .function(this::payFunction)
-                .consumer(responseEntity -> {
-                    ObjectNode body = responseEntity.getBody();
-                    if (Objects.isNull(body)) {
-                        throw new PayException("response body cannot be resolved");
-                    }
-
-                    SignatureProvider signatureProvider = this.client().signatureProvider();
-                    WechatMetaContainer wechatMetaContainer = signatureProvider.wechatMetaContainer();
-                    WechatMetaBean wechatMetaBean = wechatMetaContainer.getWechatMeta(tenantId());
-                    PrivateKey privateKey = wechatMetaBean.getKeyPair().getPrivate();
-
-                    String spAppid = partnerPayParams.getSpAppid();
-                    long epochSecond = LocalDateTime.now()
-                            .toEpochSecond(ZoneOffset.of("+8"));
-                    String timestamp = String.valueOf(epochSecond);
-                    String nonceStr = signatureProvider.nonceStrGenerator()
-                            .generateId()
-                            .toString()
-                            .replaceAll("-", "");
-                    String packageStr = "prepay_id=" + body.get("prepay_id").asText();
-                    String paySign = signatureProvider.doRequestSign(privateKey, spAppid, timestamp, nonceStr, packageStr);
-                    body.put("appid", spAppid);
-                    body.put("timeStamp", timestamp);
-                    body.put("nonceStr", nonceStr);
-                    body.put("package", packageStr);
-                    body.put("signType", "RSA");
-                    body.put("paySign", paySign);
-
-                    wechatResponseEntity.setHttpStatus(responseEntity.getStatusCodeValue());
-                    wechatResponseEntity.setBody(body);
-                })
+                .consumer(responseEntity -> this.jsPayResponse(partnerPayParams, responseEntity, wechatResponseEntity))
                 .request();
         return wechatResponseEntity;
     }
 
+    /**
+     * JSAPI/小程序下单API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param partnerPayParams the pay params
+     * @return wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> jsPayAsync(PartnerPayParams partnerPayParams) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.JSAPI_PARTNER, partnerPayParams)
+                .function(this::payFunction)
+                .consumer(responseEntity -> this.jsPayResponse(partnerPayParams, responseEntity, wechatResponseEntity))
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
+    private void jsPayResponse(PartnerPayParams partnerPayParams, ResponseEntity<ObjectNode> responseEntity, WechatResponseEntity<ObjectNode> wechatResponseEntity) {
+        ObjectNode body = responseEntity.getBody();
+        if (Objects.isNull(body)) {
+            throw new PayException("response body cannot be resolved");
+        }
+
+        SignatureProvider signatureProvider = this.client().signatureProvider();
+        WechatMetaContainer wechatMetaContainer = signatureProvider.wechatMetaContainer();
+        WechatMetaBean wechatMetaBean = wechatMetaContainer.getWechatMeta(tenantId());
+        PrivateKey privateKey = wechatMetaBean.getKeyPair().getPrivate();
+
+        String spAppid = partnerPayParams.getSpAppid();
+        long epochSecond = LocalDateTime.now()
+                .toEpochSecond(ZoneOffset.of("+8"));
+        String timestamp = String.valueOf(epochSecond);
+        String nonceStr = signatureProvider.nonceStrGenerator()
+                .generateId()
+                .toString()
+                .replaceAll("-", "");
+        String packageStr = "prepay_id=" + body.get("prepay_id").asText();
+        String paySign = signatureProvider.doRequestSign(privateKey, spAppid, timestamp, nonceStr, packageStr);
+        body.put("appid", spAppid);
+        body.put("timeStamp", timestamp);
+        body.put("nonceStr", nonceStr);
+        body.put("package", packageStr);
+        body.put("signType", "RSA");
+        body.put("paySign", paySign);
+
+        wechatResponseEntity.setHttpStatus(responseEntity.getStatusCodeValue());
+        wechatResponseEntity.setBody(body);
+    }
+
     /**
      * Native下单API
      *
@@ -168,6 +206,22 @@ public class WechatPartnerPayApi extends AbstractApi {
         return wechatResponseEntity;
     }
 
+    /**
+     * Native下单API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param partnerPayParams the pay params
+     * @return wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> nativePayAsync(PartnerPayParams partnerPayParams) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.NATIVE_PARTNER, partnerPayParams)
+                .function(this::payFunction)
+                .consumer(wechatResponseEntity::convert)
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
     /**
      * H5下单API
      *
@@ -184,6 +238,22 @@ public class WechatPartnerPayApi extends AbstractApi {
         return wechatResponseEntity;
     }
 
+    /**
+     * H5下单API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param partnerPayParams the partner pay params
+     * @return wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> h5PayAsync(PartnerPayParams partnerPayParams) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.MWEB_PARTNER, partnerPayParams)
+                .function(this::payFunction)
+                .consumer(wechatResponseEntity::convert)
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
     private RequestEntity<?> payFunction(WechatPayV3Type type, PartnerPayParams partnerPayParams) {
         WechatPayProperties.V3 v3 = this.wechatMetaBean().getV3();
         partnerPayParams.setSpAppid(v3.getAppId());
@@ -212,6 +282,22 @@ public class WechatPartnerPayApi extends AbstractApi {
         return wechatResponseEntity;
     }
 
+    /**
+     * 微信支付订单号查询API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param params the params
+     * @return the wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> queryTransactionByIdAsync(TransactionQueryParams params) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.TRANSACTION_TRANSACTION_ID_PARTNER, params)
+                .function(this::queryTransactionFunction)
+                .consumer(wechatResponseEntity::convert)
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
     /**
      * 申请退款API
      *
@@ -222,19 +308,37 @@ public class WechatPartnerPayApi extends AbstractApi {
     public WechatResponseEntity<ObjectNode> refund(RefundParams refundParams) {
         WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
         this.client().withType(WechatPayV3Type.REFUND, refundParams)
-                .function(((type, params) -> {
-                    URI uri = UriComponentsBuilder.fromHttpUrl(type.uri(WeChatServer.CHINA))
-                            .build()
-                            .toUri();
-                    WechatPayProperties.V3 v3 = this.wechatMetaBean().getV3();
-                    params.setNotifyUrl(v3.getDomain().concat(params.getNotifyUrl()));
-                    return Post(uri, params);
-                }))
+                .function(this::refundFunction)
                 .consumer(wechatResponseEntity::convert)
                 .request();
         return wechatResponseEntity;
     }
 
+    /**
+     * 申请退款API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param refundParams the refund params
+     * @return the wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> refundAsync(RefundParams refundParams) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.REFUND, refundParams)
+                .function(this::refundFunction)
+                .consumer(wechatResponseEntity::convert)
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
+    private RequestEntity<?> refundFunction(WechatPayV3Type type, RefundParams params) {
+        URI uri = UriComponentsBuilder.fromHttpUrl(type.uri(WeChatServer.CHINA))
+                .build()
+                .toUri();
+        WechatPayProperties.V3 v3 = this.wechatMetaBean().getV3();
+        params.setNotifyUrl(v3.getDomain().concat(params.getNotifyUrl()));
+        return Post(uri, params);
+    }
+
 
 
     /**
@@ -253,6 +357,22 @@ public class WechatPartnerPayApi extends AbstractApi {
         return wechatResponseEntity;
     }
 
+    /**
+     * 商户退款订单查询API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param params the params
+     * @return the wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> queryRefundInfoAsync(RefundQueryParams params) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.QUERY_REFUND, params)
+                .function(this::queryRefundFunction)
+                .consumer(wechatResponseEntity::convert)
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
     private RequestEntity<?> queryRefundFunction(WechatPayV3Type type, RefundQueryParams params) {
         MultiValueMap<String, String> queryParams = new LinkedMultiValueMap<>();
         // queryParams.add("out_refund_no", params.getRefundOrderNo());
@@ -283,6 +403,22 @@ public class WechatPartnerPayApi extends AbstractApi {
         return wechatResponseEntity;
     }
 
+    /**
+     * 商户订单号查询API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param params the params
+     * @return the wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> queryTransactionByOutTradeNoAsync(TransactionQueryParams params) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.TRANSACTION_OUT_TRADE_NO_PARTNER, params)
+                .function(this::queryTransactionFunction)
+                .consumer(wechatResponseEntity::convert)
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
     private RequestEntity<?> queryTransactionFunction(WechatPayV3Type type, TransactionQueryParams params) {
         WechatPayProperties.V3 v3 = this.wechatMetaBean().getV3();
 
@@ -314,6 +450,22 @@ public class WechatPartnerPayApi extends AbstractApi {
         return wechatResponseEntity;
     }
 
+    /**
+     * 关单API，通过{@link WechatPayClient#exchange()}异步请求.
+     *
+     * @param closeTransParams the closeTransParams
+     * @return the wechat response entity
+     * @since 1.0.20.RELEASE
+     */
+    public CompletionStage<WechatResponseEntity<ObjectNode>> closeAsync(CloseTransParams closeTransParams) {
+        WechatResponseEntity<ObjectNode> wechatResponseEntity = new WechatResponseEntity<>();
+        return this.client().withType(WechatPayV3Type.CLOSE_PARTNER, closeTransParams)
+                .function(this::closeByOutTradeNoFunction)
+                .consumer(wechatResponseEntity::convert)
+                .exchange(this.client().exchange())
+                .thenApply(responseEntity -> wechatResponseEntity);
+    }
+
     private RequestEntity<?> closeByOutTradeNoFunction(WechatPayV3Type type, CloseTransParams closeTransParams) {
         WechatPayProperties.V3 v3 = this.wechatMetaBean().getV3();
 
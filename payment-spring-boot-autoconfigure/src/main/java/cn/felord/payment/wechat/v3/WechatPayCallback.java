@@ -17,6 +17,7 @@
 package cn.felord.payment.wechat.v3;
 
 import cn.felord.payment.PayException;
+import cn.felord.payment.wechat.WechatMapperRegistry;
 import cn.felord.payment.wechat.v3.model.*;
 import cn.felord.payment.wechat.v3.model.busicircle.MallRefundConsumeData;
 import cn.felord.payment.wechat.v3.model.busicircle.MallTransactionConsumeData;
@@ -34,12 +35,7 @@ import cn.felord.payment.wechat.v3.model.payscore.parking.ParkingCallback;
 import cn.felord.payment.wechat.v3.model.payscore.parking.TransParkingCallback;
 import cn.felord.payment.wechat.v3.model.profitsharing.PartnerProfitsharingConsumeData;
 import cn.felord.payment.wechat.v3.model.profitsharing.ProfitsharingConsumeData;
-import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.PropertyNamingStrategy;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.util.Assert;
@@ -61,10 +57,6 @@ import java.util.function.Consumer;
  */
 @Slf4j
 public class WechatPayCallback {
-    /**
-     * The constant MAPPER.
-     */
-    private static final ObjectMapper MAPPER = new ObjectMapper();
     /**
      * The Signature provider.
      */
@@ -73,13 +65,19 @@ public class WechatPayCallback {
      * The Tenant id.
      */
     private final String tenantId;
+    /**
+     * The Mapper registry.
+     */
+    private final WechatMapperRegistry mapperRegistry;
 
-    static {
-        MAPPER.setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE)
-                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
-                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
-                .configure(DeserializationFeature.ACCEPT_EMPTY_STRING_AS_NULL_OBJECT, true)
-                .registerModule(new JavaTimeModule());
+    /**
+     * Instantiates a new Wechat pay callback.
+     *
+     * @param signatureProvider the signature provider
+     * @param tenantId          the tenant id
+     */
+    public WechatPayCallback(SignatureProvider signatureProvider, String tenantId) {
+        this(signatureProvider, tenantId, WechatMapperRegistry.defaultRegistry());
     }
 
     /**
@@ -87,14 +85,101 @@ public class WechatPayCallback {
      *
      * @param signatureProvider the signature provider
      * @param tenantId          the tenant id
+     * @param mapperRegistry    the mapper registry
+     * @since 1.0.20.RELEASE
      */
-    public WechatPayCallback(SignatureProvider signatureProvider, String tenantId) {
+    public WechatPayCallback(SignatureProvider signatureProvider, String tenantId, WechatMapperRegistry mapperRegistry) {
         this.signatureProvider = signatureProvider;
         Assert.hasText(tenantId, "tenantId is required");
         this.tenantId = tenantId;
+        this.mapperRegistry = mapperRegistry;
     }
 
 
+    /**
+     * 按照路由表处理回调，同一个回调地址接收多种事件时使用.
+     * <p>
+     * 验签、解密、反序列化都只进行一次，未在路由表中注册的事件不会解密，直接以异常结束。
+     * 路由表启用去重时，已处理过的通知验签后直接应答，正在处理的通知不应答，处理失败时微信支付重新通知仍会处理。
+     *
+     * @param params the params
+     * @param router 路由表
+     * @return the map
+     * @since 1.0.20.RELEASE
+     */
+    @SneakyThrows
+    public Map<String, String> callback(ResponseSignVerifyParams params, WechatCallbackRouter router) {
+        CallbackParams callbackParams = this.resolve(params);
+        String eventType = callbackParams.getEventType();
+        if (!router.supports(eventType)) {
+            log.error("wechat pay event type is not matched, callbackParams {}", callbackParams);
+            throw new PayException(" wechat pay event type is not matched");
+        }
+        String id = callbackParams.getId();
+        if (!this.claim(router, id)) {
+            return response();
+        }
+        try {
+            router.dispatch(signatureProvider, tenantId, eventType, callbackParams.getResource());
+        } catch (Throwable e) {
+            router.release(tenantId, id);
+            throw e;
+        }
+        router.processed(tenantId, id);
+        return response();
+    }
+
+    /**
+     * 按照路由表异步处理回调，验签并将加密的回调数据写入本地日志后立即应答，解密和处理逻辑在后台执行.
+     * <p>
+     * 回调积压达到上限或者写入日志失败时抛出异常，不应答，微信支付会重新通知。
+     *
+     * @param params   the params
+     * @param pipeline the pipeline
+     * @return the map
+     * @since 1.0.20.RELEASE
+     */
+    @SneakyThrows
+    public Map<String, String> callback(ResponseSignVerifyParams params, WechatCallbackPipeline pipeline) {
+        CallbackParams callbackParams = this.resolve(params);
+        String eventType = callbackParams.getEventType();
+        if (!pipeline.supports(eventType)) {
+            log.error("wechat pay event type is not matched, callbackParams {}", callbackParams);
+            throw new PayException(" wechat pay event type is not matched");
+        }
+        String id = callbackParams.getId();
+        WechatCallbackRouter router = pipeline.router();
+        if (!this.claim(router, id)) {
+            return response();
+        }
+        try {
+            pipeline.submit(tenantId, id, eventType, callbackParams.getResource());
+        } catch (Throwable e) {
+            router.release(tenantId, id);
+            throw e;
+        }
+        router.processed(tenantId, id);
+        return response();
+    }
+
+    /**
+     * 占用回调通知ID，已处理过时返回{@code false}直接应答，正在处理时抛出异常不应答.
+     *
+     * @param router the router
+     * @param id     回调通知ID
+     * @return 占用成功时为{@code true}
+     */
+    private boolean claim(WechatCallbackRouter router, String id) {
+        if (router.tryClaim(tenantId, id)) {
+            return true;
+        }
+        if (router.isProcessed(tenantId, id)) {
+            log.debug("wechat pay callback {} has been processed", id);
+            return false;
+        }
+        throw new PayException("wechat pay callback " + id + " is being processed");
+    }
+
     /**
      * 微信支付分账V2回调.
      *
@@ -106,7 +191,7 @@ public class WechatPayCallback {
     @SneakyThrows
     public Map<String, String> profitSharingCallback(ResponseSignVerifyParams params, Consumer<ProfitSharingConsumeData> consumeDataConsumer) {
         String data = this.callback(params, EventType.TRANSACTION_SUCCESS);
-        ProfitSharingConsumeData consumeData = MAPPER.readValue(data, ProfitSharingConsumeData.class);
+        ProfitSharingConsumeData consumeData = mapperRegistry.reader(ProfitSharingConsumeData.class).readValue(data);
         consumeDataConsumer.accept(consumeData);
         return response();
 
@@ -124,7 +209,7 @@ public class WechatPayCallback {
     @SneakyThrows
     public Map<String, String> couponCallback(ResponseSignVerifyParams params, Consumer<CouponConsumeData> consumeDataConsumer) {
         String data = this.callback(params, EventType.COUPON_USE);
-        CouponConsumeData consumeData = MAPPER.readValue(data, CouponConsumeData.class);
+        CouponConsumeData consumeData = mapperRegistry.reader(CouponConsumeData.class).readValue(data);
         consumeDataConsumer.accept(consumeData);
         return response();
 
@@ -143,7 +228,7 @@ public class WechatPayCallback {
     @SneakyThrows
     public Map<String, String> transactionCallback(ResponseSignVerifyParams params, Consumer<TransactionConsumeData> consumeDataConsumer) {
         String data = this.callback(params, EventType.TRANSACTION_SUCCESS);
-        TransactionConsumeData consumeData = MAPPER.readValue(data, TransactionConsumeData.class);
+        TransactionConsumeData consumeData = mapperRegistry.reader(TransactionConsumeData.class).readValue(data);
         consumeDataConsumer.accept(consumeData);
         return response();
     }
@@ -161,7 +246,7 @@ public class WechatPayCallback {
     @SneakyThrows
     public Map<String, String> combineTransactionCallback(ResponseSignVerifyParams params, Consumer<CombineTransactionConsumeData> consumeDataConsumer) {
         String data = this.callback(params, EventType.TRANSACTION_SUCCESS);
-        CombineTransactionConsumeData consumeData = MAPPER.readValue(data, CombineTransactionConsumeData.class);
+        CombineTransactionConsumeData consumeData = mapperRegistry.reader(CombineTransactionConsumeData.class).readValue(data);
         consumeDataConsumer.accept(consumeData);
         return response();
     }
@@ -183,11 +268,11 @@ public class WechatPayCallback {
 
         if (Objects.equals(eventType, EventType.PAYSCORE_USER_CONFIRM.event)) {
             String data = this.decrypt(callbackParams);
-            PayScoreUserConfirmConsumeData confirmConsumeData = MAPPER.readValue(data, PayScoreUserConfirmConsumeData.class);
+            PayScoreUserConfirmConsumeData confirmConsumeData = mapperRegistry.reader(PayScoreUserConfirmConsumeData.class).readValue(data);
             payScoreConsumer.getConfirmConsumeDataConsumer().accept(confirmConsumeData);
         } else if (Objects.equals(eventType, EventType.PAYSCORE_USER_PAID.event)) {
             String data = this.decrypt(callbackParams);
-            PayScoreUserPaidConsumeData paidConsumeData = MAPPER.readValue(data, PayScoreUserPaidConsumeData.class);
+            PayScoreUserPaidConsumeData paidConsumeData = mapperRegistry.reader(PayScoreUserPaidConsumeData.class).readValue(data);
             payScoreConsumer.getPaidConsumeDataConsumer().accept(paidConsumeData);
         } else {
             log.error("wechat pay event type is not matched, callbackParams {}", callbackParams);
@@ -215,7 +300,7 @@ public class WechatPayCallback {
         String eventType = callbackParams.getEventType();
         if (Objects.equals(eventType, EventType.PAYSCORE_PARKING_ENTRANCE_STATE_CHANGE.event)) {
             String data = this.decrypt(callbackParams);
-            ParkingCallback parkingCallback = MAPPER.readValue(data, ParkingCallback.class);
+            ParkingCallback parkingCallback = mapperRegistry.reader(ParkingCallback.class).readValue(data);
             parkingCallbackConsumer.accept(parkingCallback);
         } else {
             log.error("wechat pay event type is not matched, callbackParams {}", callbackParams);
@@ -255,7 +340,7 @@ public class WechatPayCallback {
                 Objects.equals(eventType, EventType.TRANSACTION_PAY_BACK.event)
         ) {
             String data = this.decrypt(callbackParams);
-            TransParkingCallback transParkingCallback = MAPPER.readValue(data, TransParkingCallback.class);
+            TransParkingCallback transParkingCallback = mapperRegistry.reader(TransParkingCallback.class).readValue(data);
             transParkingCallbackConsumer.accept(transParkingCallback);
         } else {
             log.error("wechat pay event type is not matched, callbackParams {}", callbackParams);
@@ -289,7 +374,7 @@ public class WechatPayCallback {
             throw new PayException(" wechat pay event type is not matched");
         }
         String data = this.decrypt(callbackParams);
-        PayScoreUserPermissionConsumeData consumeData = MAPPER.readValue(data, PayScoreUserPermissionConsumeData.class);
+        PayScoreUserPermissionConsumeData consumeData = mapperRegistry.reader(PayScoreUserPermissionConsumeData.class).readValue(data);
         consumeData.setClosed(closed);
         consumeDataConsumer.accept(consumeData);
         return response();
@@ -314,15 +399,15 @@ public class WechatPayCallback {
 
         if (Objects.equals(eventType, EventType.DISCOUNT_CARD_AGREEMENT_ENDED.event)) {
             String data = this.decrypt(callbackParams);
-            DiscountCardAgreementEndConsumeData agreementEndConsumeData = MAPPER.readValue(data, DiscountCardAgreementEndConsumeData.class);
+            DiscountCardAgreementEndConsumeData agreementEndConsumeData = mapperRegistry.reader(DiscountCardAgreementEndConsumeData.class).readValue(data);
             discountCardConsumer.getAgreementEndConsumeDataConsumer().accept(agreementEndConsumeData);
         } else if (Objects.equals(eventType, EventType.DISCOUNT_CARD_USER_ACCEPTED.event)) {
             String data = this.decrypt(callbackParams);
-            DiscountCardAcceptedConsumeData acceptedConsumeData = MAPPER.readValue(data, DiscountCardAcceptedConsumeData.class);
+            DiscountCardAcceptedConsumeData acceptedConsumeData = mapperRegistry.reader(DiscountCardAcceptedConsumeData.class).readValue(data);
             discountCardConsumer.getAcceptedConsumeDataConsumer().accept(acceptedConsumeData);
         } else if (Objects.equals(eventType, EventType.DISCOUNT_CARD_USER_PAID.event)) {
             String data = this.decrypt(callbackParams);
-            DiscountCardUserPaidConsumeData paidConsumeData = MAPPER.readValue(data, DiscountCardUserPaidConsumeData.class);
+            DiscountCardUserPaidConsumeData paidConsumeData = mapperRegistry.reader(DiscountCardUserPaidConsumeData.class).readValue(data);
             discountCardConsumer.getCardUserPaidConsumeDataConsumer().accept(paidConsumeData);
         } else {
             log.error("wechat pay event type is not matched, callbackParams {}", callbackParams);
@@ -352,7 +437,7 @@ public class WechatPayCallback {
             throw new PayException(" wechat pay event type is not matched");
         }
         String data = this.decrypt(callbackParams);
-        BusiFavorReceiveConsumeData consumeData = MAPPER.readValue(data, BusiFavorReceiveConsumeData.class);
+        BusiFavorReceiveConsumeData consumeData = mapperRegistry.reader(BusiFavorReceiveConsumeData.class).readValue(data);
 
         consumeDataConsumer.accept(consumeData);
         return response();
@@ -379,7 +464,7 @@ public class WechatPayCallback {
             throw new PayException(" wechat pay event type is not matched");
         }
         String data = this.decrypt(callbackParams);
-        RefundConsumeData consumeData = MAPPER.readValue(data, RefundConsumeData.class);
+        RefundConsumeData consumeData = mapperRegistry.reader(RefundConsumeData.class).readValue(data);
 
         consumeDataConsumer.accept(consumeData);
         return response();
@@ -406,7 +491,7 @@ public class WechatPayCallback {
             throw new PayException(" wechat pay event type is not matched");
         }
         String data = this.decrypt(callbackParams);
-        PartnerRefundConsumeData consumeData = MAPPER.readValue(data, PartnerRefundConsumeData.class);
+        PartnerRefundConsumeData consumeData = mapperRegistry.reader(PartnerRefundConsumeData.class).readValue(data);
 
         consumeDataConsumer.accept(consumeData);
         return response();
@@ -423,7 +508,7 @@ public class WechatPayCallback {
     @SneakyThrows
     public Map<String, String> profitsharingCallback(ResponseSignVerifyParams params, Consumer<ProfitsharingConsumeData> profitsharingConsumeDataConsumer) {
         String callback = this.callback(params, EventType.TRANSACTION_SUCCESS);
-        ProfitsharingConsumeData consumeData = MAPPER.readValue(callback, ProfitsharingConsumeData.class);
+        ProfitsharingConsumeData consumeData = mapperRegistry.reader(ProfitsharingConsumeData.class).readValue(callback);
         profitsharingConsumeDataConsumer.accept(consumeData);
         return response();
     }
@@ -439,7 +524,7 @@ public class WechatPayCallback {
     @SneakyThrows
     public Map<String, String> partnerProfitsharingCallback(ResponseSignVerifyParams params, Consumer<PartnerProfitsharingConsumeData> profitsharingConsumeDataConsumer) {
         String callback = this.callback(params, EventType.TRANSACTION_SUCCESS);
-        PartnerProfitsharingConsumeData consumeData = MAPPER.readValue(callback, PartnerProfitsharingConsumeData.class);
+        PartnerProfitsharingConsumeData consumeData = mapperRegistry.reader(PartnerProfitsharingConsumeData.class).readValue(callback);
         profitsharingConsumeDataConsumer.accept(consumeData);
         return response();
     }
@@ -457,7 +542,7 @@ public class WechatPayCallback {
     @SneakyThrows
     public Map<String, String> mallTransactionCallback(ResponseSignVerifyParams params, Consumer<MallTransactionConsumeData> consumeDataConsumer) {
         String data = this.callback(params, EventType.MALL_TRANSACTION_SUCCESS);
-        MallTransactionConsumeData consumeData = MAPPER.readValue(data, MallTransactionConsumeData.class);
+        MallTransactionConsumeData consumeData = mapperRegistry.reader(MallTransactionConsumeData.class).readValue(data);
         consumeDataConsumer.accept(consumeData);
         return response();
     }
@@ -473,7 +558,7 @@ public class WechatPayCallback {
     @SneakyThrows
     public Map<String, String> mallRefundCallback(ResponseSignVerifyParams params, Consumer<MallRefundConsumeData> consumeDataConsumer) {
         String data = this.callback(params, EventType.MALL_REFUND_SUCCESS);
-        MallRefundConsumeData consumeData = MAPPER.readValue(data, MallRefundConsumeData.class);
+        MallRefundConsumeData consumeData = mapperRegistry.reader(MallRefundConsumeData.class).readValue(data);
         consumeDataConsumer.accept(consumeData);
         return response();
     }
@@ -504,8 +589,8 @@ public class WechatPayCallback {
      * @since 1.0.2.RELEASE
      */
     private CallbackParams resolve(ResponseSignVerifyParams params) throws JsonProcessingException {
-        if (signatureProvider.responseSignVerify(params)) {
-            return MAPPER.readValue(params.getBody(), CallbackParams.class);
+        if (signatureProvider.callbackSignVerify(tenantId, params)) {
+            return mapperRegistry.reader(CallbackParams.class).readValue(params.getBody());
         }
         throw new PayException("invalid wechat pay callback");
     }
@@ -682,6 +767,16 @@ public class WechatPayCallback {
         EventType(String event) {
             this.event = event;
         }
+
+        /**
+         * Event string.
+         *
+         * @return the string
+         * @since 1.0.20.RELEASE
+         */
+        String event() {
+            return event;
+        }
     }
 
 }
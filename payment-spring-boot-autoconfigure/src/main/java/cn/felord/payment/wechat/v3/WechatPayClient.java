@@ -18,29 +18,42 @@ package cn.felord.payment.wechat.v3;
 
 
 import cn.felord.payment.PayException;
+import cn.felord.payment.wechat.WechatMapperRegistry;
+import cn.felord.payment.wechat.WechatPayProperties;
 import cn.felord.payment.wechat.WechatPayResponseErrorHandler;
+import cn.felord.payment.wechat.enumeration.WeChatServer;
 import cn.felord.payment.wechat.enumeration.WechatPayV3Type;
 import cn.felord.payment.wechat.v3.model.ResponseSignVerifyParams;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.springframework.core.io.Resource;
 import org.springframework.http.*;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.http.converter.support.AllEncompassingFormHttpMessageConverter;
 import org.springframework.http.converter.xml.MappingJackson2XmlHttpMessageConverter;
 import org.springframework.util.Assert;
 import org.springframework.web.client.DefaultResponseErrorHandler;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestOperations;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponents;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * The type Wechat pay client.
@@ -48,15 +61,48 @@ import java.util.function.Consumer;
  * @author felord.cn
  * @since 1.0.0.RELEASE
  */
-public class WechatPayClient {
+@Slf4j
+public class WechatPayClient implements Closeable {
     /**
      * The Signature provider.
      */
     private final SignatureProvider signatureProvider;
+    /**
+     * The Mapper registry.
+     */
+    private final WechatMapperRegistry mapperRegistry;
+    /**
+     * The Http.
+     */
+    private final WechatPayProperties.Http http;
+    /**
+     * The Http client.
+     */
+    private final CloseableHttpClient httpClient;
     /**
      * The Rest operations.
      */
     private RestOperations restOperations;
+    /**
+     * The Async.
+     */
+    private final WechatPayProperties.Async async;
+    /**
+     * 首次异步请求时按{@link #async}创建，由本客户端负责关闭
+     */
+    private ExecutorService defaultAsyncExecutor;
+    /**
+     * The Async executor.
+     */
+    private volatile java.util.concurrent.Executor asyncExecutor;
+    /**
+     * The Exchange.
+     */
+    private volatile WechatPayExchange exchange;
+    /**
+     * The Router.
+     */
+    private volatile WechatEndpointRouter router = new WechatEndpointRouter(new WechatPayProperties.Endpoint());
 
     /**
      * Instantiates a new Wechat pay service.
@@ -64,8 +110,48 @@ public class WechatPayClient {
      * @param signatureProvider the signature provider
      */
     public WechatPayClient(SignatureProvider signatureProvider) {
+        this(signatureProvider, WechatMapperRegistry.defaultRegistry());
+    }
+
+    /**
+     * Instantiates a new Wechat pay service.
+     *
+     * @param signatureProvider the signature provider
+     * @param mapperRegistry    the mapper registry
+     * @since 1.0.20.RELEASE
+     */
+    public WechatPayClient(SignatureProvider signatureProvider, WechatMapperRegistry mapperRegistry) {
+        this(signatureProvider, mapperRegistry, new WechatPayProperties.Http());
+    }
+
+    /**
+     * Instantiates a new Wechat pay service.
+     *
+     * @param signatureProvider the signature provider
+     * @param mapperRegistry    the mapper registry
+     * @param http              连接池、超时等配置
+     * @since 1.0.20.RELEASE
+     */
+    public WechatPayClient(SignatureProvider signatureProvider, WechatMapperRegistry mapperRegistry, WechatPayProperties.Http http) {
+        this(signatureProvider, mapperRegistry, http, new WechatPayProperties.Async());
+    }
+
+    /**
+     * Instantiates a new Wechat pay service.
+     *
+     * @param signatureProvider the signature provider
+     * @param mapperRegistry    the mapper registry
+     * @param http              连接池、超时等配置
+     * @param async             异步请求线程池配置
+     * @since 1.0.20.RELEASE
+     */
+    public WechatPayClient(SignatureProvider signatureProvider, WechatMapperRegistry mapperRegistry, WechatPayProperties.Http http, WechatPayProperties.Async async) {
         this.signatureProvider = signatureProvider;
-        applyDefaultRestTemplate();
+        this.mapperRegistry = mapperRegistry;
+        this.async = async;
+        this.http = http;
+        this.httpClient = WechatHttpClients.createHttpClient(http);
+        applyDefaultRestTemplate(http);
     }
 
 
@@ -78,7 +164,8 @@ public class WechatPayClient {
      * @return the executor
      */
     public <M> Executor<M> withType(WechatPayV3Type wechatPayV3Type, M m) {
-        return new Executor<>(wechatPayV3Type, m, this.signatureProvider, this.restOperations);
+        return new Executor<>(wechatPayV3Type, m, this.signatureProvider, this.mapperRegistry, this.restOperations,
+                requestEntity -> this.exchange().exchange(requestEntity), this::asyncExecutor, this.router);
     }
 
 
@@ -90,6 +177,7 @@ public class WechatPayClient {
      * @since 1.0.0.RELEASE
      */
     public static class Executor<M> {
+        private static final byte[] EMPTY_BODY = new byte[0];
         /**
          * The V3 pay type.
          */
@@ -103,6 +191,22 @@ public class WechatPayClient {
          * The Signature provider.
          */
         private final SignatureProvider signatureProvider;
+        /**
+         * The Mapper registry.
+         */
+        private final WechatMapperRegistry mapperRegistry;
+        /**
+         * The Async exchange.
+         */
+        private final WechatPayExchange asyncExchange;
+        /**
+         * The Async executor.
+         */
+        private final Supplier<java.util.concurrent.Executor> asyncExecutor;
+        /**
+         * The Router.
+         */
+        private final WechatEndpointRouter router;
         /**
          * The Model.
          */
@@ -124,15 +228,24 @@ public class WechatPayClient {
          * @param wechatPayV3Type   the v 3 pay type
          * @param model             the model
          * @param signatureProvider the signature provider
+         * @param mapperRegistry    the mapper registry
          * @param restOperations    the rest operations
+         * @param asyncExchange     the async exchange
+         * @param asyncExecutor     the async executor
+         * @param router            the router
          */
         Executor(WechatPayV3Type wechatPayV3Type,
                  M model,
-                 SignatureProvider signatureProvider, RestOperations restOperations) {
+                 SignatureProvider signatureProvider, WechatMapperRegistry mapperRegistry, RestOperations restOperations,
+                 WechatPayExchange asyncExchange, Supplier<java.util.concurrent.Executor> asyncExecutor, WechatEndpointRouter router) {
             this.wechatPayV3Type = wechatPayV3Type;
             this.model = model;
             this.signatureProvider = signatureProvider;
+            this.mapperRegistry = mapperRegistry;
             this.restOperations = restOperations;
+            this.asyncExchange = asyncExchange;
+            this.asyncExecutor = asyncExecutor;
+            this.router = router;
         }
 
         /**
@@ -164,10 +277,55 @@ public class WechatPayClient {
         public void request() {
             RequestEntity<?> requestEntity = this.requestEntityBiFunction.apply(this.wechatPayV3Type, this.model);
             WechatRequestEntity<?> wechatRequestEntity = WechatRequestEntity.of(requestEntity, this.responseBodyConsumer);
-            this.doExecute(this.header(wechatRequestEntity));
+            this.doExecute(tenantId(wechatRequestEntity), wechatRequestEntity);
         }
 
 
+        /**
+         * 异步请求，使用客户端配置的{@link WechatPayExchange}，未配置时在异步线程池中执行阻塞请求.
+         *
+         * @return 验签通过的响应
+         * @see WechatPayClient#setAsyncExecutor(java.util.concurrent.Executor)
+         * @see WechatPayClient#setExchange(WechatPayExchange)
+         * @since 1.0.20.RELEASE
+         */
+        public CompletableFuture<ResponseEntity<ObjectNode>> requestAsync() {
+            return this.exchange(this.asyncExchange);
+        }
+
+        /**
+         * 通过{@link WechatPayExchange}发送请求，签名、验签与{@link #request()}一致.
+         * <p>
+         * 验签（必要时刷新平台证书）以及{@link #consumer(Consumer)}在{@link WechatPayClient#asyncExecutor()}中执行，
+         * 不占用传输层（例如Netty事件循环）的线程，签名、传输、验签的异常都以异常结束返回的{@link CompletableFuture}。
+         *
+         * @param exchange the exchange
+         * @return 验签通过的响应
+         * @since 1.0.20.RELEASE
+         */
+        public CompletableFuture<ResponseEntity<ObjectNode>> exchange(WechatPayExchange exchange) {
+            String tenantId;
+            WechatRequestEntity<?> wechatRequestEntity;
+            List<WeChatServer> servers;
+            try {
+                RequestEntity<?> requestEntity = this.requestEntityBiFunction.apply(this.wechatPayV3Type, this.model);
+                wechatRequestEntity = WechatRequestEntity.of(requestEntity, this.responseBodyConsumer);
+                tenantId = tenantId(wechatRequestEntity);
+                servers = this.route(tenantId, wechatRequestEntity);
+            } catch (RuntimeException e) {
+                return failed(e);
+            }
+            return this.sendAsync(exchange, wechatRequestEntity, servers, 0)
+                    .thenApplyAsync(rawResponseEntity -> {
+                        ResponseEntity<ObjectNode> responseEntity = this.verify(tenantId, rawResponseEntity, true);
+                        Consumer<ResponseEntity<ObjectNode>> responseConsumer = wechatRequestEntity.getResponseBodyConsumer();
+                        if (Objects.nonNull(responseConsumer)) {
+                            responseConsumer.accept(responseEntity);
+                        }
+                        return responseEntity;
+                    }, this.asyncExecutor.get());
+        }
+
         /**
          * Download string.
          *
@@ -176,7 +334,7 @@ public class WechatPayClient {
         public String download() {
             RequestEntity<?> requestEntity = this.requestEntityBiFunction.apply(this.wechatPayV3Type, this.model);
             WechatRequestEntity<?> wechatRequestEntity = WechatRequestEntity.of(requestEntity, this.responseBodyConsumer);
-            return this.doDownload(this.header(wechatRequestEntity));
+            return this.doDownload(tenantId(wechatRequestEntity), wechatRequestEntity);
         }
 
         /**
@@ -188,7 +346,7 @@ public class WechatPayClient {
         protected ResponseEntity<Resource> resource() {
             RequestEntity<?> requestEntity = this.requestEntityBiFunction.apply(this.wechatPayV3Type, this.model);
             WechatRequestEntity<?> wechatRequestEntity = WechatRequestEntity.of(requestEntity, this.responseBodyConsumer);
-            return this.doResource(this.header(wechatRequestEntity));
+            return this.doResource(tenantId(wechatRequestEntity), wechatRequestEntity);
         }
 
 
@@ -221,7 +379,7 @@ public class WechatPayClient {
                 body = Objects.requireNonNull(headers.get("Meta-Info")).get(0);
             }
 
-            String tenantId = Objects.requireNonNull(headers.get("Pay-TenantId")).get(0);
+            String tenantId = tenantId(requestEntity);
             String authorization = signatureProvider.requestSign(tenantId, httpMethod.name(), canonicalUrl, body);
 
             HttpHeaders httpHeaders = new HttpHeaders();
@@ -241,22 +399,173 @@ public class WechatPayClient {
         }
 
 
+        /**
+         * 获取请求所属租户.
+         *
+         * @param requestEntity the request entity
+         * @return the tenant id
+         */
+        private static String tenantId(RequestEntity<?> requestEntity) {
+            return Objects.requireNonNull(requestEntity.getHeaders().get("Pay-TenantId")).get(0);
+        }
+
+        /**
+         * 按租户域名发送请求，可重试的失败切换到备用域名，每次发送前重新签名.
+         *
+         * @param <R>           the type parameter
+         * @param tenantId      the tenant id
+         * @param requestEntity 未签名的请求
+         * @param responseType  the response type
+         * @return the response entity
+         */
+        private <R> ResponseEntity<R> send(String tenantId, WechatRequestEntity<?> requestEntity, Class<R> responseType) {
+            List<WeChatServer> servers = this.route(tenantId, requestEntity);
+            if (servers.isEmpty()) {
+                return restOperations.exchange(this.header(requestEntity), responseType);
+            }
+            for (int i = 0; ; i++) {
+                WeChatServer server = servers.get(i);
+                boolean last = i == servers.size() - 1;
+                WechatRequestEntity<?> signedRequestEntity = this.header(requestEntity.url(router.rewrite(requestEntity.getUrl(), server)));
+                long start = System.nanoTime();
+                ResponseEntity<R> responseEntity;
+                try {
+                    responseEntity = restOperations.exchange(signedRequestEntity, responseType);
+                } catch (RestClientException e) {
+                    if (!router.isRetryable(requestEntity.getMethod(), e)) {
+                        throw e;
+                    }
+                    router.onFailure(server, System.nanoTime() - start);
+                    if (last) {
+                        throw e;
+                    }
+                    log.warn("wechat pay request to {} failed, retry on {}, cause: {}", server, servers.get(i + 1), e.getMessage());
+                    continue;
+                }
+                if (router.isRetryable(responseEntity.getStatusCode())) {
+                    router.onFailure(server, System.nanoTime() - start);
+                    if (!last) {
+                        log.warn("wechat pay request to {} responded {}, retry on {}", server, responseEntity.getStatusCode(), servers.get(i + 1));
+                        continue;
+                    }
+                } else {
+                    router.onSuccess(server, System.nanoTime() - start);
+                }
+                return responseEntity;
+            }
+        }
+
+        /**
+         * {@link #send(String, WechatRequestEntity, Class)}的异步版本.
+         *
+         * @param exchange      the exchange
+         * @param requestEntity 未签名的请求
+         * @param servers       the servers
+         * @param index         the index
+         * @return the completable future
+         */
+        private CompletableFuture<ResponseEntity<byte[]>> sendAsync(WechatPayExchange exchange, WechatRequestEntity<?> requestEntity,
+                                                                    List<WeChatServer> servers, int index) {
+            if (servers.isEmpty()) {
+                try {
+                    return exchange.exchange(this.header(requestEntity)).toCompletableFuture();
+                } catch (RuntimeException e) {
+                    return failed(e);
+                }
+            }
+            WeChatServer server = servers.get(index);
+            boolean last = index == servers.size() - 1;
+            long start = System.nanoTime();
+            CompletableFuture<ResponseEntity<byte[]>> future;
+            try {
+                future = exchange.exchange(this.header(requestEntity.url(router.rewrite(requestEntity.getUrl(), server))))
+                        .toCompletableFuture();
+            } catch (RuntimeException e) {
+                return failed(e);
+            }
+            return future.handle((responseEntity, throwable) -> {
+                if (throwable != null) {
+                    Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+                    if (!router.isRetryable(requestEntity.getMethod(), cause)) {
+                        return Executor.<ResponseEntity<byte[]>>failed(cause);
+                    }
+                    router.onFailure(server, System.nanoTime() - start);
+                    if (last) {
+                        return Executor.<ResponseEntity<byte[]>>failed(cause);
+                    }
+                    log.warn("wechat pay request to {} failed, retry on {}, cause: {}", server, servers.get(index + 1), cause.getMessage());
+                    return this.sendAsync(exchange, requestEntity, servers, index + 1);
+                }
+                if (router.isRetryable(responseEntity.getStatusCode())) {
+                    router.onFailure(server, System.nanoTime() - start);
+                    if (!last) {
+                        log.warn("wechat pay request to {} responded {}, retry on {}", server, responseEntity.getStatusCode(), servers.get(index + 1));
+                        return this.sendAsync(exchange, requestEntity, servers, index + 1);
+                    }
+                } else {
+                    router.onSuccess(server, System.nanoTime() - start);
+                }
+                return CompletableFuture.completedFuture(responseEntity);
+            }).thenCompose(Function.identity());
+        }
+
+        /**
+         * 租户请求依次尝试的域名.
+         *
+         * @param tenantId      the tenant id
+         * @param requestEntity the request entity
+         * @return the servers
+         */
+        private List<WeChatServer> route(String tenantId, WechatRequestEntity<?> requestEntity) {
+            String domain = signatureProvider.wechatMetaContainer()
+                    .getWechatMeta(tenantId)
+                    .getV3()
+                    .getDomain();
+            return router.route(domain, requestEntity.getUrl());
+        }
+
+        private static <R> CompletableFuture<R> failed(Throwable throwable) {
+            CompletableFuture<R> failed = new CompletableFuture<>();
+            failed.completeExceptionally(throwable);
+            return failed;
+        }
+
         /**
          * Do execute.
          *
          * @param <T>           the type parameter
+         * @param tenantId      the tenant id
          * @param requestEntity the request entity
          */
-        private <T> void doExecute(WechatRequestEntity<T> requestEntity) {
+        private <T> void doExecute(String tenantId, WechatRequestEntity<T> requestEntity) {
+            ResponseEntity<byte[]> rawResponseEntity = this.send(tenantId, requestEntity, byte[].class);
+            Consumer<ResponseEntity<ObjectNode>> responseConsumer = requestEntity.getResponseBodyConsumer();
+            // 没有consumer时只验签，不再反序列化
+            ResponseEntity<ObjectNode> responseEntity = this.verify(tenantId, rawResponseEntity, Objects.nonNull(responseConsumer));
+            if (Objects.nonNull(responseConsumer)) {
+                responseConsumer.accept(responseEntity);
+            }
+        }
 
-            ResponseEntity<ObjectNode> responseEntity = restOperations.exchange(requestEntity, ObjectNode.class);
-            HttpHeaders headers = responseEntity.getHeaders();
-            ObjectNode body = responseEntity.getBody();
-            HttpStatus statusCode = responseEntity.getStatusCode();
+        /**
+         * 检查状态码并使用原始响应体验证微信服务器签名.
+         *
+         * @param tenantId          the tenant id
+         * @param rawResponseEntity the raw response entity
+         * @param readBody          验签通过后是否反序列化响应体
+         * @return the response entity
+         */
+        private ResponseEntity<ObjectNode> verify(String tenantId, ResponseEntity<byte[]> rawResponseEntity, boolean readBody) {
+            HttpHeaders headers = rawResponseEntity.getHeaders();
+            byte[] raw = Optional.ofNullable(rawResponseEntity.getBody()).orElse(EMPTY_BODY);
+            HttpStatus statusCode = rawResponseEntity.getStatusCode();
             // 微信请求id
             String requestId = headers.getFirst("Request-ID");
             if (!statusCode.is2xxSuccessful()) {
-                PayException payException = new PayException("wechat pay server error, Request-ID " + requestId + " , statusCode " + statusCode + ",result : " + body);
+                ResponseEntity<ObjectNode> responseEntity = ResponseEntity.status(statusCode)
+                        .headers(headers)
+                        .body(readErrorBody(raw));
+                PayException payException = new PayException("wechat pay server error, Request-ID " + requestId + " , statusCode " + statusCode + ",result : " + new String(raw, StandardCharsets.UTF_8));
                 payException.setResponse(responseEntity);
                 throw payException;
             }
@@ -270,33 +579,64 @@ public class WechatPayClient {
             params.setWechatpayTimestamp(headers.getFirst("Wechatpay-Timestamp"));
             params.setWechatpayNonce(headers.getFirst("Wechatpay-Nonce"));
 
-            String content = Objects.isNull(body) ? "" : body.toString();
-            params.setBody(content);
-
-            // 验证微信服务器签名
-            if (signatureProvider.responseSignVerify(params)) {
-                Consumer<ResponseEntity<ObjectNode>> responseConsumer = requestEntity.getResponseBodyConsumer();
-                if (Objects.nonNull(responseConsumer)) {
-                    // 验证通过消费
-                    responseConsumer.accept(responseEntity);
-                }
-            } else {
+            // 验证微信服务器签名 使用原始响应体
+            if (!signatureProvider.responseSignVerify(tenantId, params, raw)) {
+                ResponseEntity<ObjectNode> responseEntity = ResponseEntity.status(statusCode)
+                        .headers(headers)
+                        .body(readErrorBody(raw));
                 PayException payException = new PayException("wechat pay signature verify failed, Request-ID " + requestId);
                 payException.setResponse(responseEntity);
                 throw payException;
             }
+            // 验证通过后再反序列化
+            return ResponseEntity.status(statusCode)
+                    .headers(headers)
+                    .body(readBody ? readBody(raw, requestId) : null);
+        }
+
+        /**
+         * 反序列化验签通过的响应体.
+         *
+         * @param raw       the raw
+         * @param requestId the request id
+         * @return the object node, null if the body is empty
+         */
+        private ObjectNode readBody(byte[] raw, String requestId) {
+            if (raw.length == 0) {
+                return null;
+            }
+            try {
+                return mapperRegistry.reader(ObjectNode.class).readValue(raw);
+            } catch (IOException e) {
+                throw new PayException("wechat pay response cannot be resolved, Request-ID " + requestId + ", cause: " + e.getMessage());
+            }
+        }
+
+        /**
+         * 尽可能反序列化错误响应体.
+         *
+         * @param raw the raw
+         * @return the object node, maybe null
+         */
+        private ObjectNode readErrorBody(byte[] raw) {
+            try {
+                return raw.length == 0 ? null : mapperRegistry.reader(ObjectNode.class).readValue(raw);
+            } catch (IOException e) {
+                return null;
+            }
         }
 
         /**
          * 下载文件返回的是字符串类型的.
          *
          * @param <T>           the type parameter
+         * @param tenantId      the tenant id
          * @param requestEntity the request entity
          * @return the string
          */
-        private <T> String doDownload(WechatRequestEntity<T> requestEntity) {
+        private <T> String doDownload(String tenantId, WechatRequestEntity<T> requestEntity) {
 
-            ResponseEntity<String> responseEntity = restOperations.exchange(requestEntity, String.class);
+            ResponseEntity<String> responseEntity = this.send(tenantId, requestEntity, String.class);
 
             HttpStatus statusCode = responseEntity.getStatusCode();
             // 微信请求id
@@ -314,13 +654,14 @@ public class WechatPayClient {
          * 下载文件返回的是流类型的.
          *
          * @param <T>           the type parameter
+         * @param tenantId      the tenant id
          * @param requestEntity the request entity
          * @return the resource
          * @since 1.0.6.RELEASE
          */
-        private <T> ResponseEntity<Resource> doResource(WechatRequestEntity<T> requestEntity) {
+        private <T> ResponseEntity<Resource> doResource(String tenantId, WechatRequestEntity<T> requestEntity) {
 
-            ResponseEntity<Resource> responseEntity = restOperations.exchange(requestEntity, Resource.class);
+            ResponseEntity<Resource> responseEntity = this.send(tenantId, requestEntity, Resource.class);
 
             HttpStatus statusCode = responseEntity.getStatusCode();
             // 微信请求id
@@ -344,12 +685,131 @@ public class WechatPayClient {
         return signatureProvider;
     }
 
+    /**
+     * 连接池、超时等配置，V2客户端也使用其中的超时时间.
+     *
+     * @return the http
+     * @since 1.0.20.RELEASE
+     */
+    public WechatPayProperties.Http http() {
+        return http;
+    }
+
+    /**
+     * JSON序列化配置.
+     *
+     * @return the wechat mapper registry
+     * @since 1.0.20.RELEASE
+     */
+    public WechatMapperRegistry mapperRegistry() {
+        return mapperRegistry;
+    }
+
+    /**
+     * 异步请求使用的线程池，未设置时JDK 21及以上使用虚拟线程，否则使用有界线程池.
+     *
+     * @return the executor
+     * @since 1.0.20.RELEASE
+     */
+    public java.util.concurrent.Executor asyncExecutor() {
+        java.util.concurrent.Executor executor = this.asyncExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = this.asyncExecutor;
+                if (executor == null) {
+                    this.defaultAsyncExecutor = WechatAsyncExecutors.create(async);
+                    executor = this.defaultAsyncExecutor;
+                    this.asyncExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * 设置异步请求使用的线程池，由调用方负责关闭.
+     *
+     * @param asyncExecutor the async executor
+     * @since 1.0.20.RELEASE
+     */
+    public void setAsyncExecutor(java.util.concurrent.Executor asyncExecutor) {
+        Assert.notNull(asyncExecutor, "asyncExecutor is required");
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    /**
+     * 异步请求的传输方式，未设置时在{@link #asyncExecutor()}中执行阻塞请求.
+     *
+     * @return the wechat pay exchange
+     * @since 1.0.20.RELEASE
+     */
+    public WechatPayExchange exchange() {
+        WechatPayExchange wechatPayExchange = this.exchange;
+        if (wechatPayExchange != null) {
+            return wechatPayExchange;
+        }
+        java.util.concurrent.Executor executor = this.asyncExecutor();
+        return requestEntity -> CompletableFuture.supplyAsync(() -> restOperations.exchange(requestEntity, byte[].class), executor);
+    }
+
+    /**
+     * 设置异步请求的传输方式，例如基于{@code WebClient}的非阻塞实现.
+     *
+     * @param exchange the exchange
+     * @since 1.0.20.RELEASE
+     */
+    public void setExchange(WechatPayExchange exchange) {
+        this.exchange = exchange;
+    }
+
+    /**
+     * 域名路由.
+     *
+     * @return the wechat endpoint router
+     * @since 1.0.20.RELEASE
+     */
+    public WechatEndpointRouter endpointRouter() {
+        return router;
+    }
+
+    /**
+     * 设置域名路由.
+     *
+     * @param router the router
+     * @since 1.0.20.RELEASE
+     */
+    public void setEndpointRouter(WechatEndpointRouter router) {
+        Assert.notNull(router, "router is required");
+        this.router = router;
+    }
+
+    /**
+     * 关闭连接池以及默认的异步线程池.
+     *
+     * @since 1.0.20.RELEASE
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (defaultAsyncExecutor != null) {
+                defaultAsyncExecutor.shutdown();
+            }
+        }
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            log.warn("wechat pay http client cannot be closed", e);
+        }
+    }
+
     /**
      * Apply default rest template.
+     *
+     * @param http the http
      */
-    private void applyDefaultRestTemplate() {
+    private void applyDefaultRestTemplate(WechatPayProperties.Http http) {
         RestTemplate restTemplate = new RestTemplate();
-        restTemplate.setRequestFactory(new HttpComponentsClientHttpRequestFactory());
+        restTemplate.setRequestFactory(WechatHttpClients.createRequestFactory(httpClient, http));
         DefaultResponseErrorHandler errorHandler = new WechatPayResponseErrorHandler();
         restTemplate.setErrorHandler(errorHandler);
         List<HttpMessageConverter<?>> messageConverters = restTemplate.getMessageConverters();
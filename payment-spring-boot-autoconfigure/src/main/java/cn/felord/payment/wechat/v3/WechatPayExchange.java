@@ -0,0 +1,43 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+import org.springframework.http.RequestEntity;
+import org.springframework.http.ResponseEntity;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * 发送已签名的V3请求，可以基于非阻塞的HTTP客户端（例如WebFlux的{@code WebClient}）实现.
+ * <p>
+ * 请求签名以及响应验签仍由{@link WechatPayClient.Executor#exchange(WechatPayExchange)}完成，实现只负责传输：
+ * 原样发送请求头和请求体，并返回状态码、响应头和原始响应体。非2xx状态码也应正常返回而不是以异常结束。
+ *
+ * @author felord.cn
+ * @since 1.0.20.RELEASE
+ */
+@FunctionalInterface
+public interface WechatPayExchange {
+
+    /**
+     * 发送请求.
+     *
+     * @param requestEntity 已签名的请求
+     * @return 原始响应
+     */
+    CompletionStage<ResponseEntity<byte[]>> exchange(RequestEntity<?> requestEntity);
+}
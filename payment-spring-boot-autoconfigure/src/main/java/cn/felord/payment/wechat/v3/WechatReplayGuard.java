@@ -0,0 +1,127 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+import cn.felord.payment.wechat.WechatPayProperties;
+import cn.felord.payment.wechat.v3.model.ResponseSignVerifyParams;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 回调防重放.
+ * <p>
+ * 在RSA验签之前拒绝{@code Wechatpay-Timestamp}超出时间窗口的回调，以及{@code Wechatpay-Nonce}已经出现过的回调。
+ * 随机串只需要在时间窗口内保留，超出窗口的回调已经被时间戳拒绝；随机串只在验签通过后记录，伪造的请求不会占用缓存。
+ * 缓存达到上限时淘汰最早的随机串。
+ * <p>
+ * 默认不启用（{@code wechat.pay.callback.replay.enabled}），只用于回调验签，API响应的验签不做检查，
+ * 避免本机时间偏差导致已被微信支付执行的请求被判定为验签失败。
+ *
+ * @author felord.cn
+ * @see SignatureProvider#setReplayGuard(WechatReplayGuard)
+ * @since 1.0.20.RELEASE
+ */
+@Slf4j
+public class WechatReplayGuard {
+    private final long maxSkewSeconds;
+    private final int nonceCacheSize;
+    private final Map<String, Long> nonces = new LinkedHashMap<>();
+
+    /**
+     * Instantiates a new Wechat replay guard.
+     *
+     * @param replay the replay
+     */
+    public WechatReplayGuard(WechatPayProperties.Replay replay) {
+        Duration maxSkew = replay.getMaxSkew();
+        this.maxSkewSeconds = maxSkew == null || maxSkew.isZero() || maxSkew.isNegative() ? 0 : maxSkew.getSeconds();
+        this.nonceCacheSize = replay.getNonceCacheSize();
+    }
+
+    /**
+     * 验签前的检查.
+     *
+     * @param params the params
+     * @return 时间戳在窗口内且随机串未出现过时为{@code true}
+     */
+    public boolean check(ResponseSignVerifyParams params) {
+        long now = System.currentTimeMillis() / 1000;
+        if (maxSkewSeconds > 0) {
+            long timestamp = timestamp(params.getWechatpayTimestamp());
+            if (timestamp < 0 || Math.abs(now - timestamp) > maxSkewSeconds) {
+                log.debug("wechat pay callback timestamp {} is out of the replay window", params.getWechatpayTimestamp());
+                return false;
+            }
+        }
+        if (nonceCacheSize > 0) {
+            synchronized (nonces) {
+                this.evict(now);
+                if (nonces.containsKey(params.getWechatpayNonce())) {
+                    log.debug("wechat pay callback nonce {} is replayed", params.getWechatpayNonce());
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 验签通过后记录随机串.
+     *
+     * @param params the params
+     * @return 随机串未被并发的相同回调记录过时为{@code true}
+     */
+    public boolean record(ResponseSignVerifyParams params) {
+        String nonce = params.getWechatpayNonce();
+        if (nonceCacheSize <= 0 || nonce == null) {
+            return true;
+        }
+        long timestamp = timestamp(params.getWechatpayTimestamp());
+        long expiresAt = maxSkewSeconds > 0 && timestamp >= 0 ? timestamp + maxSkewSeconds : Long.MAX_VALUE;
+        synchronized (nonces) {
+            if (nonces.putIfAbsent(nonce, expiresAt) != null) {
+                log.debug("wechat pay callback nonce {} is replayed", nonce);
+                return false;
+            }
+            this.evict(System.currentTimeMillis() / 1000);
+        }
+        return true;
+    }
+
+    private void evict(long now) {
+        Iterator<Long> iterator = nonces.values().iterator();
+        while (iterator.hasNext()) {
+            long expiresAt = iterator.next();
+            if (nonces.size() <= nonceCacheSize && expiresAt >= now) {
+                return;
+            }
+            iterator.remove();
+        }
+    }
+
+    private static long timestamp(String timestamp) {
+        try {
+            return timestamp == null ? -1 : Long.parseLong(timestamp.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -81,6 +81,22 @@ public class WechatRequestEntity<T> extends RequestEntity<T> {
      * @param responseBodyConsumer the response body consumer
      * @return the wechat request entity
      */
+    /**
+     * 替换请求地址.
+     *
+     * @param url the url
+     * @return the wechat request entity
+     * @since 1.0.20.RELEASE
+     */
+    public WechatRequestEntity<T> url(URI url) {
+        return new WechatRequestEntity<>(this.getBody(),
+                this.getHeaders(),
+                this.getMethod(),
+                url,
+                this.getType(),
+                this.responseBodyConsumer);
+    }
+
     public static WechatRequestEntity<?> of(RequestEntity<?> requestEntity, Consumer<ResponseEntity<ObjectNode>> responseBodyConsumer) {
         return new WechatRequestEntity<>(requestEntity.getBody(),
                 requestEntity.getHeaders(),
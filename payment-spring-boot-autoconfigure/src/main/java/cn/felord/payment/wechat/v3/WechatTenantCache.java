@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按需加载的租户缓存，按最近使用淘汰，可设置加载后的存活时间.
+ * <p>
+ * 放入时返回被淘汰的租户，以及从最久未使用的一端清理的已过期租户，由调用方通知依赖租户的缓存释放。
+ *
+ * @author felord.cn
+ * @since 1.0.20.RELEASE
+ */
+final class WechatTenantCache {
+    private final int maxSize;
+    private final long ttlNanos;
+    private final Map<String, CachedTenant> entries;
+
+    /**
+     * Instantiates a new Wechat tenant cache.
+     *
+     * @param maxSize the max size
+     * @param ttl     the ttl, null means never expire
+     */
+    WechatTenantCache(int maxSize, Duration ttl) {
+        this.maxSize = maxSize;
+        this.ttlNanos = ttl == null ? 0 : ttl.toNanos();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * 获取缓存，已过期的缓存也会返回，由调用方决定是否重新加载.
+     *
+     * @param tenantId the tenant id
+     * @return the entry, maybe null
+     */
+    synchronized CachedTenant get(String tenantId) {
+        return entries.get(tenantId);
+    }
+
+    /**
+     * 放入缓存并重新计时.
+     *
+     * @param tenantId       the tenant id
+     * @param wechatMetaBean the wechat meta bean
+     * @return 超出容量被淘汰或者已过期被清理的租户
+     */
+    synchronized List<String> put(String tenantId, WechatMetaBean wechatMetaBean) {
+        entries.put(tenantId, new CachedTenant(wechatMetaBean, ttlNanos == 0 ? Long.MAX_VALUE : System.nanoTime() + ttlNanos));
+        List<String> evicted = Collections.emptyList();
+        Iterator<Map.Entry<String, CachedTenant>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, CachedTenant> eldest = iterator.next();
+            if (entries.size() <= maxSize && !eldest.getValue().isExpired()) {
+                break;
+            }
+            if (eldest.getKey().equals(tenantId)) {
+                continue;
+            }
+            iterator.remove();
+            if (evicted.isEmpty()) {
+                evicted = new ArrayList<>();
+            }
+            evicted.add(eldest.getKey());
+        }
+        return evicted;
+    }
+
+    /**
+     * Remove.
+     *
+     * @param tenantId the tenant id
+     */
+    synchronized void remove(String tenantId) {
+        entries.remove(tenantId);
+    }
+
+    /**
+     * 当前缓存的租户.
+     *
+     * @return the tenant ids
+     */
+    synchronized List<String> tenantIds() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    /**
+     * The type Cached tenant.
+     */
+    static final class CachedTenant {
+        private final WechatMetaBean wechatMetaBean;
+        private final long expiresAt;
+
+        private CachedTenant(WechatMetaBean wechatMetaBean, long expiresAt) {
+            this.wechatMetaBean = wechatMetaBean;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Wechat meta bean.
+         *
+         * @return the wechat meta bean
+         */
+        WechatMetaBean wechatMetaBean() {
+            return wechatMetaBean;
+        }
+
+        /**
+         * Is expired.
+         *
+         * @return the boolean
+         */
+        boolean isExpired() {
+            return expiresAt != Long.MAX_VALUE && System.nanoTime() - expiresAt > 0;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * 租户变更事件.
+ *
+ * @author felord.cn
+ * @see WechatMetaContainer#addListener(WechatTenantChangeListener)
+ * @since 1.0.20.RELEASE
+ */
+@Getter
+@ToString
+public class WechatTenantChangeEvent {
+    /**
+     * 变更后的版本号
+     */
+    private final long version;
+    /**
+     * 新增的租户
+     */
+    private final Set<String> added;
+    /**
+     * 商户号、证书序列号等配置发生变化的租户
+     */
+    private final Set<String> updated;
+    /**
+     * 移除的租户
+     */
+    private final Set<String> removed;
+    /**
+     * 按需加载模式下被淘汰出缓存的租户，租户仍然存在，再次使用时重新加载；只有淘汰时版本号不变
+     */
+    private final Set<String> evicted;
+
+    /**
+     * Instantiates a new Wechat tenant change event.
+     *
+     * @param version the version
+     * @param added   the added
+     * @param updated the updated
+     * @param removed the removed
+     */
+    public WechatTenantChangeEvent(long version, Set<String> added, Set<String> updated, Set<String> removed) {
+        this(version, added, updated, removed, Collections.emptySet());
+    }
+
+    /**
+     * Instantiates a new Wechat tenant change event.
+     *
+     * @param version the version
+     * @param added   the added
+     * @param updated the updated
+     * @param removed the removed
+     * @param evicted the evicted
+     */
+    public WechatTenantChangeEvent(long version, Set<String> added, Set<String> updated, Set<String> removed, Set<String> evicted) {
+        this.version = version;
+        this.added = Collections.unmodifiableSet(added);
+        this.updated = Collections.unmodifiableSet(updated);
+        this.removed = Collections.unmodifiableSet(removed);
+        this.evicted = Collections.unmodifiableSet(evicted);
+    }
+}
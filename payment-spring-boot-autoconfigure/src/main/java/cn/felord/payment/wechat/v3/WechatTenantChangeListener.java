@@ -0,0 +1,35 @@
+/*
+ *  Copyright 2019-2022 felord.cn
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *  Website:
+ *       https://felord.cn
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cn.felord.payment.wechat.v3;
+
+/**
+ * 租户变更监听，用于清理与租户相关的缓存.
+ *
+ * @author felord.cn
+ * @see WechatMetaContainer#addListener(WechatTenantChangeListener)
+ * @since 1.0.20.RELEASE
+ */
+@FunctionalInterface
+public interface WechatTenantChangeListener {
+
+    /**
+     * 租户发生变更，在执行变更的线程中同步调用.
+     *
+     * @param event the event
+     */
+    void onTenantChange(WechatTenantChangeEvent event);
+}
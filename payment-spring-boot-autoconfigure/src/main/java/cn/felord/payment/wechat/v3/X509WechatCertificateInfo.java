@@ -20,6 +20,8 @@ package cn.felord.payment.wechat.v3;
 import lombok.Data;
 
 import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
 
 /**
  * 微信X509证书
@@ -42,4 +44,17 @@ public class X509WechatCertificateInfo {
      * X509Certificate
      */
     private X509Certificate x509Certificate;
+
+    /**
+     * 证书是否会在指定时长内过期.
+     *
+     * @param duration the duration
+     * @return the boolean
+     * @since 1.0.20.RELEASE
+     */
+    public boolean expiresWithin(Duration duration) {
+        return x509Certificate.getNotAfter()
+                .toInstant()
+                .isBefore(Instant.now().plus(duration));
+    }
 }